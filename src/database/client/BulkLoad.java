@@ -0,0 +1,31 @@
+package database.client;
+
+import database.entity.ResourceItem;
+import database.resource.RMPartitions;
+import database.resource.ResourceManager;
+
+import java.io.File;
+
+/**
+ * Seed a table from a file instead of adding its items one trxn at a time, e.g.
+ * "BulkLoad rm.flights flights flights.csv". The RM reads the file itself, see ResourceManager.load().
+ */
+public class BulkLoad {
+
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: BulkLoad <rm name> <table name> <.csv or serialized items file>");
+            System.exit(1);
+        }
+        try {
+            ResourceManager<ResourceItem> rm = RMPartitions.lookup(args[0]);
+            long start = System.currentTimeMillis();
+            // the RM runs in another dir
+            int loaded = rm.load(args[1], new File(args[2]).getAbsolutePath());
+            System.out.printf("Loaded %d items into table %s of %s in %d ms.\n", loaded, args[1], args[0], System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            System.err.println("Load failed: " + e);
+            System.exit(1);
+        }
+    }
+}
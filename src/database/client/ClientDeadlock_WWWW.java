@@ -2,12 +2,9 @@ package database.client;
 
 import database.exception.TransactionAbortedException;
 import database.utils.CloseUtils;
+import database.workflow.WCPool;
 import database.workflow.WorkflowController;
 
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.rmi.Naming;
-import java.util.Properties;
 import java.util.Scanner;
 
 /**
@@ -17,30 +14,12 @@ public class ClientDeadlock_WWWW {
     public static void main(String[] args) {
         System.out.println("#################### Begin Test ClientDeadlock_WWWW ####################");
 
-        //////////
-        // Read config and get wc.port
-        //////////
-        Properties prop = new Properties();
-        try {
-            prop.load(Files.newInputStream(Paths.get("conf/ddb.conf")));
-        } catch (Exception e1) {
-            e1.printStackTrace();
-            return;
-        }
-
-        String rmiPort = prop.getProperty("wc.port");
-        if (rmiPort == null) {
-            rmiPort = "";
-        } else if (!rmiPort.isEmpty()) {
-            rmiPort = "//:" + rmiPort + "/";
-        }
-
         //////////
         // Bind to WC
         //////////
         WorkflowController wc = null;
         try {
-            wc = (WorkflowController) Naming.lookup(rmiPort + WorkflowController.RMIName);
+            wc = WCPool.lookup();
             System.out.println("Bind to WC");
         } catch (Exception e) {
             System.err.println("Cannot bind to WC:" + e);
@@ -0,0 +1,170 @@
+package database.client;
+
+import database.resource.ResourceManager;
+import database.utils.CloseUtils;
+import database.workflow.WCPool;
+import database.workflow.WorkflowController;
+
+import java.util.Scanner;
+
+/**
+ * Client code for test the case when RM die in the middle of commit, after it has written the
+ * flights table to disk but before it has deleted the shadow table. The recovered RM replays the
+ * commit, which must take the reserved seat only once.
+ */
+public class ClientDieRMAfterStore {
+    public static void main(String[] args) {
+        System.out.println("#################### Begin Test ClientDieRMAfterStore ####################");
+
+        //////////
+        // Bind to WC
+        //////////
+        WorkflowController wc = null;
+        try {
+            wc = WCPool.lookup();
+            System.out.println("Bind to WC");
+        } catch (Exception e) {
+            System.err.println("Cannot bind to WC:" + e);
+            System.exit(1);
+        }
+
+        int xid;
+        int seatsBefore;
+        try {
+            //////////
+            // new transaction 1: some queries before add
+            //////////
+            xid = wc.start();
+            System.out.printf("### Start Transaction xid=%d: some queries before add.\n", xid);
+            System.out.printf("Flight 1001 has %s available seats, the price is %d.\n",
+                    wc.queryFlight(xid, "1001"), wc.queryFlightPrice(xid, "1001"));
+            System.out.printf("Location ShangHai has %s available cars, the price is %d.\n",
+                    wc.queryCars(xid, "ShangHai"), wc.queryCarsPrice(xid, "ShangHai"));
+            System.out.printf("Location ShangHai has %s available rooms, the price is %d.\n",
+                    wc.queryRooms(xid, "ShangHai"), wc.queryRoomsPrice(xid, "ShangHai"));
+            System.out.printf("Tom costs %d dollars.\n", wc.queryCustomerBill(xid, "Tom"));
+            if (!wc.commit(xid)) {
+                System.out.printf("### Commit Transaction xid=%d: failed!\n", xid);
+                System.exit(1);
+            } else {
+                System.out.printf("### Commit Transaction xid=%d: success!\n", xid);
+            }
+
+
+            //////////
+            // new transaction 2: add Flight, Car, Room and new Customer
+            //////////
+            xid = wc.start();
+            System.out.printf("### Start Transaction xid=%d: add Flight, Car, Room and new Customer.\n", xid);
+            if (!wc.addFlight(xid, "1001", 100, 1000)) {
+                System.out.println("Add Flight failed");
+            }
+            if (!wc.addCars(xid, "ShangHai", 50, 200)) {
+                System.out.println("Add Car failed");
+            }
+            if (!wc.addRooms(xid, "ShangHai", 50, 200)) {
+                System.out.println("Add Room failed");
+            }
+            if (!wc.newCustomer(xid, "Tom")) {
+                // if custName already exits, newCustomer() also return true
+                System.out.println("New customer failed");
+            }
+            if (!wc.commit(xid)) {
+                System.out.printf("### Commit Transaction xid=%d: failed!\n", xid);
+                System.exit(1);
+            } else {
+                System.out.printf("### Commit Transaction xid=%d: success!\n", xid);
+            }
+
+            //////////
+            // new transaction 3: some queries after add and before reserve
+            //////////
+            xid = wc.start();
+            System.out.printf("### Start Transaction xid=%d: some queries after add and before reserve.\n", xid);
+            seatsBefore = wc.queryFlight(xid, "1001");
+            System.out.printf("Flight 1001 has %s available seats, the price is %d.\n",
+                    seatsBefore, wc.queryFlightPrice(xid, "1001"));
+            System.out.printf("Location ShangHai has %s available cars, the price is %d.\n",
+                    wc.queryCars(xid, "ShangHai"), wc.queryCarsPrice(xid, "ShangHai"));
+            System.out.printf("Location ShangHai has %s available rooms, the price is %d.\n",
+                    wc.queryRooms(xid, "ShangHai"), wc.queryRoomsPrice(xid, "ShangHai"));
+            System.out.printf("Tom costs %d dollars.\n", wc.queryCustomerBill(xid, "Tom"));
+            if (!wc.commit(xid)) {
+                System.out.printf("### Commit Transaction xid=%d: failed!\n", xid);
+                System.exit(1);
+            } else {
+                System.out.printf("### Commit Transaction xid=%d: success!\n", xid);
+            }
+
+
+            //////////
+            // new transaction 4: reserve Flight, Car and Room, but Flight RM will die after storing the flights table
+            //////////
+            xid = wc.start();
+            System.out.printf("### Start Transaction xid=%d: reserve Flight, Car and Room, but Flight RM will die after storing the flights table.\n", xid);
+            wc.dieRMAfterStore(ResourceManager.RMI_NAME_RM_FLIGHTS); // set a flag and info Flight RM to die after it stores the flights table in the next commit
+            if (!wc.reserveFlight(xid, "Tom", "1001")) {
+                System.out.println("Reserve Flight failed");
+            }
+            if (!wc.reserveCar(xid, "Tom", "ShangHai")) {
+                System.out.println("Reserve Car failed");
+            }
+            if (!wc.reserveRoom(xid, "Tom", "ShangHai")) {
+                System.out.println("Reserve Room failed");
+            }
+            if (!wc.commit(xid)) {
+                System.err.printf("### Commit Transaction xid=%d: failed!\n", xid);
+                System.exit(1);
+            } else {
+                System.out.printf("### Commit Transaction xid=%d: success! If RM die after storing a table, it will recommit after recover, the consistency is still guaranteed.\n", xid);
+            }
+
+
+            //////////
+            // new transaction 5: check consistency after processing RM die
+            //////////
+            // wait until rm recover
+            while (!wc.reconnect()) {
+                try {
+                    //noinspection BusyWait
+                    Thread.sleep(1000);
+                } catch (Exception ignored) {
+                }
+            }
+            try {
+                Thread.sleep(5000);
+            } catch (Exception ignored) {
+            }
+            xid = wc.start();
+            System.out.printf("### Start Transaction xid=%d: check consistency after processing RM die.\n", xid);
+            int seatsAfter = wc.queryFlight(xid, "1001");
+            System.out.printf("Flight 1001 has %s available seats, the price is %d.\n",
+                    seatsAfter, wc.queryFlightPrice(xid, "1001"));
+            if (seatsAfter != seatsBefore - 1) {
+                System.err.printf("### Flight 1001 should have %d available seats after one reservation, not %d!\n", seatsBefore - 1, seatsAfter);
+                System.exit(1);
+            }
+            System.out.printf("Location ShangHai has %s available cars, the price is %d.\n",
+                    wc.queryCars(xid, "ShangHai"), wc.queryCarsPrice(xid, "ShangHai"));
+            System.out.printf("Location ShangHai has %s available rooms, the price is %d.\n",
+                    wc.queryRooms(xid, "ShangHai"), wc.queryRoomsPrice(xid, "ShangHai"));
+            System.out.printf("Tom costs %d dollars.\n", wc.queryCustomerBill(xid, "Tom"));
+            if (!wc.commit(xid)) {
+                System.out.printf("### Commit Transaction xid=%d: failed!\n", xid);
+                System.exit(1);
+            } else {
+                System.out.printf("### Commit Transaction xid=%d: success!\n", xid);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.out.println("#################### Finish Test ClientDieRMAfterStore ####################");
+
+
+        CloseUtils.close();
+        System.exit(0);
+    }
+}
@@ -1,34 +1,16 @@
 package database.client;
 
+import database.workflow.WCPool;
 import database.workflow.WorkflowController;
 
-import java.io.FileInputStream;
-import java.rmi.Naming;
-import java.util.Properties;
-
 /**
  * Created by house on 6/29/17.
  */
 public class ClientException {
     public static void main(String args[]) {
-        Properties prop = new Properties();
-        try {
-            prop.load(new FileInputStream("conf/ddb.conf"));
-        } catch (Exception e1) {
-            e1.printStackTrace();
-            return;
-        }
-
-        String rmiPort = prop.getProperty("wc.port");
-        if (rmiPort == null) {
-            rmiPort = "";
-        } else if (!rmiPort.equals("")) {
-            rmiPort = "//:" + rmiPort + "/";
-        }
-
         WorkflowController wc = null;
         try {
-            wc = (WorkflowController) Naming.lookup(rmiPort + WorkflowController.RMIName);
+            wc = WCPool.lookup();
             System.out.println("Bound to WC");
         } catch (Exception e) {
             System.err.println("Cannot bind to WC:" + e);
@@ -9,12 +9,24 @@ public class Customer extends ResourceItem {
 
     public static final String INDEX_NAME = "custName";
 
+    /**
+     * Name of the column holding the total price of the customer's reservations.
+     */
+    public static final String BILL = "bill";
+
     private String custName;
 
+    private int bill;
+
     public Customer(String custName) {
         this.custName = custName;
     }
 
+    public Customer(String custName, int bill) {
+        this.custName = custName;
+        this.bill = bill;
+    }
+
     public String getCustName() {
         return custName;
     }
@@ -23,14 +35,22 @@ public class Customer extends ResourceItem {
         this.custName = custName;
     }
 
+    public int getBill() {
+        return bill;
+    }
+
+    public void setBill(int bill) {
+        this.bill = bill;
+    }
+
     @Override
     public String[] getColumnNames() {
-        return new String[]{"custName"};
+        return new String[]{"custName", BILL};
     }
 
     @Override
     public String[] getColumnValues() {
-        return new String[]{custName};
+        return new String[]{custName, String.valueOf(bill)};
     }
 
     @Override
@@ -42,6 +62,23 @@ public class Customer extends ResourceItem {
         }
     }
 
+    @Override
+    public int getIntColumn(String columnName) throws InvalidIndexException {
+        if (columnName.equals(BILL)) {
+            return bill;
+        }
+        throw new InvalidIndexException(columnName);
+    }
+
+    @Override
+    public void setIntColumn(String columnName, int value) throws InvalidIndexException {
+        if (columnName.equals(BILL)) {
+            bill = value;
+        } else {
+            throw new InvalidIndexException(columnName);
+        }
+    }
+
     @Override
     public Object getKey() {
         return custName;
@@ -49,7 +86,7 @@ public class Customer extends ResourceItem {
 
     @Override
     public Object clone() throws CloneNotSupportedException {
-        Customer customer = new Customer(custName);
+        Customer customer = new Customer(custName, bill);
         customer.setDeleted(this.isDeleted());
         return customer;
     }
@@ -75,6 +75,37 @@ public class Flight extends ResourceItem {
         }
     }
 
+    @Override
+    public int getIntColumn(String columnName) throws InvalidIndexException {
+        switch (columnName) {
+            case "price":
+                return price;
+            case "numSeats":
+                return numSeats;
+            case NUM_AVAIL:
+                return numAvail;
+            default:
+                throw new InvalidIndexException(columnName);
+        }
+    }
+
+    @Override
+    public void setIntColumn(String columnName, int value) throws InvalidIndexException {
+        switch (columnName) {
+            case "price":
+                price = value;
+                break;
+            case "numSeats":
+                numSeats = value;
+                break;
+            case NUM_AVAIL:
+                numAvail = value;
+                break;
+            default:
+                throw new InvalidIndexException(columnName);
+        }
+    }
+
     @Override
     public Object getKey() {
         return flightNum;
@@ -6,6 +6,11 @@ import java.io.Serializable;
 
 public abstract class ResourceItem implements Cloneable, Serializable {
 
+    /**
+     * Name of the availability column of bookable items (flights, hotels, cars).
+     */
+    public static final String NUM_AVAIL = "numAvail";
+
     private boolean isDeleted = false;
 
     public boolean isDeleted() {
@@ -24,5 +29,26 @@ public abstract class ResourceItem implements Cloneable, Serializable {
 
     public abstract Object getKey();
 
+    /**
+     * Read a numeric column by name, used by the escrow (commutative counter) operations.
+     *
+     * @param columnName one of the numeric columns in getColumnNames()
+     * @throws InvalidIndexException if the column does not exist or is not numeric
+     */
+    public int getIntColumn(String columnName) throws InvalidIndexException {
+        throw new InvalidIndexException(columnName);
+    }
+
+    /**
+     * Write a numeric column by name, used by the escrow (commutative counter) operations.
+     *
+     * @param columnName one of the numeric columns in getColumnNames()
+     * @param value      new value of the column
+     * @throws InvalidIndexException if the column does not exist or is not numeric
+     */
+    public void setIntColumn(String columnName, int value) throws InvalidIndexException {
+        throw new InvalidIndexException(columnName);
+    }
+
     public abstract Object clone() throws CloneNotSupportedException;
 }
\ No newline at end of file
@@ -14,6 +14,24 @@ public class LockManager {
     /* Lock request type. */
     public static final int READ = 0;
     public static final int WRITE = 1;
+    /* Escrow locks are only compatible with each other, so commutative counter updates can run in parallel. */
+    public static final int ESCROW = 2;
+
+    /**
+     * @return the name of @lockType for log lines
+     */
+    static String lockTypeName(int lockType) {
+        switch (lockType) {
+            case READ:
+                return "READ";
+            case WRITE:
+                return "WRITE";
+            case ESCROW:
+                return "ESCROW";
+            default:
+                return String.valueOf(lockType);
+        }
+    }
 
     /* A lock request is considered deadlocked after 10 sec. */
     private static int DEADLOCK_TIMEOUT = 10000;
@@ -41,7 +59,7 @@ public class LockManager {
      *
      * @param xid      Transaction Identifier, should be non-negative.
      * @param strData  identifies the data element to be locked; should be non-null.
-     * @param lockType one of LockManager.READ or LockManager.WRITE
+     * @param lockType one of LockManager.READ, LockManager.WRITE or LockManager.ESCROW
      * @return true if operation succeeded; false if not (due to invalid parameters).
      * @throws DeadlockException if deadlock is detected (using a timeout)
      */
@@ -56,7 +74,7 @@ public class LockManager {
             return false;
         }
 
-        if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) {
+        if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE) && (lockType != TrxnObj.ESCROW)) {
             return false;
         }
 
@@ -83,7 +101,7 @@ public class LockManager {
                         synchronized (this.waitTable) {
                             // remove the entry for this transaction from waitTable (if it
                             // is there) as it has been granted its lock request
-                            WaitObj waitObj = new WaitObj(xid, strData, lockType);
+                            WaitObj waitObj = new WaitObj(xid, strData, dataObj.getLockType());
                             this.waitTable.remove(waitObj);
                         }
 
@@ -92,8 +110,8 @@ public class LockManager {
                             // *** ADD CODE HERE *** to carry out the lock conversion in the
                             // lock table
                             System.out.print("Converting lock...");
-                            convertLockTableObj(trxnObj);
-                            convertLockTableObj(dataObj);
+                            convertLockTableObj(trxnObj, xid, strData);
+                            convertLockTableObj(dataObj, xid, strData);
                             System.out.println("done");
 
                         } else {
@@ -186,13 +204,26 @@ public class LockManager {
                             // stop granting READ locks as soon as you find a WRITE lock
                             // request in the queue of requests
                             break;
+                        } else if (waitObj.getLockType() == LockManager.ESCROW) {
+                            // escrow waiters are compatible with each other, wake them
+                            // up and let them re-check for conflicts.
+                            this.waitTable.remove(waitObj);
+
+                            try {
+                                synchronized (waitObj) {
+                                    waitObj.notify();
+                                }
+                            } catch (Exception e) {
+                                System.out.println("Exception e\n" + e.getMessage());
+                            }
                         } else if (waitObj.getLockType() == LockManager.READ) {
                             // remove interrupted thread from waitTable.
                             this.waitTable.remove(waitObj);
 
                             try {
-                                synchronized (waitObj.getThread()) {
-                                    waitObj.getThread().notify();
+                                // the waiting thread sleeps on its waitObj, see waitLock()
+                                synchronized (waitObj) {
+                                    waitObj.notify();
                                 }
                             } catch (Exception e) {
                                 System.out.println("Exception e\n" + e.getMessage());
@@ -213,66 +244,53 @@ public class LockManager {
     // item and again requests for a read lock), then this is
     // ignored. This is done by throwing RedundantLockRequestException
     // which is handled appropriately by the caller. If the lock
-    // request is a conversion from READ lock to WRITE lock, then
-    // bitset is set.
+    // request is a conversion of an existing lock to a WRITE lock,
+    // then bitset is set and dataObj is turned into a WRITE request.
+    //
+    // READ locks are compatible with READ locks and ESCROW locks are
+    // compatible with ESCROW locks; every other combination conflicts.
+    // A transaction that mixes READ and ESCROW on the same item needs
+    // the exact value and the right to change it, i.e. a WRITE lock.
     private boolean lockConflict(DataObj dataObj, BitSet bitset) throws DeadlockException, RedundantLockRequestException {
         Vector vect = this.lockTable.elements(dataObj);
         DataObj dataObj2;
         int size = vect.size();
 
-        // as soon as a lock that conflicts with the current lock
-        // request is found, return true
+        // first look for a lock this transaction already holds on the item
         for (int i = 0; i < size; i++) {
+            if (!(vect.elementAt(i) instanceof DataObj)) {
+                continue;
+            }
             dataObj2 = (DataObj) vect.elementAt(i);
-            if (dataObj.getXId() == dataObj2.getXId()) {
-                // the transaction already has a lock on this data
-                // item which means that it is either relocking it or
-                // is converting the lock
-                if (dataObj.getLockType() == DataObj.READ) {
-                    // since transaction already has a lock (may be
-                    // READ, may be WRITE. we don't care) on this data
-                    // item and it is requesting a READ lock, this
-                    // lock request is redundant.
+            if (dataObj.getXId() == dataObj2.getXId() && dataObj.getDataName().equals(dataObj2.getDataName())) {
+                if (dataObj2.getLockType() == DataObj.WRITE || dataObj2.getLockType() == dataObj.getLockType()) {
+                    // a WRITE lock or a lock of the same mode covers this request
                     throw new RedundantLockRequestException(dataObj.getXId(),
-                            "Redundant READ lock request");
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction already has a lock and is requesting a WRITE lock
-                    // now there are two cases to analyze here
-                    // (1) transaction already had a READ lock
-                    // (2) transaction already had a WRITE lock
-                    // Seeing the comments at the top of this function might be helpful
-                    // *** ADD CODE HERE *** to take care of both these cases
-                    if (dataObj2.getLockType() == DataObj.WRITE) {
-                        // since the transaction already has a write lock on this
-                        // data item, this locm request is redundant
-                        throw new RedundantLockRequestException(dataObj.getXId(),
-                                "Redundant WRITE lock request");
-                    } else {
-                        // the transaction has a READ lock and has requested a WRITE lock,
-                        // so this is a lock conversion request
-                        System.out.println("Want WRITE, have READ, requesting lock upgrade");
-                        bitset.set(0);
-                        // we can't just return false here, because some other
-                        // transaction may also have a READ lock. So we must
-                        // continue iterating through the chain of locks.
-                    }
-                }
-            } else {
-                if (dataObj.getLockType() == DataObj.READ) {
-                    if (dataObj2.getLockType() == DataObj.WRITE) {
-                        // transaction is requesting a READ lock and some other transaction
-                        // already has a WRITE lock on it ==> conflict
-                        System.out.println("Want READ, someone has WRITE");
-                        return true;
-                    } else {
-                        // do nothing 
-                    }
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction is requesting a WRITE lock and some other transaction has either
-                    // a READ or a WRITE lock on it ==> conflict
-                    System.out.println("Want WRITE, someone has READ or WRITE");
-                    return true;
+                            "Redundant lock request");
                 }
+                // READ -> WRITE, ESCROW -> WRITE, READ <-> ESCROW are all upgrades to WRITE
+                System.out.println("Want " + lockTypeName(dataObj.getLockType()) + ", have " + lockTypeName(dataObj2.getLockType()) + ", requesting lock upgrade");
+                dataObj.setLockType(DataObj.WRITE);
+                bitset.set(0);
+                // we can't just return false here, because some other
+                // transaction may also hold a lock. So we must
+                // check the other locks below.
+            }
+        }
+
+        // as soon as a lock that conflicts with the current lock
+        // request is found, return true
+        for (int i = 0; i < size; i++) {
+            if (!(vect.elementAt(i) instanceof DataObj)) {
+                continue;
+            }
+            dataObj2 = (DataObj) vect.elementAt(i);
+            if (dataObj.getXId() == dataObj2.getXId() || !dataObj.getDataName().equals(dataObj2.getDataName())) {
+                continue;
+            }
+            if (dataObj.getLockType() == DataObj.WRITE || dataObj.getLockType() != dataObj2.getLockType()) {
+                System.out.println("Want " + lockTypeName(dataObj.getLockType()) + ", someone has " + lockTypeName(dataObj2.getLockType()));
+                return true;
             }
         }
 
@@ -355,9 +373,15 @@ public class LockManager {
         throw new DeadlockException(waitObj.getXId(), "Sleep timeout...deadlock.");
     }
 
-    private void convertLockTableObj(TrxnObj trxnObj) {
-        trxnObj.setLockType(TrxnObj.READ);
-        TrxnObj trxnObj2 = (TrxnObj) this.lockTable.get(trxnObj);
-        trxnObj2.setLockType(TrxnObj.WRITE);
+    private void convertLockTableObj(TrxnObj queryObj, int xid, String strData) {
+        // the held lock may be READ or ESCROW, so look it up by transaction and data name
+        Vector vect = this.lockTable.elements(queryObj);
+        for (int i = 0; i < vect.size(); i++) {
+            TrxnObj trxnObj2 = (TrxnObj) vect.elementAt(i);
+            if (trxnObj2.getXId() == xid && trxnObj2.getDataName().equals(strData) && trxnObj2.getClass() == queryObj.getClass()) {
+                trxnObj2.setLockType(TrxnObj.WRITE);
+                return;
+            }
+        }
     }
 }
@@ -2,15 +2,23 @@ package database.lockmgr;
 
 import database.exception.DeadlockException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 
 class LockManagerTest {
 
     static LockManager lm = new LockManager();
 
+    /**
+     * the locks granted and released, in order, as "<xid> <opcode>"
+     */
+    static final List<String> events = new ArrayList<>();
+
     public static void main(String[] args) {
         test1();
         test2();
+        test3();
     }
 
     static void test1() {
@@ -41,6 +49,49 @@ class LockManagerTest {
     }
 
 
+    static void test3() {
+        System.out.println("Escrow lock test");
+        events.clear();
+        // t1 and t2 hold escrow locks at the same time, t3 must wait for both to read
+        Transaction t1 = new Transaction(1, "el a sl 1000 ua");
+        Transaction t2 = new Transaction(2, "sl 10 el a sl 1000 ua");
+        Transaction t3 = new Transaction(3, "sl 20 rl a ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception e) {
+        }
+        // a release is logged before the locks go, a grant after the lock is taken
+        int t1Lock = events.indexOf("1 el");
+        int t2Lock = events.indexOf("2 el");
+        int t1Unlock = events.indexOf("1 ua");
+        int t2Unlock = events.indexOf("2 ua");
+        int t3Lock = events.indexOf("3 rl");
+        if (t1Lock < 0 || t2Lock < 0 || t2Lock > t1Unlock || t1Lock > t2Unlock) {
+            fail("t1 and t2 should hold their escrow locks at the same time", events);
+        }
+        if (t3Lock < t1Unlock || t3Lock < t2Unlock) {
+            fail("t3 should get its read lock after both escrow holders release", events);
+        }
+        System.out.println("Escrow lock test passed");
+    }
+
+    static void fail(String message, List<String> events) {
+        System.out.println("Escrow lock test failed: " + message + ", got " + events);
+        System.exit(1);
+    }
+
+    static void log(int xid, String opcode) {
+        synchronized (events) {
+            events.add(xid + " " + opcode);
+        }
+    }
+
+
     static class Transaction extends Thread {
 
         int xid;
@@ -59,14 +110,23 @@ class LockManagerTest {
                     if (opcode.equalsIgnoreCase("rl")) {
                         String param = st.nextToken();
                         lm.lock(xid, param, LockManager.READ);
+                        log(xid, "rl");
                         System.out.println("Transaction " + xid +
                                 " got rl(" + param + ")");
                     } else if (opcode.equalsIgnoreCase("wl")) {
                         String param = st.nextToken();
                         lm.lock(xid, param, LockManager.WRITE);
+                        log(xid, "wl");
                         System.out.println("Transaction " + xid +
                                 " got wl(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("el")) {
+                        String param = st.nextToken();
+                        lm.lock(xid, param, LockManager.ESCROW);
+                        log(xid, "el");
+                        System.out.println("Transaction " + xid +
+                                " got el(" + param + ")");
                     } else if (opcode.equalsIgnoreCase("ua")) {
+                        log(xid, "ua");
                         lm.unlockAll(xid);
                     } else if (opcode.equalsIgnoreCase("sl")) {
                         String param = st.nextToken();
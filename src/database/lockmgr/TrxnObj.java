@@ -4,6 +4,7 @@ public class TrxnObj extends XObj {
 
     public static final int READ = 0;
     public static final int WRITE = 1;
+    public static final int ESCROW = 2;
 
     protected String strData = null;
     protected int lockType = -1;
@@ -21,7 +22,7 @@ public class TrxnObj extends XObj {
         super(xid);
         this.strData = new String(strData);
 
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE) || (lockType == TrxnObj.ESCROW)) {
             this.lockType = lockType;
         } else {
             this.lockType = -1;    // invalid lock type.
@@ -69,7 +70,7 @@ public class TrxnObj extends XObj {
     }
 
     public void setLockType(int lockType) {
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE) || (lockType == TrxnObj.ESCROW)) {
             this.lockType = lockType;
         }
     }
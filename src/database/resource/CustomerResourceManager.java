@@ -1,12 +1,12 @@
 package database.resource;
 
 import database.entity.Customer;
+import database.transport.Transport;
 import database.utils.PropUtil;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
 import java.util.Properties;
 
 /**
@@ -16,22 +16,29 @@ public class CustomerResourceManager extends ResourceManagerImpl<Customer> {
 
     private CustomerResourceManager() throws RemoteException {
         super();
-        myRMIName = ResourceManager.RMI_NAME_RM_CUSTOMERS;
+    }
+
+    @Override
+    protected Customer parse(String[] columns) {
+        // the bill may be left out
+        return columns.length == 1 ? new Customer(columns[0]) : new Customer(columns[0], Integer.parseInt(columns[1]));
     }
 
     public static void main(String[] args) {
-        myRMIName = ResourceManager.RMI_NAME_RM_CUSTOMERS;
+        // the partition of this RM, 0 unless given
+        int partition = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        myRMIName = RMPartitions.name(ResourceManager.RMI_NAME_RM_CUSTOMERS, partition);
 
         String rmiPort = PropUtil.getRmiPort(myRMIName);
         try {
-            _rmiRegistry = LocateRegistry.createRegistry(Integer.parseInt(rmiPort));
+            Transport.listen(rmiPort);
         } catch (RemoteException e2) {
             e2.printStackTrace();
             return;
         }
         try {
             CustomerResourceManager customerResourceManager = new CustomerResourceManager();
-            _rmiRegistry.bind(myRMIName, customerResourceManager);
+            Transport.bind(rmiPort, myRMIName, customerResourceManager);
             System.out.println(myRMIName + " bound");
         } catch (Exception e) {
             System.err.println(myRMIName + " not bound:" + e);
@@ -1,12 +1,12 @@
 package database.resource;
 
 import database.entity.Flight;
+import database.transport.Transport;
 import database.utils.PropUtil;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
 import java.util.Properties;
 
 /**
@@ -16,22 +16,28 @@ public class FlightResourceManager extends ResourceManagerImpl<Flight> {
 
     private FlightResourceManager() throws RemoteException {
         super();
-        myRMIName = RMI_NAME_RM_FLIGHTS;
+    }
+
+    @Override
+    protected Flight parse(String[] columns) {
+        return new Flight(columns[0], Integer.parseInt(columns[1]), Integer.parseInt(columns[2]), Integer.parseInt(columns[3]));
     }
 
     public static void main(String[] args) {
-        myRMIName = RMI_NAME_RM_FLIGHTS;
+        // the partition of this RM, 0 unless given
+        int partition = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        myRMIName = RMPartitions.name(RMI_NAME_RM_FLIGHTS, partition);
 
         String rmiPort = PropUtil.getRmiPort(myRMIName);
         try {
-            _rmiRegistry = LocateRegistry.createRegistry(Integer.parseInt(rmiPort));
+            Transport.listen(rmiPort);
         } catch (RemoteException e2) {
             e2.printStackTrace();
             return;
         }
         try {
             FlightResourceManager flightResourceManager = new FlightResourceManager();
-            _rmiRegistry.bind(myRMIName, flightResourceManager);
+            Transport.bind(rmiPort, myRMIName, flightResourceManager);
             System.out.println(myRMIName + " bound");
         } catch (Exception e) {
             System.err.println(myRMIName + " not bound:" + e);
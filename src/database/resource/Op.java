@@ -0,0 +1,104 @@
+package database.resource;
+
+import database.entity.ResourceItem;
+
+import java.io.Serializable;
+
+/**
+ * One operation of a {@link ResourceManager#execute} batch.
+ * <p>
+ * The result of each operation in the batch has the same type as the single call:
+ * List&lt;T&gt; for QUERY_ALL, T for QUERY and DECREMENT_AVAILABLE, Boolean for the others.
+ */
+public class Op<T extends ResourceItem> implements Serializable {
+
+    public enum Type {
+        QUERY_ALL, QUERY, UPDATE, INSERT, DELETE, INCREMENT, DECREMENT_IF_AT_LEAST, DECREMENT_AVAILABLE
+    }
+
+    private final Type type;
+
+    private final String tableName;
+
+    private final Object key;
+
+    private final T item;
+
+    private final String columnName;
+
+    private final int amount;
+
+    private Op(Type type, String tableName, Object key, T item, String columnName, int amount) {
+        this.type = type;
+        this.tableName = tableName;
+        this.key = key;
+        this.item = item;
+        this.columnName = columnName;
+        this.amount = amount;
+    }
+
+    public static <T extends ResourceItem> Op<T> queryAll(String tableName) {
+        return new Op<>(Type.QUERY_ALL, tableName, null, null, null, 0);
+    }
+
+    public static <T extends ResourceItem> Op<T> query(String tableName, Object key) {
+        return new Op<>(Type.QUERY, tableName, key, null, null, 0);
+    }
+
+    public static <T extends ResourceItem> Op<T> update(String tableName, Object key, T newItem) {
+        return new Op<>(Type.UPDATE, tableName, key, newItem, null, 0);
+    }
+
+    public static <T extends ResourceItem> Op<T> insert(String tableName, T newItem) {
+        return new Op<>(Type.INSERT, tableName, newItem.getKey(), newItem, null, 0);
+    }
+
+    public static <T extends ResourceItem> Op<T> delete(String tableName, Object key) {
+        return new Op<>(Type.DELETE, tableName, key, null, null, 0);
+    }
+
+    public static <T extends ResourceItem> Op<T> increment(String tableName, Object key, String columnName, int delta) {
+        return new Op<>(Type.INCREMENT, tableName, key, null, columnName, delta);
+    }
+
+    public static <T extends ResourceItem> Op<T> decrementIfAtLeast(String tableName, Object key, String columnName, int amount) {
+        return new Op<>(Type.DECREMENT_IF_AT_LEAST, tableName, key, null, columnName, amount);
+    }
+
+    public static <T extends ResourceItem> Op<T> decrementAvailable(String tableName, Object key, int n) {
+        return new Op<>(Type.DECREMENT_AVAILABLE, tableName, key, null, ResourceItem.NUM_AVAIL, n);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    public T getItem() {
+        return item;
+    }
+
+    public String getColumnName() {
+        return columnName;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        return "Op{" +
+                "type=" + type +
+                ", tableName='" + tableName + '\'' +
+                ", key=" + key +
+                '}';
+    }
+}
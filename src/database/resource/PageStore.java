@@ -0,0 +1,497 @@
+package database.resource;
+
+import database.entity.ResourceItem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * The items of a main table kept in a file of fixed size slotted pages mapped into memory, instead of
+ * on the heap and written whole on every commit.
+ * <p>
+ * A page starts with its slot count and the start of its record area, then the slot directory (offset
+ * and length of each record, a negative length for a free slot) grows up and the records grow down
+ * from the end of the page. A record holds the column values of an item, see getColumnValues(). Only
+ * the key of each item stays on the heap, with the page and slot of its record. An item that still
+ * fits its slot is updated in place, the others move to a page with room. Pages that have room again
+ * after removes take new records before the file grows.
+ * <p>
+ * A page is changed in a copy on the heap, the mapped file only gets the copies on force(): their
+ * after-images go to a redo log first, which is forced before the pages are written, so a page torn by
+ * a crash is rewritten from the log when the file opens again. Each page also keeps a checksum of its
+ * bytes, which open() checks.
+ */
+class PageStore<T extends ResourceItem> {
+    static final String SUFFIX = ".pages";
+
+    /**
+     * the copy of a page file taken before a load, see ResourceManager.load()
+     */
+    static final String BACKUP_SUFFIX = ".load";
+
+    /**
+     * the redo log next to a page file
+     */
+    static final String LOG_SUFFIX = ".log";
+
+    static final int PAGE_SIZE = 8192;
+
+    /**
+     * pages mapped at a time, the file grows by this many pages
+     */
+    private static final int REGION_PAGES = 1024;
+
+    /**
+     * slot count, start of the record area and checksum of the page
+     */
+    private static final int HEADER = 12;
+
+    private static final int SLOT = 8;
+
+    /**
+     * a page with at least this much space free, once compacted, takes new records
+     */
+    private static final int MIN_ROOM = PAGE_SIZE / 8;
+
+    /**
+     * changed pages kept on the heap at most, a change past it forces them to disk first
+     */
+    private static final int MAX_DIRTY = REGION_PAGES;
+
+    private final FileChannel channel;
+
+    private final FileChannel log;
+
+    /**
+     * the pages changed since the last force(), by page
+     */
+    private final TreeMap<Integer, ByteBuffer> dirty = new TreeMap<>();
+
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+
+    private final Function<String[], T> decoder;
+
+    /**
+     * the record of each key, page << 32 | slot
+     */
+    private final Map<Object, Long> directory = new HashMap<>();
+
+    private int pageCount = 0;
+
+    /**
+     * the pages with MIN_ROOM free, lowest first so the file fills from the front
+     */
+    private final TreeSet<Integer> withRoom = new TreeSet<>();
+
+    private PageStore(FileChannel channel, FileChannel log, Function<String[], T> decoder) {
+        this.channel = channel;
+        this.log = log;
+        this.decoder = decoder;
+    }
+
+    /**
+     * @param decoder makes an item from the column values of a record
+     */
+    static <T extends ResourceItem> PageStore<T> open(String path, Function<String[], T> decoder) throws IOException {
+        Path file = Paths.get(path);
+        Files.createDirectories(file.getParent());
+        PageStore<T> store = new PageStore<>(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE),
+                FileChannel.open(Paths.get(path + LOG_SUFFIX), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE), decoder);
+        store.redo();
+        store.recover();
+        return store;
+    }
+
+    /**
+     * Write the pages of a complete batch in the redo log, a force() that died after forcing the log may
+     * have written only some of them. A batch whose log write didn't finish left the pages untouched.
+     */
+    private void redo() throws IOException {
+        ByteBuffer batch = ByteBuffer.allocate((int) log.size());
+        while (batch.hasRemaining() && log.read(batch, batch.position()) >= 0) {
+        }
+        batch.flip();
+        if (batch.remaining() >= 4 + 8) {
+            int count = batch.getInt(0);
+            int size = 4 + count * (4 + PAGE_SIZE);
+            if (count >= 0 && batch.remaining() == size + 8) {
+                CRC32 crc = new CRC32();
+                crc.update(batch.array(), 0, size);
+                if (crc.getValue() == batch.getLong(size)) {
+                    batch.position(4);
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer page = page(batch.getInt());
+                        byte[] image = new byte[PAGE_SIZE];
+                        batch.get(image);
+                        page.put(image);
+                    }
+                    for (MappedByteBuffer region : regions) {
+                        region.force();
+                    }
+                }
+            }
+        }
+        log.truncate(0);
+        log.force(true);
+    }
+
+    /**
+     * rebuild the directory from the pages in use, they come first in the file
+     */
+    private void recover() throws IOException {
+        long pages = channel.size() / PAGE_SIZE;
+        while (pageCount < pages) {
+            ByteBuffer page = page(pageCount);
+            if (page.getInt(4) == 0) {
+                // never used
+                break;
+            }
+            if (page.getInt(8) != checksum(page)) {
+                throw new IOException("Page " + pageCount + " of a page file is corrupt, its checksum doesn't match");
+            }
+            int slots = page.getInt(0);
+            for (int slot = 0; slot < slots; slot++) {
+                int length = page.getInt(HEADER + slot * SLOT + 4);
+                if (length >= 0) {
+                    T item = decode(page, page.getInt(HEADER + slot * SLOT), length);
+                    directory.put(item.getKey(), rid(pageCount, slot));
+                }
+            }
+            updateRoom(pageCount);
+            pageCount++;
+        }
+    }
+
+    synchronized T get(Object key) {
+        Long rid = directory.get(key);
+        if (rid == null) {
+            return null;
+        }
+        ByteBuffer page = read(pageOf(rid));
+        int slot = slotOf(rid);
+        return decode(page, page.getInt(HEADER + slot * SLOT), page.getInt(HEADER + slot * SLOT + 4));
+    }
+
+    synchronized void put(T item) {
+        byte[] record = encode(item);
+        if (record.length + SLOT > PAGE_SIZE - HEADER) {
+            throw new IllegalArgumentException("Item " + item.getKey() + " doesn't fit in a page");
+        }
+        if (dirty.size() >= MAX_DIRTY) {
+            force();
+        }
+        Long rid = directory.get(item.getKey());
+        if (rid != null) {
+            ByteBuffer page = writable(pageOf(rid));
+            int slot = slotOf(rid);
+            int offset = page.getInt(HEADER + slot * SLOT);
+            if (record.length <= page.getInt(HEADER + slot * SLOT + 4)) {
+                // in place, the rest of the old record is reclaimed when the page is compacted
+                page.position(offset);
+                page.put(record);
+                page.putInt(HEADER + slot * SLOT + 4, record.length);
+                updateRoom(pageOf(rid));
+                return;
+            }
+            page.putInt(HEADER + slot * SLOT + 4, -1);
+            // stay on the same page if it has room
+            int moved = insert(pageOf(rid), record);
+            updateRoom(pageOf(rid));
+            if (moved >= 0) {
+                directory.put(item.getKey(), rid(pageOf(rid), moved));
+                return;
+            }
+        }
+        // a page with room, then the last page, then a new one
+        int p = withRoom.isEmpty() ? -1 : withRoom.first();
+        int slot = p >= 0 ? insert(p, record) : -1;
+        if (slot < 0 && pageCount > 0 && p != pageCount - 1) {
+            p = pageCount - 1;
+            slot = insert(p, record);
+        }
+        if (slot < 0) {
+            p = newPage();
+            slot = insert(p, record);
+        }
+        updateRoom(p);
+        directory.put(item.getKey(), rid(p, slot));
+    }
+
+    synchronized void remove(Object key) {
+        if (dirty.size() >= MAX_DIRTY) {
+            force();
+        }
+        Long rid = directory.remove(key);
+        if (rid != null) {
+            writable(pageOf(rid)).putInt(HEADER + slotOf(rid) * SLOT + 4, -1);
+            updateRoom(pageOf(rid));
+        }
+    }
+
+    synchronized List<Object> keys() {
+        return new ArrayList<>(directory.keySet());
+    }
+
+    /**
+     * the items, each read from its page as the iteration gets to it
+     */
+    Iterable<T> values() {
+        List<Object> keys = keys();
+        return () -> keys.stream().map(this::get).filter(Objects::nonNull).iterator();
+    }
+
+    /**
+     * Write the changed pages to disk: their after-images to the redo log, forced, then the pages
+     * themselves, then the log is emptied.
+     */
+    synchronized void force() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        int size = 4 + dirty.size() * (4 + PAGE_SIZE);
+        ByteBuffer batch = ByteBuffer.allocate(size + 8);
+        batch.putInt(dirty.size());
+        for (Map.Entry<Integer, ByteBuffer> entry : dirty.entrySet()) {
+            ByteBuffer page = entry.getValue();
+            page.putInt(8, checksum(page));
+            batch.putInt(entry.getKey());
+            batch.put(page.duplicate().clear());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(batch.array(), 0, size);
+        batch.putLong(crc.getValue());
+        batch.flip();
+        try {
+            long position = 0;
+            while (batch.hasRemaining()) {
+                position += log.write(batch, position);
+            }
+            log.force(false);
+
+            for (Map.Entry<Integer, ByteBuffer> entry : dirty.entrySet()) {
+                page(entry.getKey()).put(entry.getValue().duplicate().clear());
+            }
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+            dirty.clear();
+
+            log.truncate(0);
+            log.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stop using the file, the items are read from it again by the next open().
+     */
+    synchronized void close() throws IOException {
+        channel.close();
+        log.close();
+        regions.clear();
+        dirty.clear();
+        directory.clear();
+    }
+
+    /**
+     * @return the slot @record went to on page @p, -1 if the page has no room for it
+     */
+    private int insert(int p, byte[] record) {
+        ByteBuffer page = writable(p);
+        int slots = page.getInt(0);
+        int slot = 0;
+        while (slot < slots && page.getInt(HEADER + slot * SLOT + 4) >= 0) {
+            slot++;
+        }
+        int need = record.length + (slot == slots ? SLOT : 0);
+        if (free(page) < need) {
+            compact(page);
+            if (free(page) < need) {
+                return -1;
+            }
+        }
+        int offset = page.getInt(4) - record.length;
+        page.position(offset);
+        page.put(record);
+        page.putInt(4, offset);
+        page.putInt(HEADER + slot * SLOT, offset);
+        page.putInt(HEADER + slot * SLOT + 4, record.length);
+        if (slot == slots) {
+            page.putInt(0, slots + 1);
+        }
+        return slot;
+    }
+
+    /**
+     * add page @p to the pages with room or take it out, after its records changed
+     */
+    private void updateRoom(int p) {
+        ByteBuffer page = read(p);
+        int slots = page.getInt(0);
+        int room = PAGE_SIZE - HEADER - slots * SLOT;
+        for (int slot = 0; slot < slots; slot++) {
+            room -= Math.max(0, page.getInt(HEADER + slot * SLOT + 4));
+        }
+        if (room >= MIN_ROOM) {
+            withRoom.add(p);
+        } else {
+            withRoom.remove(p);
+        }
+    }
+
+    private static int free(ByteBuffer page) {
+        return page.getInt(4) - HEADER - page.getInt(0) * SLOT;
+    }
+
+    /**
+     * move the live records to the end of the page, so the space of free slots and shrunk records is contiguous again
+     */
+    private static void compact(ByteBuffer page) {
+        int slots = page.getInt(0);
+        byte[][] records = new byte[slots][];
+        for (int slot = 0; slot < slots; slot++) {
+            int length = page.getInt(HEADER + slot * SLOT + 4);
+            if (length >= 0) {
+                records[slot] = new byte[length];
+                page.position(page.getInt(HEADER + slot * SLOT));
+                page.get(records[slot]);
+            }
+        }
+        int end = PAGE_SIZE;
+        for (int slot = 0; slot < slots; slot++) {
+            if (records[slot] != null) {
+                end -= records[slot].length;
+                page.position(end);
+                page.put(records[slot]);
+                page.putInt(HEADER + slot * SLOT, end);
+            }
+        }
+        page.putInt(4, end);
+    }
+
+    private int newPage() {
+        int p = pageCount++;
+        ByteBuffer page = writable(p);
+        page.putInt(0, 0);
+        page.putInt(4, PAGE_SIZE);
+        return p;
+    }
+
+    /**
+     * @return page @p to read, the copy on the heap if it has changed since the last force()
+     */
+    private ByteBuffer read(int p) {
+        ByteBuffer page = dirty.get(p);
+        return page != null ? page : page(p);
+    }
+
+    /**
+     * @return the copy of page @p on the heap to change, see force()
+     */
+    private ByteBuffer writable(int p) {
+        ByteBuffer page = dirty.get(p);
+        if (page == null) {
+            page = ByteBuffer.allocate(PAGE_SIZE);
+            page.put(page(p));
+            page.clear();
+            dirty.put(p, page);
+        }
+        return page;
+    }
+
+    /**
+     * the CRC32 of all the bytes of @page but the checksum itself
+     */
+    private static int checksum(ByteBuffer page) {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = page.duplicate();
+        bytes.clear();
+        bytes.limit(8);
+        crc.update(bytes);
+        bytes.limit(PAGE_SIZE);
+        bytes.position(HEADER);
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return page @p as it is in the file, its first byte at index 0, mapping the region it is in if needed
+     */
+    private ByteBuffer page(int p) {
+        int region = p / REGION_PAGES;
+        while (regions.size() <= region) {
+            try {
+                regions.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * REGION_PAGES * PAGE_SIZE, (long) REGION_PAGES * PAGE_SIZE));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ByteBuffer page = regions.get(region).duplicate();
+        int offset = (p % REGION_PAGES) * PAGE_SIZE;
+        page.position(offset);
+        page.limit(offset + PAGE_SIZE);
+        return page.slice();
+    }
+
+    private byte[] encode(T item) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            String[] values = item.getColumnValues();
+            out.writeShort(values.length);
+            for (String value : values) {
+                out.writeUTF(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private T decode(ByteBuffer page, int offset, int length) {
+        byte[] record = new byte[length];
+        page.position(offset);
+        page.get(record);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            String[] values = new String[in.readShort()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readUTF();
+            }
+            return decoder.apply(values);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long rid(int page, int slot) {
+        return (long) page << 32 | slot;
+    }
+
+    private static int pageOf(long rid) {
+        return (int) (rid >>> 32);
+    }
+
+    private static int slotOf(long rid) {
+        return (int) rid;
+    }
+}
@@ -0,0 +1,145 @@
+package database.resource;
+
+import database.entity.Flight;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+class PageStoreTest {
+
+    static final Function<String[], Flight> decoder = columns -> new Flight(columns[0], Integer.parseInt(columns[1]), Integer.parseInt(columns[2]), Integer.parseInt(columns[3]));
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("pagestore");
+        test1(dir.resolve("test1" + PageStore.SUFFIX));
+        test2(dir.resolve("test2" + PageStore.SUFFIX));
+        test3(dir.resolve("test3" + PageStore.SUFFIX));
+        test4(dir.resolve("test4" + PageStore.SUFFIX));
+    }
+
+    static void test1(Path path) throws IOException {
+        System.out.println("Round trip test");
+        Map<Object, Flight> expected = new HashMap<>();
+        PageStore<Flight> store = PageStore.open(path.toString(), decoder);
+        churn(store, expected, 0);
+        store.force();
+        check(store, expected);
+        check(PageStore.open(path.toString(), decoder), expected);
+    }
+
+    static void test2(Path path) throws IOException {
+        System.out.println("Redo test");
+        Map<Object, Flight> expected = new HashMap<>();
+        PageStore<Flight> store = PageStore.open(path.toString(), decoder);
+        churn(store, expected, 0);
+        store.force();
+        Path before = Files.copy(path, path.resolveSibling("test2.before"));
+        churn(store, expected, 1);
+        store.force();
+        store.close();
+
+        // died after forcing the log of the second force and before writing any page: the pages are
+        // those of the first force, the log holds the pages of the second
+        byte[] after = Files.readAllBytes(path);
+        Files.move(before, path, StandardCopyOption.REPLACE_EXISTING);
+        int pages = 0;
+        while ((pages + 1) * PageStore.PAGE_SIZE <= after.length && ByteBuffer.wrap(after).getInt(pages * PageStore.PAGE_SIZE + 4) != 0) {
+            pages++;
+        }
+        int size = 4 + pages * (4 + PageStore.PAGE_SIZE);
+        ByteBuffer log = ByteBuffer.allocate(size + 8);
+        log.putInt(pages);
+        for (int p = 0; p < pages; p++) {
+            log.putInt(p);
+            log.put(after, p * PageStore.PAGE_SIZE, PageStore.PAGE_SIZE);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(log.array(), 0, size);
+        log.putLong(crc.getValue());
+        Files.write(path.resolveSibling(path.getFileName() + PageStore.LOG_SUFFIX), log.array());
+
+        check(PageStore.open(path.toString(), decoder), expected);
+    }
+
+    static void test3(Path path) throws IOException {
+        System.out.println("Torn log test");
+        Map<Object, Flight> expected = new HashMap<>();
+        PageStore<Flight> store = PageStore.open(path.toString(), decoder);
+        churn(store, expected, 0);
+        store.force();
+        store.close();
+
+        // died while writing the log, the pages were not touched yet
+        ByteBuffer log = ByteBuffer.allocate(4 + 4 + 100);
+        log.putInt(1).putInt(0);
+        Files.write(path.resolveSibling(path.getFileName() + PageStore.LOG_SUFFIX), log.array());
+
+        check(PageStore.open(path.toString(), decoder), expected);
+    }
+
+    static void test4(Path path) throws IOException {
+        System.out.println("Torn page test");
+        Map<Object, Flight> expected = new HashMap<>();
+        PageStore<Flight> store = PageStore.open(path.toString(), decoder);
+        churn(store, expected, 0);
+        store.force();
+        store.close();
+
+        // half of a page written over, without a log to redo it from
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(PageStore.PAGE_SIZE - 100);
+            file.write(new byte[50]);
+        }
+        try {
+            PageStore.open(path.toString(), decoder);
+            fail("a corrupt page was not detected");
+        } catch (IOException e) {
+            System.out.println("Detected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * insert, grow, shrink and remove items, applying the same to @expected
+     */
+    static void churn(PageStore<Flight> store, Map<Object, Flight> expected, int round) {
+        Random random = new Random(round);
+        for (int i = 0; i < 3000; i++) {
+            String flightNum = "F" + random.nextInt(1000);
+            if (random.nextInt(4) == 0) {
+                store.remove(flightNum);
+                expected.remove(flightNum);
+            } else {
+                // the number of digits varies the record size, so some updates stay in place and some move
+                Flight flight = new Flight(flightNum, random.nextInt(1000000), random.nextInt(1000), random.nextInt(10) == 0 ? 1000000 : random.nextInt(10));
+                store.put(flight);
+                expected.put(flightNum, flight);
+            }
+        }
+    }
+
+    static void check(PageStore<Flight> store, Map<Object, Flight> expected) throws IOException {
+        if (!new HashSet<>(store.keys()).equals(expected.keySet())) {
+            fail("expected " + expected.size() + " keys, got " + store.keys().size());
+        }
+        for (Flight flight : expected.values()) {
+            Flight stored = store.get(flight.getKey());
+            if (!Arrays.equals(stored.getColumnValues(), flight.getColumnValues())) {
+                fail("expected " + Arrays.toString(flight.getColumnValues()) + ", got " + Arrays.toString(stored.getColumnValues()));
+            }
+        }
+        System.out.println("Items " + expected.size());
+        store.close();
+    }
+
+    static void fail(String message) {
+        System.out.println("Page store test failed: " + message);
+        System.exit(1);
+    }
+}
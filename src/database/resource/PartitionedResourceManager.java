@@ -0,0 +1,334 @@
+package database.resource;
+
+import database.entity.ResourceItem;
+import database.exception.DeadlockException;
+import database.exception.InvalidTransactionException;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client side of a partitioned RM, see RMPartitions.
+ * <p>
+ * Calls on one key go to the partition that owns it, scans of a whole table go to every partition and
+ * a batch is split into one batch per partition. The partitions are called in a fixed order, so
+ * concurrent trxns still take their locks in the same order. 2PC isn't run through here: the TM talks
+ * to the partitions a trxn has touched directly.
+ */
+class PartitionedResourceManager<T extends ResourceItem> implements ResourceManager<T> {
+    private final String rmName;
+    private final ResourceManager<T>[] partitions;
+    private final TreeMap<Integer, Integer> ring;
+    /**
+     * open cursors by id, each made of one cursor per partition, dropped when the trxn ends, see dropCursors()
+     */
+    private final Map<Integer, Cursor> cursors = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCursorId = new AtomicInteger();
+
+    PartitionedResourceManager(String rmName, ResourceManager<T>[] partitions) {
+        this.rmName = rmName;
+        this.partitions = partitions;
+        this.ring = RMPartitions.ring(rmName, partitions.length);
+    }
+
+    private ResourceManager<T> partition(Object key) {
+        return partitions[RMPartitions.partitionOf(ring, key)];
+    }
+
+    @Override
+    public boolean testConnection() throws RemoteException {
+        for (ResourceManager<T> partition : partitions) {
+            if (!partition.testConnection()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public List<T> query(int xid, String tableName) throws DeadlockException, InvalidTransactionException, RemoteException {
+        List<T> items = new ArrayList<>();
+        for (ResourceManager<T> partition : partitions) {
+            items.addAll(partition.query(xid, tableName));
+        }
+        return items;
+    }
+
+    @Override
+    public List<T> query(int xid, String tableName, Predicate where, String orderBy, int limit) throws DeadlockException, InvalidTransactionException, RemoteException {
+        // the top @limit of each partition, merged
+        List<T> items = new ArrayList<>();
+        for (ResourceManager<T> partition : partitions) {
+            items.addAll(partition.query(xid, tableName, where, orderBy, limit));
+        }
+        if (orderBy != null) {
+            items.sort(Predicate.order(orderBy));
+        }
+        return limit > 0 && items.size() > limit ? new ArrayList<>(items.subList(0, limit)) : items;
+    }
+
+    @Override
+    public T query(int xid, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException {
+        return partition(key).query(xid, tableName, key);
+    }
+
+    @Override
+    public boolean update(int xid, String tableName, Object key, T newItem) throws DeadlockException, InvalidTransactionException, RemoteException {
+        return partition(key).update(xid, tableName, key, newItem);
+    }
+
+    @Override
+    public boolean insert(int xid, String tableName, T newItem) throws DeadlockException, InvalidTransactionException, RemoteException {
+        return partition(newItem.getKey()).insert(xid, tableName, newItem);
+    }
+
+    @Override
+    public boolean delete(int xid, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException {
+        return partition(key).delete(xid, tableName, key);
+    }
+
+    @Override
+    public boolean increment(int xid, String tableName, Object key, String columnName, int delta) throws DeadlockException, InvalidTransactionException, RemoteException {
+        return partition(key).increment(xid, tableName, key, columnName, delta);
+    }
+
+    @Override
+    public boolean decrementIfAtLeast(int xid, String tableName, Object key, String columnName, int amount) throws DeadlockException, InvalidTransactionException, RemoteException {
+        return partition(key).decrementIfAtLeast(xid, tableName, key, columnName, amount);
+    }
+
+    @Override
+    public T decrementAvailable(int xid, String tableName, Object key, int n) throws DeadlockException, InvalidTransactionException, RemoteException {
+        return partition(key).decrementAvailable(xid, tableName, key, n);
+    }
+
+    /**
+     * @return the indexes into @ops of the operations each partition runs, by partition in order
+     */
+    private TreeMap<Integer, List<Integer>> split(List<Op<T>> ops) {
+        TreeMap<Integer, List<Integer>> split = new TreeMap<>();
+        for (int i = 0; i < ops.size(); i++) {
+            Op<T> op = ops.get(i);
+            if (op.getType() == Op.Type.QUERY_ALL) {
+                for (int partition = 0; partition < partitions.length; partition++) {
+                    split.computeIfAbsent(partition, p -> new ArrayList<>()).add(i);
+                }
+            } else {
+                split.computeIfAbsent(RMPartitions.partitionOf(ring, op.getKey()), p -> new ArrayList<>()).add(i);
+            }
+        }
+        return split;
+    }
+
+    private static <T extends ResourceItem> List<Op<T>> select(List<Op<T>> ops, List<Integer> indexes) {
+        List<Op<T>> selected = new ArrayList<>(indexes.size());
+        for (Integer i : indexes) {
+            selected.add(ops.get(i));
+        }
+        return selected;
+    }
+
+    /**
+     * put the results of one partition in place, the items of a scan add up over the partitions
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends ResourceItem> void gather(List<Op<T>> ops, List<Integer> indexes, List<Object> partResults, Object[] results) {
+        for (int j = 0; j < indexes.size(); j++) {
+            int i = indexes.get(j);
+            if (ops.get(i).getType() == Op.Type.QUERY_ALL) {
+                if (results[i] == null) {
+                    results[i] = new ArrayList<>();
+                }
+                ((List<Object>) results[i]).addAll((List<Object>) partResults.get(j));
+            } else {
+                results[i] = partResults.get(j);
+            }
+        }
+    }
+
+    @Override
+    public List<Object> execute(int xid, List<Op<T>> ops) throws DeadlockException, InvalidTransactionException, RemoteException {
+        Object[] results = new Object[ops.size()];
+        for (Map.Entry<Integer, List<Integer>> entry : split(ops).entrySet()) {
+            List<Object> partResults = partitions[entry.getKey()].execute(xid, select(ops, entry.getValue()));
+            gather(ops, entry.getValue(), partResults, results);
+        }
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    @Override
+    public CompletableFuture<List<Object>> executeAsync(int xid, List<Op<T>> ops) throws RemoteException {
+        // the partitions run their batches at the same time, each takes its locks in batch order
+        Object[] results = new Object[ops.size()];
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> entry : split(ops).entrySet()) {
+            parts.add(partitions[entry.getKey()].executeAsync(xid, select(ops, entry.getValue())).thenAccept(partResults -> {
+                synchronized (results) {
+                    gather(ops, entry.getValue(), partResults, results);
+                }
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            synchronized (results) {
+                return new ArrayList<>(Arrays.asList(results));
+            }
+        });
+    }
+
+    @Override
+    public int openCursor(int xid, String tableName) throws DeadlockException, InvalidTransactionException, RemoteException {
+        int[] partCursorIds = new int[partitions.length];
+        for (int partition = 0; partition < partitions.length; partition++) {
+            partCursorIds[partition] = partitions[partition].openCursor(xid, tableName);
+        }
+        int cursorId = nextCursorId.incrementAndGet();
+        cursors.put(cursorId, new Cursor(xid, partCursorIds));
+        return cursorId;
+    }
+
+    @Override
+    public List<T> fetch(int xid, int cursorId, int fetchSize) throws DeadlockException, InvalidTransactionException, RemoteException {
+        Cursor cursor = cursors.get(cursorId);
+        if (cursor == null || cursor.xid != xid) {
+            throw new RemoteException("RM " + rmName + " has no cursor " + cursorId + " in Trxn ID " + xid);
+        }
+        // read the partitions one after the other, a short batch means a partition is exhausted
+        List<T> items = new ArrayList<>();
+        synchronized (cursor) {
+            while (items.size() < fetchSize && cursor.partition < partitions.length) {
+                int want = fetchSize - items.size();
+                List<T> batch;
+                try {
+                    batch = partitions[cursor.partition].fetch(xid, cursor.partCursorIds[cursor.partition], want);
+                } catch (InvalidTransactionException e) {
+                    // the trxn has ended, and its cursors on the partitions with it
+                    cursors.remove(cursorId);
+                    throw e;
+                }
+                items.addAll(batch);
+                if (batch.size() < want) {
+                    cursor.partition++;
+                }
+            }
+        }
+        if (items.size() < fetchSize) {
+            cursors.remove(cursorId);
+        }
+        return items;
+    }
+
+    @Override
+    public void closeCursor(int xid, int cursorId) throws RemoteException {
+        Cursor cursor = cursors.get(cursorId);
+        if (cursor == null || cursor.xid != xid) {
+            return;
+        }
+        cursors.remove(cursorId);
+        synchronized (cursor) {
+            for (int partition = cursor.partition; partition < partitions.length; partition++) {
+                partitions[partition].closeCursor(xid, cursor.partCursorIds[partition]);
+            }
+        }
+    }
+
+    /**
+     * Forget the cursors of a trxn that has ended, the partitions have closed their own.
+     */
+    void dropCursors(int xid) {
+        cursors.values().removeIf(cursor -> cursor.xid == xid);
+    }
+
+    @Override
+    public int load(String tableName, String path) throws RemoteException {
+        // every partition reads the whole file and keeps the items it owns
+        int loaded = 0;
+        for (ResourceManager<T> partition : partitions) {
+            loaded += partition.load(tableName, path);
+        }
+        return loaded;
+    }
+
+    @Override
+    public Vote prepare(int xid) throws InvalidTransactionException, RemoteException {
+        throw new RemoteException("The TM prepares each partition of RM " + rmName + " on its own");
+    }
+
+    @Override
+    public void commit(int xid) throws InvalidTransactionException, RemoteException {
+        throw new RemoteException("The TM commits each partition of RM " + rmName + " on its own");
+    }
+
+    @Override
+    public Vote[] prepareAll(int[] xids) throws RemoteException {
+        throw new RemoteException("The TM prepares each partition of RM " + rmName + " on its own");
+    }
+
+    @Override
+    public void commitAll(int[] xids) throws InvalidTransactionException, RemoteException {
+        throw new RemoteException("The TM commits each partition of RM " + rmName + " on its own");
+    }
+
+    @Override
+    public boolean commitOnePhase(int xid) throws InvalidTransactionException, RemoteException {
+        throw new RemoteException("The TM commits each partition of RM " + rmName + " on its own");
+    }
+
+    @Override
+    public Boolean committedOnePhase(int xid) throws RemoteException {
+        throw new RemoteException("The TM asks each partition of RM " + rmName + " on its own");
+    }
+
+    @Override
+    public void abort(int xid) throws InvalidTransactionException, RemoteException {
+        throw new RemoteException("The TM aborts each partition of RM " + rmName + " on its own");
+    }
+
+    @Override
+    public void setRMDieTime(RMDieTime dieTime) throws RemoteException {
+        for (ResourceManager<T> partition : partitions) {
+            partition.setRMDieTime(dieTime);
+        }
+    }
+
+    @Override
+    public void dieNow() throws RemoteException {
+        RemoteException failure = null;
+        for (ResourceManager<T> partition : partitions) {
+            try {
+                partition.dieNow();
+            } catch (RemoteException e) {
+                // a dying RM may drop the call
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public String getRMIName() throws RemoteException {
+        return rmName;
+    }
+
+    private static class Cursor {
+        final int xid;
+        final int[] partCursorIds;
+        /**
+         * the partition the next items come from
+         */
+        int partition = 0;
+
+        Cursor(int xid, int[] partCursorIds) {
+            this.xid = xid;
+            this.partCursorIds = partCursorIds;
+        }
+    }
+}
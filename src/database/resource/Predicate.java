@@ -0,0 +1,233 @@
+package database.resource;
+
+import database.entity.ResourceItem;
+import database.exception.InvalidIndexException;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A filter on the columns of {@link ResourceItem#getColumnNames}, sent to the RM so it only returns the
+ * items that match, see {@link ResourceManager#query(int, String, Predicate, String, int)}.
+ * <p>
+ * EQ compares the column value as a string, LT, LE, GT and GE compare numeric columns and never match
+ * other columns.
+ */
+public class Predicate implements Serializable {
+
+    public enum Type {
+        ALL, EQ, LT, LE, GT, GE, AND, OR, NOT
+    }
+
+    private final Type type;
+
+    private final String columnName;
+
+    private final String value;
+
+    private final List<Predicate> operands;
+
+    private Predicate(Type type, String columnName, String value, List<Predicate> operands) {
+        this.type = type;
+        this.columnName = columnName;
+        this.value = value;
+        this.operands = operands;
+    }
+
+    public static Predicate all() {
+        return new Predicate(Type.ALL, null, null, Collections.emptyList());
+    }
+
+    public static Predicate eq(String columnName, Object value) {
+        return new Predicate(Type.EQ, columnName, String.valueOf(value), Collections.emptyList());
+    }
+
+    public static Predicate lt(String columnName, int value) {
+        return new Predicate(Type.LT, columnName, String.valueOf(value), Collections.emptyList());
+    }
+
+    public static Predicate le(String columnName, int value) {
+        return new Predicate(Type.LE, columnName, String.valueOf(value), Collections.emptyList());
+    }
+
+    public static Predicate gt(String columnName, int value) {
+        return new Predicate(Type.GT, columnName, String.valueOf(value), Collections.emptyList());
+    }
+
+    public static Predicate ge(String columnName, int value) {
+        return new Predicate(Type.GE, columnName, String.valueOf(value), Collections.emptyList());
+    }
+
+    public static Predicate and(Predicate... operands) {
+        return new Predicate(Type.AND, null, null, Arrays.asList(operands));
+    }
+
+    public static Predicate or(Predicate... operands) {
+        return new Predicate(Type.OR, null, null, Arrays.asList(operands));
+    }
+
+    public static Predicate not(Predicate operand) {
+        return new Predicate(Type.NOT, null, null, Collections.singletonList(operand));
+    }
+
+    public boolean test(ResourceItem item) {
+        switch (type) {
+            case ALL:
+                return true;
+            case EQ:
+                return value.equals(columnValue(item, columnName));
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+                int column;
+                try {
+                    column = item.getIntColumn(columnName);
+                } catch (InvalidIndexException e) {
+                    return false;
+                }
+                int bound = Integer.parseInt(value);
+                switch (type) {
+                    case LT:
+                        return column < bound;
+                    case LE:
+                        return column <= bound;
+                    case GT:
+                        return column > bound;
+                    default:
+                        return column >= bound;
+                }
+            case AND:
+                for (Predicate operand : operands) {
+                    if (!operand.test(item)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (Predicate operand : operands) {
+                    if (operand.test(item)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT:
+                return !operands.get(0).test(item);
+            default:
+                throw new IllegalStateException("Unknown predicate " + type);
+        }
+    }
+
+    /**
+     * The range a numeric column must be in for this predicate to match, from the comparisons on it
+     * that are ANDed at the top. An index on the column only needs to be scanned over this range.
+     *
+     * @return {lowest, highest}, Integer.MIN_VALUE and Integer.MAX_VALUE if not bounded
+     */
+    int[] bounds(String columnName) {
+        int[] bounds = {Integer.MIN_VALUE, Integer.MAX_VALUE};
+        narrow(columnName, bounds);
+        return bounds;
+    }
+
+    /**
+     * The value a column must have for this predicate to match, from an EQ on it that is ANDed at the
+     * top. A hash index on the column then only has to look up this value.
+     *
+     * @return the value as in getColumnValues(), null if there is no such EQ
+     */
+    String equalTo(String columnName) {
+        if (type == Type.AND) {
+            for (Predicate operand : operands) {
+                String value = operand.equalTo(columnName);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+        return type == Type.EQ && columnName.equals(this.columnName) ? value : null;
+    }
+
+    private void narrow(String columnName, int[] bounds) {
+        if (type == Type.AND) {
+            for (Predicate operand : operands) {
+                operand.narrow(columnName, bounds);
+            }
+            return;
+        }
+        if (!columnName.equals(this.columnName)) {
+            return;
+        }
+        int v;
+        try {
+            v = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        switch (type) {
+            case EQ:
+                bounds[0] = Math.max(bounds[0], v);
+                bounds[1] = Math.min(bounds[1], v);
+                break;
+            case LT:
+                bounds[1] = Math.min(bounds[1], v == Integer.MIN_VALUE ? v : v - 1);
+                break;
+            case LE:
+                bounds[1] = Math.min(bounds[1], v);
+                break;
+            case GT:
+                bounds[0] = Math.max(bounds[0], v == Integer.MAX_VALUE ? v : v + 1);
+                break;
+            case GE:
+                bounds[0] = Math.max(bounds[0], v);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the value of a column as in getColumnValues(), null if the item has no such column
+     */
+    static String columnValue(ResourceItem item, String columnName) {
+        String[] names = item.getColumnNames();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(columnName)) {
+                return item.getColumnValues()[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * ascending order of a column, numeric if the column is numeric, by string value otherwise
+     */
+    static <T extends ResourceItem> Comparator<T> order(String columnName) {
+        return (a, b) -> {
+            try {
+                return Integer.compare(a.getIntColumn(columnName), b.getIntColumn(columnName));
+            } catch (InvalidIndexException e) {
+                return Comparator.<String>nullsFirst(Comparator.naturalOrder())
+                        .compare(columnValue(a, columnName), columnValue(b, columnName));
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case ALL:
+                return "ALL";
+            case AND:
+            case OR:
+            case NOT:
+                return type + operands.toString();
+            default:
+                return columnName + " " + type + " " + value;
+        }
+    }
+}
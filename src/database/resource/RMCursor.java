@@ -0,0 +1,74 @@
+package database.resource;
+
+import database.entity.ResourceItem;
+import database.exception.DeadlockException;
+import database.exception.InvalidTransactionException;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the items of a table through a cursor on the RM, fetchSize items per call, so neither side
+ * holds the whole table at once. Close it to stop early, an exhausted cursor is already closed.
+ */
+public class RMCursor<T extends ResourceItem> implements AutoCloseable {
+    public static final int DEFAULT_FETCH_SIZE = 256;
+
+    private final ResourceManager<T> rm;
+    private final int xid;
+    private final int cursorId;
+    private final int fetchSize;
+    private List<T> batch = new ArrayList<>();
+    private int next = 0;
+    private boolean exhausted = false;
+
+    private RMCursor(ResourceManager<T> rm, int xid, int cursorId, int fetchSize) {
+        this.rm = rm;
+        this.xid = xid;
+        this.cursorId = cursorId;
+        this.fetchSize = fetchSize;
+    }
+
+    public static <T extends ResourceItem> RMCursor<T> open(ResourceManager<T> rm, int xid, String tableName) throws DeadlockException, InvalidTransactionException, RemoteException {
+        return open(rm, xid, tableName, DEFAULT_FETCH_SIZE);
+    }
+
+    public static <T extends ResourceItem> RMCursor<T> open(ResourceManager<T> rm, int xid, String tableName, int fetchSize) throws DeadlockException, InvalidTransactionException, RemoteException {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("fetchSize must be positive");
+        }
+        return new RMCursor<>(rm, xid, rm.openCursor(xid, tableName), fetchSize);
+    }
+
+    public boolean hasNext() throws DeadlockException, InvalidTransactionException, RemoteException {
+        if (next < batch.size()) {
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+        batch = rm.fetch(xid, cursorId, fetchSize);
+        next = 0;
+        // a short batch is the last one, the RM has closed the cursor
+        exhausted = batch.size() < fetchSize;
+        return !batch.isEmpty();
+    }
+
+    public T next() throws DeadlockException, InvalidTransactionException, RemoteException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.get(next++);
+    }
+
+    @Override
+    public void close() throws RemoteException {
+        if (!exhausted) {
+            exhausted = true;
+            rm.closeCursor(xid, cursorId);
+        }
+        batch = new ArrayList<>();
+    }
+}
@@ -0,0 +1,112 @@
+package database.resource;
+
+import database.entity.ResourceItem;
+import database.transport.Transport;
+import database.utils.PropUtil;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Partitioning of a RM's tables by item key.
+ * <p>
+ * A RM runs as &lt;name&gt;.partitions processes, partition 0 is bound as &lt;name&gt; on &lt;name&gt;.port and
+ * partition i as &lt;name&gt;.i on &lt;name&gt;.i.port, each with its own data dir. Keys are spread over the
+ * partitions with consistent hashing. The partition count is fixed once the tables hold data: nothing
+ * moves the keys a new partition would take over, so changing it means loading the tables again, see
+ * ResourceManager.load(). Each partition enlists with the TM on its own, so every partition a trxn touches takes part in 2PC.
+ */
+public class RMPartitions {
+    /**
+     * points of each partition on the hash ring, more points spread the keys more evenly
+     */
+    private static final int POINTS_PER_PARTITION = 64;
+
+    public static int count(String rmName) {
+        return Integer.parseInt(PropUtil.getProperty(rmName + ".partitions", "1"));
+    }
+
+    /**
+     * @return the name partition @partition of RM @rmName is bound to, also the name it enlists with
+     */
+    public static String name(String rmName, int partition) {
+        return partition == 0 ? rmName : rmName + "." + partition;
+    }
+
+    /**
+     * @return the RM partition @name belongs to, the inverse of name()
+     */
+    static String rmName(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && name.substring(dot + 1).matches("\\d+") ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * @return the partition @name is, the inverse of name()
+     */
+    static int partition(String name) {
+        String rmName = rmName(name);
+        return rmName.equals(name) ? 0 : Integer.parseInt(name.substring(rmName.length() + 1));
+    }
+
+    /**
+     * the hash ring of @partitions partitions, from the hash of a point to its partition
+     */
+    static TreeMap<Integer, Integer> ring(String rmName, int partitions) {
+        TreeMap<Integer, Integer> ring = new TreeMap<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            for (int point = 0; point < POINTS_PER_PARTITION; point++) {
+                ring.put(hash(name(rmName, partition) + "#" + point), partition);
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * @return the partition on @ring that owns @key
+     */
+    static int partitionOf(TreeMap<Integer, Integer> ring, Object key) {
+        Map.Entry<Integer, Integer> owner = ring.ceilingEntry(hash(String.valueOf(key)));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * the same on every JVM, unlike the hashCode of keys holding an enum
+     */
+    private static int hash(String s) {
+        // murmur3 finalizer, spreads the nearby hash codes of similar strings over the ring
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * look up all partitions of RM @rmName
+     *
+     * @return the RM itself if it has a single partition, else a RM that routes each call to its partitions
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends ResourceItem> ResourceManager<T> lookup(String rmName) throws Exception {
+        int count = count(rmName);
+        ResourceManager<T>[] partitions = (ResourceManager<T>[]) new ResourceManager<?>[count];
+        for (int partition = 0; partition < count; partition++) {
+            String name = name(rmName, partition);
+            partitions[partition] = Transport.lookup(ResourceManager.class, PropUtil.getRmiPort(name), name);
+        }
+        return count == 1 ? partitions[0] : new PartitionedResourceManager<>(rmName, partitions);
+    }
+
+    /**
+     * Forget what @rm keeps on the caller's side for trxn @xid once it has committed or aborted,
+     * only a RM looked up with several partitions keeps something.
+     */
+    public static void endTrxn(ResourceManager<?> rm, int xid) {
+        if (rm instanceof PartitionedResourceManager) {
+            ((PartitionedResourceManager<?>) rm).dropCursors(xid);
+        }
+    }
+}
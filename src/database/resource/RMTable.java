@@ -1,13 +1,23 @@
 package database.resource;
 
+import database.exception.InvalidIndexException;
 import database.lockmgr.LockManager;
 import database.exception.DeadlockException;
 import database.entity.ResourceItem;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class RMTable<T extends ResourceItem> implements Serializable {
 
@@ -17,12 +27,70 @@ public class RMTable<T extends ResourceItem> implements Serializable {
 
     private Hashtable<Object, Integer> locks = new Hashtable<>();
 
+    /**
+     * this trxn table holds locks it didn't hold when it was last written to disk, see lock()
+     */
+    private transient boolean unsavedLocks = false;
+
     private transient LockManager lm;
 
     private String tableName;
 
+    /**
+     * pending counter changes of this trxn, applied on top of the parent item (key -> column -> delta)
+     */
+    private Hashtable<Object, Hashtable<String, Integer>> deltas = new Hashtable<>();
+
+    /**
+     * amounts this trxn has reserved against the parent's escrow (key:column -> amount)
+     */
+    private Hashtable<String, Integer> reserved = new Hashtable<>();
+
+    /**
+     * the counters this trxn has lowered by an increment that can't fail, checked at prepare (key -> columns)
+     */
+    private Hashtable<Object, Set<String>> lowered = new Hashtable<>();
+
+    /**
+     * total amounts reserved by all in-flight trxns, only used on the main table (key:column -> amount)
+     */
+    private transient Hashtable<String, Integer> escrowed;
+
+    /**
+     * indexes on numeric columns, only kept for the main table and rebuilt when it loads (column -> value -> keys)
+     */
+    private transient Map<String, TreeMap<Integer, Set<Object>>> indexes;
+
+    /**
+     * indexes on columns looked up by equality, only kept for the main table and rebuilt when it loads
+     * (column -> value as in getColumnValues() -> keys)
+     */
+    private transient Map<String, Map<String, Set<Object>>> hashIndexes;
+
+    /**
+     * the indexed columns while a load has dropped the indexes, see load()
+     */
+    private transient List<String> loadIndexes;
+    private transient List<String> loadHashIndexes;
+
+    /**
+     * where the items of a paged main table are, null if they are in @table
+     */
+    private transient PageStore<T> store;
+
+    /**
+     * the keys of this main table by their string form, built the first time a cursor walks the table,
+     * see keysAfter()
+     */
+    private transient TreeMap<String, Object> sortedKeys;
+
     protected int xid;
 
+    /**
+     * the commit of this trxn table has turned its deltas into whole items, see mergeDeltas()
+     */
+    private boolean merged = false;
+
     public RMTable(String tableName, RMTable<T> parent, int xid, LockManager lm) {
         this.xid = xid;
         this.tableName = tableName;
@@ -42,6 +110,39 @@ public class RMTable<T extends ResourceItem> implements Serializable {
         return tableName;
     }
 
+    /**
+     * Keep the items of this main table in @store instead of on the heap.
+     */
+    public void setStore(PageStore<T> store) {
+        this.store = store;
+    }
+
+    public boolean isPaged() {
+        return store != null;
+    }
+
+    /**
+     * Stop using the pages of a paged main table, e.g. before its file is replaced.
+     */
+    public void close() throws IOException {
+        store.close();
+    }
+
+    /**
+     * Write the pages of a paged main table to disk.
+     *
+     * @return false if they can't be written
+     */
+    public boolean flush() {
+        try {
+            store.force();
+            return true;
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     public void relockAll() throws DeadlockException {
         for (Map.Entry<Object, Integer> entry : locks.entrySet()) {
             if (!lm.lock(xid, tableName + ":" + entry.getKey().toString(), entry.getValue())) {
@@ -54,31 +155,564 @@ public class RMTable<T extends ResourceItem> implements Serializable {
         if (!lm.lock(xid, tableName + ":" + key.toString(), lockType)) {
             throw new RuntimeException();
         }
-        locks.put(key, lockType);
+        // mixing lock modes on one item ends up as a WRITE lock in the lock manager
+        Integer held = locks.get(key);
+        Integer now = held == null || held == lockType ? lockType : LockManager.WRITE;
+        if (!now.equals(held)) {
+            locks.put(key, now);
+            unsavedLocks = true;
+        }
+    }
+
+    /**
+     * @return true if this trxn table took locks since it was last written to disk
+     */
+    public boolean hasUnsavedLocks() {
+        return unsavedLocks;
+    }
+
+    /**
+     * Called once this trxn table has been written to disk.
+     */
+    public void saved() {
+        unsavedLocks = false;
     }
 
     public T get(Object key) {
-        T item = table.get(key);
+        T item = row(key);
         if (item == null && parent != null) {
             item = parent.get(key);
+            Hashtable<String, Integer> itemDeltas = deltas.get(key);
+            if (item != null && itemDeltas != null) {
+                item = copy(item);
+                for (Map.Entry<String, Integer> entry : itemDeltas.entrySet()) {
+                    try {
+                        item.setIntColumn(entry.getKey(), item.getIntColumn(entry.getKey()) + entry.getValue());
+                    } catch (InvalidIndexException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
         }
         return item;
     }
 
     public void put(T item) {
-        table.put(item.getKey(), item);
+        T old = putRow(item);
+        unindex(old);
+        index(item);
+        // the new item already contains the pending counter changes of this trxn
+        deltas.remove(item.getKey());
     }
 
     public void remove(T item) {
-        table.remove(item.getKey());
+        unindex(removeRow(item.getKey()));
+    }
+
+    private T row(Object key) {
+        return store == null ? table.get(key) : store.get(key);
+    }
+
+    /**
+     * @return the item replaced, only looked up in a paged table if it has to be unindexed
+     */
+    private T putRow(T item) {
+        if (sortedKeys != null) {
+            sortedKeys.put(item.getKey().toString(), item.getKey());
+        }
+        if (store == null) {
+            return table.put(item.getKey(), item);
+        }
+        T old = indexes == null && hashIndexes == null ? null : store.get(item.getKey());
+        store.put(item);
+        return old;
+    }
+
+    private T removeRow(Object key) {
+        if (sortedKeys != null) {
+            sortedKeys.remove(key.toString());
+        }
+        if (store == null) {
+            return table.remove(key);
+        }
+        T old = indexes == null && hashIndexes == null ? null : store.get(key);
+        store.remove(key);
+        return old;
+    }
+
+    private Collection<Object> rowKeys() {
+        return store == null ? table.keySet() : store.keys();
+    }
+
+    private Iterable<T> rows() {
+        return store == null ? table.values() : store.values();
+    }
+
+    /**
+     * Put a batch of items into this main table. The first batch drops the indexes, endLoad() rebuilds
+     * them once after the last.
+     */
+    public synchronized void load(List<T> batch) {
+        if (indexes != null) {
+            loadIndexes = new ArrayList<>(indexes.keySet());
+            indexes = null;
+        }
+        if (hashIndexes != null) {
+            loadHashIndexes = new ArrayList<>(hashIndexes.keySet());
+            hashIndexes = null;
+        }
+        for (T item : batch) {
+            putRow(item);
+        }
+    }
+
+    public synchronized void endLoad() {
+        if (loadIndexes != null) {
+            setIndexes(loadIndexes);
+            loadIndexes = null;
+        }
+        if (loadHashIndexes != null) {
+            setHashIndexes(loadHashIndexes);
+            loadHashIndexes = null;
+        }
+    }
+
+    /**
+     * Index the numeric @columns of this main table, so queries that filter or order on them don't
+     * scan the whole table.
+     */
+    public synchronized void setIndexes(List<String> columns) {
+        indexes = new HashMap<>();
+        for (String column : columns) {
+            indexes.put(column, new TreeMap<>());
+        }
+        for (T item : rows()) {
+            index(item);
+        }
+    }
+
+    /**
+     * Index @columns of this main table by value, so queries that ask for one value of them don't
+     * scan the whole table, e.g. the holders of a reservation.
+     */
+    public synchronized void setHashIndexes(List<String> columns) {
+        hashIndexes = new HashMap<>();
+        for (String column : columns) {
+            hashIndexes.put(column, new HashMap<>());
+        }
+        for (T item : rows()) {
+            hashIndex(item);
+        }
+    }
+
+    private void index(T item) {
+        hashIndex(item);
+        if (indexes == null || item == null) {
+            return;
+        }
+        for (Map.Entry<String, TreeMap<Integer, Set<Object>>> entry : indexes.entrySet()) {
+            try {
+                entry.getValue().computeIfAbsent(item.getIntColumn(entry.getKey()), v -> new HashSet<>()).add(item.getKey());
+            } catch (InvalidIndexException ignored) {
+                // not a column of this item
+            }
+        }
+    }
+
+    private void hashIndex(T item) {
+        if (hashIndexes == null || item == null) {
+            return;
+        }
+        for (Map.Entry<String, Map<String, Set<Object>>> entry : hashIndexes.entrySet()) {
+            String value = Predicate.columnValue(item, entry.getKey());
+            if (value != null) {
+                entry.getValue().computeIfAbsent(value, v -> new HashSet<>()).add(item.getKey());
+            }
+        }
+    }
+
+    private void unindex(T item) {
+        if (hashIndexes != null && item != null) {
+            for (Map.Entry<String, Map<String, Set<Object>>> entry : hashIndexes.entrySet()) {
+                String value = Predicate.columnValue(item, entry.getKey());
+                Set<Object> keys = value == null ? null : entry.getValue().get(value);
+                if (keys != null) {
+                    keys.remove(item.getKey());
+                    if (keys.isEmpty()) {
+                        entry.getValue().remove(value);
+                    }
+                }
+            }
+        }
+        if (indexes == null || item == null) {
+            return;
+        }
+        for (Map.Entry<String, TreeMap<Integer, Set<Object>>> entry : indexes.entrySet()) {
+            try {
+                int value = item.getIntColumn(entry.getKey());
+                Set<Object> keys = entry.getValue().get(value);
+                if (keys != null) {
+                    keys.remove(item.getKey());
+                    if (keys.isEmpty()) {
+                        entry.getValue().remove(value);
+                    }
+                }
+            } catch (InvalidIndexException ignored) {
+                // not a column of this item
+            }
+        }
+    }
+
+    /**
+     * The items this trxn sees that match @where, without locking them.
+     * <p>
+     * The items this trxn has changed are checked one by one. The others are read from the main
+     * table, through an index on @orderBy or on a column @where bounds if there is one. Walking the
+     * index on @orderBy stops after @limit matches.
+     *
+     * @param orderBy column to sort by ascending, null for any order
+     * @param limit   at most this many items, <= 0 for all
+     * @param skip    keys to leave out, e.g. those a caller has already looked at
+     */
+    public List<T> select(Predicate where, String orderBy, int limit, Set<Object> skip) {
+        List<T> result = new ArrayList<>();
+        Set<Object> own = ownKeys();
+        for (Object key : own) {
+            T item = skip.contains(key) ? null : get(key);
+            if (item != null && !item.isDeleted() && where.test(item)) {
+                result.add(item);
+            }
+        }
+        if (parent != null) {
+            own.addAll(skip);
+            synchronized (parent) {
+                parent.select(where, orderBy, limit, own, result);
+            }
+        }
+        if (orderBy != null) {
+            result.sort(Predicate.order(orderBy));
+        }
+        return limit > 0 && result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * add the items of this main table that match @where to @result, leaving out the keys in @skip
+     */
+    private void select(Predicate where, String orderBy, int limit, Set<Object> skip, List<T> result) {
+        // a value asked for on a hash indexed column narrows the items down the most
+        if (hashIndexes != null) {
+            for (Map.Entry<String, Map<String, Set<Object>>> entry : hashIndexes.entrySet()) {
+                String value = where.equalTo(entry.getKey());
+                if (value == null) {
+                    continue;
+                }
+                for (Object key : entry.getValue().getOrDefault(value, Collections.emptySet())) {
+                    T item = row(key);
+                    if (!skip.contains(key) && item != null && !item.isDeleted() && where.test(item)) {
+                        result.add(item);
+                    }
+                }
+                return;
+            }
+        }
+
+        String column = null;
+        if (indexes != null && orderBy != null && indexes.containsKey(orderBy)) {
+            column = orderBy;
+        } else if (indexes != null) {
+            for (String indexed : indexes.keySet()) {
+                int[] bounds = where.bounds(indexed);
+                if (bounds[0] != Integer.MIN_VALUE || bounds[1] != Integer.MAX_VALUE) {
+                    column = indexed;
+                    break;
+                }
+            }
+        }
+
+        if (column == null) {
+            for (T item : rows()) {
+                if (!skip.contains(item.getKey()) && !item.isDeleted() && where.test(item)) {
+                    result.add(item);
+                }
+            }
+            return;
+        }
+
+        int[] bounds = where.bounds(column);
+        if (bounds[0] > bounds[1]) {
+            return;
+        }
+        // in index order, the first @limit matches are the smallest ones of this table
+        boolean ordered = column.equals(orderBy) && limit > 0;
+        int found = 0;
+        for (Set<Object> keys : indexes.get(column).subMap(bounds[0], true, bounds[1], true).values()) {
+            for (Object key : keys) {
+                T item = row(key);
+                if (skip.contains(key) || item == null || item.isDeleted() || !where.test(item)) {
+                    continue;
+                }
+                result.add(item);
+                if (ordered && ++found >= limit) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add delta to a numeric column without needing the exact value.
+     * The increment only becomes visible to other trxns on commit. A negative delta never fails, it is
+     * reserved like a decrement so other trxns can't count on it, and overdrawn() checks it at prepare.
+     *
+     * @return false if the item does not exist
+     */
+    public boolean increment(Object key, String columnName, int delta) throws InvalidIndexException {
+        if (delta < 0) {
+            lowered.computeIfAbsent(key, k -> new HashSet<>()).add(columnName);
+        }
+        T own = table.get(key);
+        if (own != null) {
+            // this trxn already holds a full copy under a WRITE lock
+            if (own.isDeleted()) {
+                return false;
+            }
+            T item = copy(own);
+            item.setIntColumn(columnName, own.getIntColumn(columnName) + delta);
+            table.put(key, item);
+            return true;
+        }
+        synchronized (parent) {
+            T item = parent.get(key);
+            if (item == null || item.isDeleted()) {
+                return false;
+            }
+            item.getIntColumn(columnName);
+            addDelta(key, columnName, delta);
+
+            String escrowKey = escrowKey(key, columnName);
+            if (delta < 0) {
+                reserved.merge(escrowKey, -delta, Integer::sum);
+                parent.escrowed().merge(escrowKey, -delta, Integer::sum);
+                return true;
+            }
+            // giving back what this trxn decremented before also releases the reservation
+            int release = Math.min(delta, reserved.getOrDefault(escrowKey, 0));
+            if (release > 0) {
+                reserved.merge(escrowKey, -release, Integer::sum);
+                parent.escrowed().merge(escrowKey, -release, Integer::sum);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Subtract amount (>= 0) from a numeric column if the column stays non-negative
+     * even when every other in-flight decrement commits.
+     *
+     * @return false if the item does not exist or not enough is available
+     */
+    public boolean decrementIfAtLeast(Object key, String columnName, int amount) throws InvalidIndexException {
+        T own = table.get(key);
+        if (own != null) {
+            // this trxn already holds a full copy under a WRITE lock
+            if (own.isDeleted() || own.getIntColumn(columnName) < amount) {
+                return false;
+            }
+            T item = copy(own);
+            item.setIntColumn(columnName, own.getIntColumn(columnName) - amount);
+            table.put(key, item);
+            return true;
+        }
+        synchronized (parent) {
+            T item = parent.get(key);
+            if (item == null || item.isDeleted()) {
+                return false;
+            }
+            String escrowKey = escrowKey(key, columnName);
+            int available = item.getIntColumn(columnName) - parent.escrowed().getOrDefault(escrowKey, 0);
+            if (available < amount) {
+                return false;
+            }
+            addDelta(key, columnName, -amount);
+            reserved.merge(escrowKey, amount, Integer::sum);
+            parent.escrowed().merge(escrowKey, amount, Integer::sum);
+            return true;
+        }
+    }
+
+    /**
+     * @return true if a counter this trxn lowered would end up negative if every decrement in flight
+     * commits, the trxn must not commit then
+     */
+    public boolean overdrawn() throws InvalidIndexException {
+        for (Map.Entry<Object, Set<String>> entry : lowered.entrySet()) {
+            Object key = entry.getKey();
+            T own = table.get(key);
+            for (String columnName : entry.getValue()) {
+                if (own != null) {
+                    // under a WRITE lock the copy is the value the commit writes
+                    if (!own.isDeleted() && own.getIntColumn(columnName) < 0) {
+                        return true;
+                    }
+                    continue;
+                }
+                synchronized (parent) {
+                    T item = parent.get(key);
+                    if (item != null && !item.isDeleted()
+                            && item.getIntColumn(columnName) < parent.escrowed().getOrDefault(escrowKey(key, columnName), 0)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A trxn table is read-only if the trxn neither wrote an item nor changed a counter in it.
+     */
+    public boolean isReadOnly() {
+        return table.isEmpty() && deltas.isEmpty() && reserved.isEmpty();
+    }
+
+    /**
+     * Give back everything this trxn reserved against the parent, called on commit and abort.
+     */
+    public void releaseEscrow() {
+        if (parent == null) {
+            return;
+        }
+        synchronized (parent) {
+            for (Map.Entry<String, Integer> entry : reserved.entrySet()) {
+                parent.escrowed().merge(entry.getKey(), -entry.getValue(), Integer::sum);
+            }
+            reserved.clear();
+        }
+    }
+
+    /**
+     * Turn the pending counter changes of this trxn into whole items computed on the parent's items as
+     * they are now, and give back the reservations. Applying the table to the parent again, when a
+     * commit is replayed after a crash, then writes the same items instead of adding the deltas twice.
+     * Called holding the parent at the start of a commit.
+     */
+    public void mergeDeltas() {
+        for (Object key : new ArrayList<>(deltas.keySet())) {
+            T item = get(key);
+            if (item != null) {
+                table.put(key, item);
+            }
+            deltas.remove(key);
+        }
+        releaseEscrow();
+        merged = true;
+    }
+
+    public boolean isMerged() {
+        return merged;
+    }
+
+    /**
+     * Re-register the reservations of a trxn table loaded from disk with its parent.
+     */
+    public void restoreEscrow() {
+        if (parent == null) {
+            return;
+        }
+        synchronized (parent) {
+            for (Map.Entry<String, Integer> entry : reserved.entrySet()) {
+                parent.escrowed().merge(entry.getKey(), entry.getValue(), Integer::sum);
+            }
+        }
+    }
+
+    private Hashtable<String, Integer> escrowed() {
+        if (escrowed == null) {
+            escrowed = new Hashtable<>();
+        }
+        return escrowed;
+    }
+
+    private void addDelta(Object key, String columnName, int delta) {
+        deltas.computeIfAbsent(key, k -> new Hashtable<>()).merge(columnName, delta, Integer::sum);
+    }
+
+    private static String escrowKey(Object key, String columnName) {
+        return key.toString() + ":" + columnName;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T copy(T item) {
+        try {
+            return (T) item.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public Set<Object> keySet() {
-        Hashtable<Object, T> t = new Hashtable<>();
+        Set<Object> keys = new HashSet<>(rowKeys());
         if (parent != null) {
-            t.putAll(parent.table);
+            keys.addAll(parent.rowKeys());
+        }
+        return keys;
+    }
+
+    /**
+     * The first @n keys visible to this trxn that come after @after, in the order of their string form,
+     * so a cursor can go on from the last key it returned without holding on to the other keys.
+     *
+     * @param after the string form of the last key returned, null to start from the first key
+     */
+    public List<Object> keysAfter(String after, int n) {
+        TreeMap<String, Object> next = new TreeMap<>();
+        if (parent == null) {
+            addKeysAfter(after, n, next);
+        } else {
+            for (Object key : table.keySet()) {
+                if (after == null || key.toString().compareTo(after) > 0) {
+                    next.put(key.toString(), key);
+                }
+            }
+            synchronized (parent) {
+                parent.addKeysAfter(after, n, next);
+            }
         }
-        t.putAll(table);
-        return t.keySet();
+        List<Object> keys = new ArrayList<>(n);
+        for (Object key : next.values()) {
+            if (keys.size() == n) {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * add the first @n keys of this main table after @after to @next
+     */
+    private void addKeysAfter(String after, int n, TreeMap<String, Object> next) {
+        if (sortedKeys == null) {
+            sortedKeys = new TreeMap<>();
+            for (Object key : rowKeys()) {
+                sortedKeys.put(key.toString(), key);
+            }
+        }
+        int added = 0;
+        for (Map.Entry<String, Object> entry : (after == null ? sortedKeys : sortedKeys.tailMap(after, false)).entrySet()) {
+            if (added++ == n) {
+                break;
+            }
+            next.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * the keys of the items this trxn wrote or changed a counter of, it sees the others as they are in the parent
+     */
+    public Set<Object> ownKeys() {
+        Set<Object> keys = new HashSet<>(table.keySet());
+        keys.addAll(deltas.keySet());
+        return keys;
     }
 }
\ No newline at end of file
@@ -1,12 +1,13 @@
 package database.resource;
 
 import database.entity.Reservation;
+import database.entity.ReservationType;
+import database.transport.Transport;
 import database.utils.PropUtil;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
 import java.util.Properties;
 
 /**
@@ -16,22 +17,28 @@ public class ReservationResourceManager extends ResourceManagerImpl<Reservation>
 
     private ReservationResourceManager() throws RemoteException {
         super();
-        myRMIName = RMI_NAME_RM_RESERVATIONS;
+    }
+
+    @Override
+    protected Reservation parse(String[] columns) {
+        return new Reservation(columns[0], ReservationType.valueOf(columns[1]), columns[2]);
     }
 
     public static void main(String[] args) {
-        myRMIName = RMI_NAME_RM_RESERVATIONS;
+        // the partition of this RM, 0 unless given
+        int partition = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        myRMIName = RMPartitions.name(RMI_NAME_RM_RESERVATIONS, partition);
 
         String rmiPort = PropUtil.getRmiPort(myRMIName);
         try {
-            _rmiRegistry = LocateRegistry.createRegistry(Integer.parseInt(rmiPort));
+            Transport.listen(rmiPort);
         } catch (RemoteException e2) {
             e2.printStackTrace();
             return;
         }
         try {
             ReservationResourceManager reservationResourceManager = new ReservationResourceManager();
-            _rmiRegistry.bind(myRMIName, reservationResourceManager);
+            Transport.bind(rmiPort, myRMIName, reservationResourceManager);
             System.out.println(myRMIName + " bound");
         } catch (Exception e) {
             System.err.println(myRMIName + " not bound:" + e);
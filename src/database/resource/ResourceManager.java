@@ -7,6 +7,7 @@ import database.exception.InvalidTransactionException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface for the Resource Manager of the Distributed Travel
@@ -24,7 +25,15 @@ public interface ResourceManager<T extends ResourceItem> extends Remote {
     public static final String RMI_NAME_RM_RESERVATIONS = "rm.reservations";
 
     public enum RMDieTime {
-        BeforeCommit, BeforePrepare, AfterPrepare, AfterEnlist, BeforeAbort, Never
+        BeforeCommit, AfterStore, BeforePrepare, AfterPrepare, AfterEnlist, BeforeAbort, Never
+    }
+
+    /**
+     * Vote of a RM in phase 1 of 2PC. A READ_ONLY participant has already released the trxn
+     * and takes no part in phase 2.
+     */
+    public enum Vote {
+        YES, NO, READ_ONLY
     }
 
     boolean testConnection() throws RemoteException;
@@ -33,16 +42,121 @@ public interface ResourceManager<T extends ResourceItem> extends Remote {
 
     T query(int xid, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException;
 
+    /**
+     * Query the items of a table that match a predicate, filtered and sorted on the RM. Only the items
+     * returned are read-locked, an item that stops matching while waiting for its lock is left out.
+     *
+     * @param orderBy column to sort by ascending, null for any order
+     * @param limit   at most this many items, <= 0 for all
+     */
+    List<T> query(int xid, String tableName, Predicate where, String orderBy, int limit) throws DeadlockException, InvalidTransactionException, RemoteException;
+
     boolean update(int xid, String tableName, Object key, T newItem) throws DeadlockException, InvalidTransactionException, RemoteException;
 
     boolean insert(int xid, String tableName, T newItem) throws DeadlockException, InvalidTransactionException, RemoteException;
 
     boolean delete(int xid, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException;
 
-    boolean prepare(int xid) throws InvalidTransactionException, RemoteException;
+    /**
+     * Escrow increment of a numeric column. Only conflicts with trxns that read or write the exact item,
+     * not with other increments/decrements. A negative delta may take the column below zero within the
+     * trxn, the RM then votes NO at prepare unless it is back at zero or above whatever the other
+     * in-flight trxns decide.
+     *
+     * @return false if the item does not exist or the column is not numeric
+     */
+    boolean increment(int xid, String tableName, Object key, String columnName, int delta) throws DeadlockException, InvalidTransactionException, RemoteException;
+
+    /**
+     * Escrow decrement of a numeric column, succeeds only if the column stays non-negative
+     * whatever the other in-flight trxns decide.
+     *
+     * @return false if the item does not exist, the column is not numeric, amount < 0 or not enough is available
+     */
+    boolean decrementIfAtLeast(int xid, String tableName, Object key, String columnName, int amount) throws DeadlockException, InvalidTransactionException, RemoteException;
+
+    /**
+     * Check availability and take n units of ResourceItem.NUM_AVAIL in one round trip, using the same
+     * escrow semantics as decrementIfAtLeast.
+     *
+     * @return the item as seen by this trxn after the decrement, null if it does not exist or not enough is available
+     */
+    T decrementAvailable(int xid, String tableName, Object key, int n) throws DeadlockException, InvalidTransactionException, RemoteException;
+
+    /**
+     * Run several operations in one call, with a single enlist and a single write per touched shadow table.
+     *
+     * @return the result of each operation in the same order, see {@link Op}
+     */
+    List<Object> execute(int xid, List<Op<T>> ops) throws DeadlockException, InvalidTransactionException, RemoteException;
+
+    /**
+     * Same as execute, but the caller doesn't wait for the result: the future fails with the exception
+     * execute would throw. Only callable over the nio transport, rmi can't send a future.
+     */
+    CompletableFuture<List<Object>> executeAsync(int xid, List<Op<T>> ops) throws RemoteException;
+
+    /**
+     * Open a cursor over the items of a table on the RM, in the order of the string form of their keys.
+     * Each fetch goes on from the last key returned, the items are read and read-locked as they are
+     * fetched. The cursor is closed when the trxn ends.
+     *
+     * @return the id of the cursor
+     */
+    int openCursor(int xid, String tableName) throws DeadlockException, InvalidTransactionException, RemoteException;
+
+    /**
+     * @return up to fetchSize next items of the cursor, fewer once it is exhausted, which also closes it
+     */
+    List<T> fetch(int xid, int cursorId, int fetchSize) throws DeadlockException, InvalidTransactionException, RemoteException;
+
+    /**
+     * Close a cursor before it is exhausted.
+     */
+    void closeCursor(int xid, int cursorId) throws RemoteException;
+
+    /**
+     * Load the items of a file on the RM's host straight into the main table, outside of any trxn, to
+     * seed a table. The file is either a .csv, one item per line with the columns of getColumnNames()
+     * and an optional header line, or a stream of serialized items. The file is read in batches, no trxn
+     * can use the table until the load is done, and the table is written to disk once at the end. Loaded
+     * items replace those with the same key, a load that fails halfway leaves the table as it was.
+     *
+     * @return the number of items loaded, a partition only loads the items it owns
+     */
+    int load(String tableName, String path) throws RemoteException;
+
+    Vote prepare(int xid) throws InvalidTransactionException, RemoteException;
 
     void commit(int xid) throws InvalidTransactionException, RemoteException;
 
+    /**
+     * Prepare several trxns in one call, an invalid trxn votes NO.
+     *
+     * @return the vote of each trxn in the same order
+     */
+    Vote[] prepareAll(int[] xids) throws RemoteException;
+
+    /**
+     * Commit several trxns in one call.
+     */
+    void commitAll(int[] xids) throws InvalidTransactionException, RemoteException;
+
+    /**
+     * Prepare and commit in one call, used by the TM when this RM is the only participant of the trxn.
+     *
+     * @return true if committed, false if the RM could not prepare and aborted the trxn
+     */
+    boolean commitOnePhase(int xid) throws InvalidTransactionException, RemoteException;
+
+    /**
+     * The outcome of a commitOnePhase() whose reply the TM lost. A trxn still waiting here is aborted
+     * first, so it can't commit after the TM has been told it didn't.
+     *
+     * @return true if committed, false if aborted, null if the RM no longer knows the trxn
+     */
+    Boolean committedOnePhase(int xid) throws RemoteException;
+
     void abort(int xid) throws InvalidTransactionException, RemoteException;
 
     public void setRMDieTime(RMDieTime dieTime) throws RemoteException;
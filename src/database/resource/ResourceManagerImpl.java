@@ -2,20 +2,28 @@ package database.resource;
 
 import database.entity.ResourceItem;
 import database.exception.DeadlockException;
+import database.exception.InvalidIndexException;
 import database.exception.InvalidTransactionException;
 import database.lockmgr.LockManager;
+import database.transaction.TMShards;
 import database.transaction.TransactionManager;
+import database.transport.Transport;
 import database.utils.IOUtil;
+import database.utils.PropUtil;
 
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.rmi.Naming;
+import java.nio.file.StandardCopyOption;
 import java.rmi.RemoteException;
-import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Resource Manager for the Distributed Travel Reservation System.
@@ -27,23 +35,83 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
 
     // todo: perhaps we don't need to record rm's state
     protected final HashSet<Integer> RMTrxnsNeedProcessing;
-    protected static final String RMTrxnsNeedProcessingPath = "data/RMTrxnsNeedProcessing.log";
-    protected static final String DataDir = "data";
+    protected final String RMTrxnsNeedProcessingPath;
+
+    /**
+     * the latest trxns committed by commitOnePhase(), kept on disk so a TM that lost the reply can
+     * still learn the outcome, see committedOnePhase()
+     */
+    private static final int ONE_PHASE_OUTCOMES = 1000;
+    protected final LinkedHashSet<Integer> RMOnePhaseCommitted;
+    protected final String RMOnePhaseCommittedPath;
+
+    /**
+     * held while a one phase commit is decided, so committedOnePhase() can't abort a trxn halfway through it
+     */
+    private final Map<Integer, Object> onePhaseLocks = new ConcurrentHashMap<>();
+    // each RM keeps its tables under its own dir, so a RM never picks up the shadow tables of another RM
+    protected final String DataDir;
+
+    /**
+     * the dir all RMs shared before each got its own, and the table the WC keeps on each RM, see migrateSharedDataDir()
+     */
+    private static final String SharedDataDir = "data";
+    private static final Map<String, String> SharedDataTables = new HashMap<>();
+
+    static {
+        SharedDataTables.put(RMI_NAME_RM_FLIGHTS, "flights");
+        SharedDataTables.put(RMI_NAME_RM_HOTEL, "hotels");
+        SharedDataTables.put(RMI_NAME_RM_CARS, "cars");
+        SharedDataTables.put(RMI_NAME_RM_CUSTOMERS, "customers");
+        SharedDataTables.put(RMI_NAME_RM_RESERVATIONS, "reservations");
+    }
 
-    protected TransactionManager tm = null;
+    /**
+     * the TM shards, a trxn is enlisted with the shard that owns its xid
+     */
+    protected volatile TransactionManager[] tms = null;
+
+    /**
+     * trxns this RM has already enlisted with the TM, only the first operation of a trxn contacts the TM
+     */
+    protected final Set<Integer> enlisted = ConcurrentHashMap.newKeySet();
+
+    /**
+     * trxns used on this RM since the last report to the TM, which aborts trxns that stay inactive
+     */
+    protected final Set<Integer> touched = ConcurrentHashMap.newKeySet();
+
+    /**
+     * open cursors by id, see openCursor()
+     */
+    protected final Map<Integer, Cursor> cursors = new ConcurrentHashMap<>();
+    protected final AtomicInteger nextCursorId = new AtomicInteger();
     protected LockManager lm = new LockManager();
+
+    /**
+     * tables being loaded, no trxn starts using them meanwhile, see load()
+     */
+    private final Set<String> loading = new HashSet<>();
+    /**
+     * trxns opening their shadow table of a table, they do it outside the monitor of @loading and a load
+     * of the table waits for them, see getTable()
+     */
+    private final Map<String, Integer> opening = new HashMap<>();
+    private static final int LOAD_BATCH = 1000;
     // todo: HashTable is not perfect structure perhaps
     protected Hashtable<Integer, Hashtable<String, RMTable<T>>> tables = new Hashtable<>();
 
     protected static String myRMIName; // assign value by subclass such as CarResourceManager
     protected ResourceManager.RMDieTime dieTime;
-    protected static Registry _rmiRegistry = null;
 
     @SuppressWarnings({"BusyWait", "unchecked"})
     public ResourceManagerImpl() throws RemoteException {
         super();
 
         this.dieTime = ResourceManager.RMDieTime.Never;
+        this.DataDir = "data" + File.separator + myRMIName;
+        this.RMTrxnsNeedProcessingPath = DataDir + File.separator + "RMTrxnsNeedProcessing.log";
+        migrateSharedDataDir();
 
         // recover from disk
         Object temp = IOUtil.loadObject(RMTrxnsNeedProcessingPath);
@@ -54,14 +122,17 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
             this.RMTrxnsNeedProcessing = new HashSet<>();
         }
         System.out.printf("RM %s need to processing Trxns: %s\n", myRMIName, RMTrxnsNeedProcessing);
+        this.RMOnePhaseCommittedPath = DataDir + File.separator + "RMOnePhaseCommitted.log";
+        temp = IOUtil.loadObject(RMOnePhaseCommittedPath);
+        this.RMOnePhaseCommitted = temp != null ? (LinkedHashSet<Integer>) temp : new LinkedHashSet<>();
         File dataDir = new File(DataDir);
         if (dataDir.exists()) {
             File[] dataFiles = dataDir.listFiles();
             if (dataFiles != null) {
                 // load main table
                 for (File dataFile : dataFiles) {
-                    if (!dataFile.isDirectory() && !dataFile.getName().endsWith(".log")) {
-                        getTable(dataFile.getName());
+                    if (!dataFile.isDirectory() && !dataFile.getName().endsWith(".log") && !dataFile.getName().endsWith(PageStore.BACKUP_SUFFIX)) {
+                        getTable(dataFile.getName().replaceFirst(PageStore.SUFFIX + "$", ""));
                     }
                 }
                 // load trxn table
@@ -89,6 +160,31 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
             }
         }
 
+        // commits that died after merging a table come first, their items were computed on the main
+        // table as it was then, before any commit the TM may still tell this RM to replay
+        for (Integer xid : new ArrayList<>(tables.keySet())) {
+            if (xid != -1 && tables.get(xid).values().stream().anyMatch(RMTable::isMerged)) {
+                try {
+                    commit(xid);
+                } catch (InvalidTransactionException e) {
+                    throw new RuntimeException(String.format("RM %s fails to finish the commit of Trxn %d", myRMIName, xid));
+                }
+            }
+        }
+
+        // one phase commits decided before the RM died, the TM doesn't log them so finish them here
+        for (Integer xid : new ArrayList<>(RMTrxnsNeedProcessing)) {
+            if (RMOnePhaseCommitted.contains(xid)) {
+                try {
+                    commit(xid);
+                } catch (InvalidTransactionException e) {
+                    throw new RuntimeException(String.format("RM %s fails to finish the one phase commit of Trxn %d", myRMIName, xid));
+                }
+            }
+        }
+
+        // the TM calls back on this RM as soon as it enlists
+        Transport.export(PropUtil.getRmiPort(myRMIName), myRMIName, this);
 
         // reconnect to the TM
         while (!reconnectToTM()) {
@@ -106,33 +202,26 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
     private boolean reconnectToTM() throws RemoteException {
         System.out.printf("RM %s call reconnectToTM()\n", myRMIName);
 
-        Properties prop = new Properties();
         try {
-            prop.load(Files.newInputStream(Paths.get("conf/ddb.conf")));
-        } catch (IOException e) {
-            System.out.printf("RM %s fail to load configuration file!\n", myRMIName);
-            e.printStackTrace();
-            System.exit(1);
-        }
-        String rmiPort = prop.getProperty("tm.port");
-        rmiPort = "//localhost:" + rmiPort + "/";
-        try {
-            tm = (TransactionManager) Naming.lookup(rmiPort + TransactionManager.RMIName);
+            tms = TMShards.lookup();
             // if RMTrxnStatus is not empty, rm must process the remained Trxns
             System.out.printf("Remained Trxns on RM %s that need to be processed: %s \n", myRMIName, RMTrxnsNeedProcessing);
-            for (Integer xid : RMTrxnsNeedProcessing) {
+            for (Integer xid : new ArrayList<>(RMTrxnsNeedProcessing)) {
                 // call tm.enlist() to info tm and get the state of tm
-                TransactionManager.TMStatus tmState = tm.enlist(xid, this);
+                TransactionManager.TMStatus tmState = tm(xid).enlist(xid, this);
                 // todo: check if should die here
                 if (dieTime == RMDieTime.AfterEnlist) {
                     dieNow();
                 }
-                if (tmState == TransactionManager.TMStatus.COMMITTED) {
+                if (tmState == TransactionManager.TMStatus.INITIATED) {
+                    enlisted.add(xid);
+                } else if (tmState == TransactionManager.TMStatus.COMMITTED) {
                     this.commit(xid);
+                    // the TM keeps the commit decision until every participant has committed
+                    tm(xid).ackCommit(xid, myRMIName);
                 } else if (tmState == TransactionManager.TMStatus.ABORTED) {
                     this.abort(xid);
                 }
-                // perhaps the only else case here is tmState== TransactionManager.TMStatus.INITIATED
             }
             System.out.printf("RM %s enlist to TM successfully.\n", myRMIName);
             return true;
@@ -148,13 +237,16 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
         Thread monitorThread = new Thread(() -> {
             while (true) {
                 try {
-                    if (tm != null) {
-                        tm.testConnection();
+                    if (tms != null) {
+                        for (TransactionManager tm : tms) {
+                            tm.testConnection();
+                        }
+                        reportActivity();
                     }
                 } catch (RemoteException ignored) {
-                    tm = null;
+                    tms = null;
                 }
-                if (tm == null) {
+                if (tms == null) {
                     System.out.printf("RM %s lose connection to TM, Reconnecting...\n", myRMIName);
                     try {
                         reconnectToTM();
@@ -172,22 +264,161 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
         monitorThread.start();
     }
 
+    private void reportActivity() throws RemoteException {
+        if (touched.isEmpty()) {
+            return;
+        }
+        List<Integer> xids = new ArrayList<>(touched);
+        touched.removeAll(xids);
+        // each TM shard only hears about its own trxns
+        Map<TransactionManager, List<Integer>> byShard = new HashMap<>();
+        for (Integer xid : xids) {
+            byShard.computeIfAbsent(tm(xid), k -> new ArrayList<>()).add(xid);
+        }
+        for (Map.Entry<TransactionManager, List<Integer>> entry : byShard.entrySet()) {
+            List<Integer> shardXids = entry.getValue();
+            int[] active = new int[shardXids.size()];
+            for (int i = 0; i < active.length; i++) {
+                active[i] = shardXids.get(i);
+            }
+            entry.getKey().touch(active);
+        }
+    }
+
+    /**
+     * @return the TM shard that owns trxn @xid
+     */
+    protected TransactionManager tm(int xid) {
+        return TMShards.route(tms, xid);
+    }
+
     @Override
     public boolean testConnection() throws RemoteException {
         return true;
     }
 
+    /**
+     * the numeric columns of @tableName to index, from "<tableName>.indexes" in ddb.conf, e.g. hotels.indexes=price,numAvail
+     */
+    private static List<String> indexedColumns(String tableName) {
+        String columns = PropUtil.getProperty(tableName + ".indexes", "").trim();
+        return columns.isEmpty() ? Collections.emptyList() : Arrays.asList(columns.split("\\s*,\\s*"));
+    }
+
+    /**
+     * the columns of @tableName to index by value, from "<tableName>.hashIndexes" in ddb.conf, e.g. reservations.hashIndexes=resvKey
+     */
+    private static List<String> hashIndexedColumns(String tableName) {
+        String columns = PropUtil.getProperty(tableName + ".hashIndexes", "").trim();
+        return columns.isEmpty() ? Collections.emptyList() : Arrays.asList(columns.split("\\s*,\\s*"));
+    }
+
+    /**
+     * if @tableName keeps its items in a page file, from "<tableName>.store" in ddb.conf, e.g. flights.store=paged
+     */
+    private static boolean paged(String tableName) {
+        return PropUtil.getProperty(tableName + ".store", "heap").trim().equals("paged");
+    }
+
+    /**
+     * Move the table of this RM out of the data dir all RMs shared before, once. Trxns left in that dir
+     * can't be told apart by RM, so the RM refuses to start until the previous version has finished them.
+     */
+    @SuppressWarnings("unchecked")
+    private void migrateSharedDataDir() {
+        File sharedTrxnsFile = new File(SharedDataDir, "RMTrxnsNeedProcessing.log");
+        if (!sharedTrxnsFile.exists()) {
+            return;
+        }
+        Object sharedTrxns = IOUtil.loadObject(sharedTrxnsFile.getPath());
+        File[] sharedTrxnDirs = new File(SharedDataDir).listFiles(file -> file.isDirectory() && file.getName().matches("\\d+"));
+        if ((sharedTrxns != null && !((Set<Integer>) sharedTrxns).isEmpty()) || (sharedTrxnDirs != null && sharedTrxnDirs.length > 0)) {
+            throw new RuntimeException(String.format("RM %s can't start, %s holds unfinished trxns of the data dir all RMs shared, finish them with the previous version first", myRMIName, SharedDataDir));
+        }
+
+        String rmName = RMPartitions.rmName(myRMIName);
+        String tableName = SharedDataTables.get(rmName);
+        File[] tableFiles = new File(SharedDataDir).listFiles(file -> file.isFile() && tableName != null
+                && (file.getName().equals(tableName) || file.getName().startsWith(tableName + ".")));
+        for (File tableFile : tableFiles == null ? new File[0] : tableFiles) {
+            if (RMPartitions.count(rmName) > 1) {
+                throw new RuntimeException(String.format("RM %s can't start, %s is the table of a single RM, load it into the partitions instead", myRMIName, tableFile));
+            }
+            try {
+                Files.createDirectories(Paths.get(DataDir));
+                Files.move(tableFile.toPath(), Paths.get(DataDir, tableFile.getName()));
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("RM %s fails to move %s into %s", myRMIName, tableFile, DataDir), e);
+            }
+            System.out.printf("RM %s moved %s into %s\n", myRMIName, tableFile, DataDir);
+        }
+
+        // the trxn log is shared by every RM, drop it once no RM has a table left to move
+        for (String sharedTable : SharedDataTables.values()) {
+            File[] left = new File(SharedDataDir).listFiles(file -> file.getName().equals(sharedTable) || file.getName().startsWith(sharedTable + "."));
+            if (left != null && left.length > 0) {
+                return;
+            }
+        }
+        if (!sharedTrxnsFile.delete() && sharedTrxnsFile.exists()) {
+            System.err.printf("Failed to delete %s!\n", sharedTrxnsFile);
+        }
+    }
+
     private RMTable<T> getTable(String tableName) {
         return getTable(-1, tableName);
     }
 
-    @SuppressWarnings("unchecked")
     private RMTable<T> getTable(int xid, String tableName) {
         Hashtable<String, RMTable<T>> trxnTables = tables.computeIfAbsent(xid, k -> new Hashtable<>());
+        if (xid == -1 || trxnTables.containsKey(tableName)) {
+            return openTable(xid, tableName, trxnTables);
+        }
+        // a trxn starts using the table, wait for a load of it to finish
+        synchronized (loading) {
+            while (loading.contains(tableName)) {
+                try {
+                    loading.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(String.format("RM %s is interrupted waiting for the load of table %s", myRMIName, tableName), e);
+                }
+            }
+            opening.merge(tableName, 1, Integer::sum);
+        }
+        // reading the shadow table from disk doesn't hold up the trxns opening other tables
+        try {
+            return openTable(xid, tableName, trxnTables);
+        } finally {
+            synchronized (loading) {
+                opening.computeIfPresent(tableName, (name, count) -> count == 1 ? null : count - 1);
+                loading.notifyAll();
+            }
+        }
+    }
 
+    @SuppressWarnings("unchecked")
+    private RMTable<T> openTable(int xid, String tableName, Hashtable<String, RMTable<T>> trxnTables) {
         synchronized (trxnTables) {
             RMTable<T> trxnTable = trxnTables.get(tableName);
-            if (trxnTable == null) {
+            if (trxnTable == null && xid == -1 && paged(tableName)) {
+                trxnTable = new RMTable<>(tableName, null, -1, lm);
+                String pagesPath = DataDir + File.separator + tableName + PageStore.SUFFIX;
+                try {
+                    // the RM died during a load, the pages are as it left them
+                    Path backup = Paths.get(pagesPath + PageStore.BACKUP_SUFFIX);
+                    if (Files.exists(backup)) {
+                        Files.move(backup, Paths.get(pagesPath), StandardCopyOption.REPLACE_EXISTING);
+                        Files.deleteIfExists(Paths.get(pagesPath + PageStore.LOG_SUFFIX));
+                    }
+                    trxnTable.setStore(PageStore.open(pagesPath, this::parse));
+                } catch (IOException e) {
+                    throw new RuntimeException(String.format("RM %s can't open the pages of table %s", myRMIName, tableName), e);
+                }
+                trxnTable.setIndexes(indexedColumns(tableName));
+                trxnTable.setHashIndexes(hashIndexedColumns(tableName));
+                trxnTables.put(tableName, trxnTable);
+            } else if (trxnTable == null) {
                 Object temp = IOUtil.loadObject(DataDir + File.separator + (xid == -1 ? "" : (xid + File.separator)) + tableName);
                 if (temp != null) {
                     trxnTable = (RMTable<T>) temp;
@@ -201,6 +432,11 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
                 } else if (xid != -1) {
                     trxnTable.setLockManager(lm);
                     trxnTable.setParent(getTable(tableName));
+                    trxnTable.restoreEscrow();
+                }
+                if (xid == -1) {
+                    trxnTable.setIndexes(indexedColumns(tableName));
+                    trxnTable.setHashIndexes(hashIndexedColumns(tableName));
                 }
                 trxnTables.put(tableName, trxnTable);
             }
@@ -211,82 +447,378 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
 
     @Override
     public List<T> query(int xid, String tableName) throws DeadlockException, InvalidTransactionException, RemoteException {
-        if (xid < 0) {
-            throw new InvalidTransactionException(xid, "Transaction ID must be positive.");
-        }
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        List<T> result = doQuery(xid, tableName, dirty);
+        storeTrxnTables(xid, dirty);
+        return result;
+    }
 
-        // record the trxns need processing
-        synchronized (RMTrxnsNeedProcessing) {
-            RMTrxnsNeedProcessing.add(xid);
-            IOUtil.storeObject(RMTrxnsNeedProcessing, RMTrxnsNeedProcessingPath);
+    @Override
+    public List<T> query(int xid, String tableName, Predicate where, String orderBy, int limit) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        RMTable<T> trxnTable = getTable(xid, tableName);
+        List<T> result = new ArrayList<>();
+        Set<Object> seen = new HashSet<>();
+        List<T> candidates;
+        do {
+            candidates = trxnTable.select(where, orderBy, limit > 0 ? limit - result.size() : limit, seen);
+            for (T item : candidates) {
+                seen.add(item.getKey());
+                trxnTable.lock(item.getKey(), 0);
+                // the item may have changed while waiting for the lock
+                T locked = trxnTable.get(item.getKey());
+                if (locked != null && !locked.isDeleted() && where.test(locked)) {
+                    result.add(locked);
+                }
+            }
+            // refill the rows that stopped matching from the next candidates
+        } while (limit > 0 && result.size() < limit && !candidates.isEmpty());
+        if (orderBy != null) {
+            result.sort(Predicate.order(orderBy));
         }
+        if (!seen.isEmpty()) {
+            storeTrxnTables(xid, Collections.singleton(trxnTable));
+        }
+        return result;
+    }
 
-        // notify TM this RM will participate in this transaction
-        tm.enlist(xid, this);
+    @Override
+    public T query(int xid, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        T result = doQuery(xid, tableName, key, dirty);
+        storeTrxnTables(xid, dirty);
+        return result;
+    }
 
-        if (dieTime == RMDieTime.AfterEnlist) {
-            dieNow();
+    @Override
+    public boolean update(int xid, String tableName, Object key, T newItem) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        boolean result = doUpdate(xid, tableName, key, newItem, dirty);
+        storeTrxnTables(xid, dirty);
+        return result;
+    }
+
+    @Override
+    public boolean insert(int xid, String tableName, T newItem) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        boolean result = doInsert(xid, tableName, newItem, dirty);
+        storeTrxnTables(xid, dirty);
+        return result;
+    }
+
+    @Override
+    public boolean delete(int xid, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        boolean result = doDelete(xid, tableName, key, dirty);
+        storeTrxnTables(xid, dirty);
+        return result;
+    }
+
+    @Override
+    public boolean increment(int xid, String tableName, Object key, String columnName, int delta) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        boolean result = doIncrement(xid, tableName, key, columnName, delta, dirty);
+        storeTrxnTables(xid, dirty);
+        return result;
+    }
+
+    @Override
+    public boolean decrementIfAtLeast(int xid, String tableName, Object key, String columnName, int amount) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        T result = doDecrement(xid, tableName, key, columnName, amount, dirty);
+        storeTrxnTables(xid, dirty);
+        return result != null;
+    }
+
+    @Override
+    public T decrementAvailable(int xid, String tableName, Object key, int n) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        T result = doDecrement(xid, tableName, key, ResourceItem.NUM_AVAIL, n, dirty);
+        storeTrxnTables(xid, dirty);
+        return result;
+    }
+
+    @Override
+    public List<Object> execute(int xid, List<Op<T>> ops) throws DeadlockException, InvalidTransactionException, RemoteException {
+        // one enlist and one write per touched shadow table for the whole batch
+        enlist(xid);
+        Set<RMTable<T>> dirty = new HashSet<>();
+        List<Object> results = new ArrayList<>(ops.size());
+        for (Op<T> op : ops) {
+            switch (op.getType()) {
+                case QUERY_ALL:
+                    results.add(doQuery(xid, op.getTableName(), dirty));
+                    break;
+                case QUERY:
+                    results.add(doQuery(xid, op.getTableName(), op.getKey(), dirty));
+                    break;
+                case UPDATE:
+                    results.add(doUpdate(xid, op.getTableName(), op.getKey(), op.getItem(), dirty));
+                    break;
+                case INSERT:
+                    results.add(doInsert(xid, op.getTableName(), op.getItem(), dirty));
+                    break;
+                case DELETE:
+                    results.add(doDelete(xid, op.getTableName(), op.getKey(), dirty));
+                    break;
+                case INCREMENT:
+                    results.add(doIncrement(xid, op.getTableName(), op.getKey(), op.getColumnName(), op.getAmount(), dirty));
+                    break;
+                case DECREMENT_IF_AT_LEAST:
+                    results.add(doDecrement(xid, op.getTableName(), op.getKey(), op.getColumnName(), op.getAmount(), dirty) != null);
+                    break;
+                case DECREMENT_AVAILABLE:
+                    results.add(doDecrement(xid, op.getTableName(), op.getKey(), op.getColumnName(), op.getAmount(), dirty));
+                    break;
+                default:
+                    throw new RemoteException(String.format("RM %s meet unknown operation %s in Trxn ID %d!", myRMIName, op, xid));
+            }
         }
+        storeTrxnTables(xid, dirty);
+        return results;
+    }
 
-        RMTable<T> trxnTable = getTable(xid, tableName);
+    @Override
+    public CompletableFuture<List<Object>> executeAsync(int xid, List<Op<T>> ops) throws RemoteException {
+        CompletableFuture<List<Object>> result = new CompletableFuture<>();
+        try {
+            result.complete(execute(xid, ops));
+        } catch (DeadlockException | InvalidTransactionException | RemoteException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public int openCursor(int xid, String tableName) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        int cursorId = nextCursorId.incrementAndGet();
+        cursors.put(cursorId, new Cursor(xid, tableName));
+        return cursorId;
+    }
+
+    @Override
+    public List<T> fetch(int xid, int cursorId, int fetchSize) throws DeadlockException, InvalidTransactionException, RemoteException {
+        enlist(xid);
+        Cursor cursor = cursors.get(cursorId);
+        if (cursor == null || cursor.xid != xid) {
+            throw new RemoteException(String.format("RM %s has no cursor %d in Trxn ID %d!", myRMIName, cursorId, xid));
+        }
+        RMTable<T> trxnTable = getTable(xid, cursor.tableName);
+        List<T> result = new ArrayList<>();
         synchronized (trxnTable) {
-            // read resource items
-            List<T> result = new ArrayList<>();
-            for (Object key : trxnTable.keySet()) {
-                T item = trxnTable.get(key);
-                if (item != null && !item.isDeleted()) {
+            // go on from the last key returned, skipping the items deleted meanwhile
+            while (result.size() < fetchSize && !cursor.exhausted) {
+                int want = fetchSize - result.size();
+                List<Object> keys = trxnTable.keysAfter(cursor.last, want);
+                cursor.exhausted = keys.size() < want;
+                for (Object key : keys) {
+                    // lock before reading, the commit of another trxn may not have reached the main table yet
                     trxnTable.lock(key, 0);
-                    result.add(item);
+                    cursor.last = key.toString();
+                    T item = trxnTable.get(key);
+                    if (item != null && !item.isDeleted()) {
+                        result.add(item);
+                    }
                 }
             }
-
-            // save transaction shadow table
-            if (!result.isEmpty() && !IOUtil.storeObject(trxnTable, DataDir + File.separator + xid + File.separator + tableName)) {
-                throw new RemoteException(String.format("RM %s trigger System Error: Can't write table %s to disk on Trxn ID %d!", myRMIName, tableName, xid));
-            }
-            return result;
         }
+        // a short batch tells the caller the cursor is exhausted
+        if (result.size() < fetchSize) {
+            cursors.remove(cursorId);
+        }
+        // the read locks are written to disk at prepare, see prepare()
+        return result;
     }
 
     @Override
-    public T query(int xid, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException {
-        if (xid < 0) {
-            throw new InvalidTransactionException(xid, "Transaction ID must be positive.");
+    public void closeCursor(int xid, int cursorId) throws RemoteException {
+        Cursor cursor = cursors.get(cursorId);
+        if (cursor != null && cursor.xid == xid) {
+            cursors.remove(cursorId);
         }
+    }
 
-        // record the trxns need processing
-        synchronized (RMTrxnsNeedProcessing) {
-            RMTrxnsNeedProcessing.add(xid);
-            IOUtil.storeObject(RMTrxnsNeedProcessing, RMTrxnsNeedProcessingPath);
-        }
+    private void closeCursors(int xid) {
+        cursors.values().removeIf(cursor -> cursor.xid == xid);
+    }
 
+    @Override
+    public int load(String tableName, String path) throws RemoteException {
+        RMTable<T> table = getTable(tableName);
+        synchronized (loading) {
+            // once opened the trxn's table is checked below
+            while (opening.containsKey(tableName)) {
+                try {
+                    loading.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException(String.format("RM %s is interrupted waiting for the trxns opening table %s", myRMIName, tableName), e);
+                }
+            }
+            if (loading.contains(tableName)) {
+                throw new RemoteException(String.format("RM %s is already loading table %s!", myRMIName, tableName));
+            }
+            // the trxns using the table hold locks and escrow on items the load would replace under them
+            for (Map.Entry<Integer, Hashtable<String, RMTable<T>>> entry : tables.entrySet()) {
+                if (entry.getKey() != -1 && entry.getValue().containsKey(tableName)) {
+                    throw new RemoteException(String.format("RM %s can't load table %s while Trxn ID %d uses it!", myRMIName, tableName, entry.getKey()));
+                }
+            }
+            loading.add(tableName);
+        }
 
-        // notify TM this RM will participate in this transaction
-        tm.enlist(xid, this);
+        // the file of a heap table is only written once the load is done, the pages of a paged table
+        // change as it goes, so they are copied first and put back if the load fails
+        Path pages = Paths.get(DataDir, tableName + PageStore.SUFFIX);
+        Path backup = Paths.get(DataDir, tableName + PageStore.SUFFIX + PageStore.BACKUP_SUFFIX);
+        if (table.isPaged()) {
+            try {
+                if (!table.flush()) {
+                    throw new IOException("Can't write the pages of table " + tableName);
+                }
+                Files.copy(pages, backup, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                synchronized (loading) {
+                    loading.remove(tableName);
+                    loading.notifyAll();
+                }
+                throw new RemoteException(String.format("RM %s can't back up table %s before loading it!", myRMIName, tableName), e);
+            }
+        }
 
-        if (dieTime == RMDieTime.AfterEnlist) {
-            dieNow();
+        // a partition only keeps the items it owns
+        String rmName = RMPartitions.rmName(myRMIName);
+        int partition = RMPartitions.partition(myRMIName);
+        TreeMap<Integer, Integer> ring = RMPartitions.ring(rmName, RMPartitions.count(rmName));
+        List<T> batch = new ArrayList<>(LOAD_BATCH);
+        int[] loaded = {0};
+        Consumer<T> keep = item -> {
+            if (RMPartitions.partitionOf(ring, item.getKey()) == partition) {
+                batch.add(item);
+                if (batch.size() == LOAD_BATCH) {
+                    table.load(batch);
+                    loaded[0] += batch.size();
+                    batch.clear();
+                }
+            }
+        };
+        boolean done = false;
+        try {
+            if (path.endsWith(".csv")) {
+                readCsv(path, keep);
+            } else {
+                readSerialized(path, keep);
+            }
+            table.load(batch);
+            loaded[0] += batch.size();
+            table.endLoad();
+            storeTable(table);
+            done = true;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            throw new RemoteException(String.format("RM %s can't load %s into table %s after %d items!", myRMIName, path, tableName, loaded[0]), e);
+        } finally {
+            try {
+                if (done) {
+                    Files.deleteIfExists(backup);
+                } else {
+                    // drop the half loaded table, the next use opens it again as it was on disk before
+                    tables.get(-1).remove(tableName);
+                    if (table.isPaged()) {
+                        table.close();
+                        Files.move(backup, pages, StandardCopyOption.REPLACE_EXISTING);
+                        Files.deleteIfExists(Paths.get(pages + PageStore.LOG_SUFFIX));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.printf("RM %s fails to clean up after loading table %s: %s\n", myRMIName, tableName, e);
+            } finally {
+                synchronized (loading) {
+                    loading.remove(tableName);
+                    loading.notifyAll();
+                }
+            }
         }
+        System.out.printf("RM %s loaded %d items from %s into table %s.\n", myRMIName, loaded[0], path, tableName);
+        return loaded[0];
+    }
 
-        // read resource items
-        RMTable<T> trxnTable = getTable(xid, tableName);
-        T item = trxnTable.get(key);
-        if (item != null && !item.isDeleted()) {
-            trxnTable.lock(key, 0);
+    private void readCsv(String path, Consumer<T> items) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path))) {
+            String line;
+            int lineNum = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] columns = line.split(",", -1);
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = columns[i].trim();
+                }
+                T item;
+                try {
+                    item = parse(columns);
+                } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                    if (lineNum == 1) {
+                        // the header line
+                        continue;
+                    }
+                    throw new IOException(String.format("Bad item on line %d of %s: %s", lineNum, path, line), e);
+                }
+                if (lineNum == 1 && Arrays.asList(item.getColumnNames()).subList(0, Math.min(columns.length, item.getColumnNames().length)).equals(Arrays.asList(columns))) {
+                    // a header line that also parses, e.g. of an item with a single text column
+                    continue;
+                }
+                items.accept(item);
+            }
+        }
+    }
 
-            // save transaction shadow table
-            if (!IOUtil.storeObject(trxnTable, DataDir + File.separator + xid + File.separator + tableName)) {
-                throw new RemoteException(String.format("RM %s trigger System Error: Can't write table %s to disk on Trxn ID %d!", myRMIName, tableName, xid));
+    @SuppressWarnings("unchecked")
+    private void readSerialized(String path, Consumer<T> items) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))))) {
+            while (true) {
+                Object item;
+                try {
+                    item = ois.readObject();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (!(item instanceof ResourceItem)) {
+                    throw new IOException(String.format("%s holds %s, not an item", path, item));
+                }
+                items.accept((T) item);
             }
         }
-        return item;
     }
 
-    @Override
-    public boolean update(int xid, String tableName, Object key, T newItem) throws DeadlockException, InvalidTransactionException, RemoteException {
+    /**
+     * make an item from the columns of one line of a .csv, in the order of getColumnNames()
+     *
+     * @throws IllegalArgumentException if the columns don't make an item
+     */
+    protected abstract T parse(String[] columns);
+
+    /**
+     * record the trxn needs processing and notify TM this RM will participate in it
+     */
+    private void enlist(int xid) throws InvalidTransactionException, RemoteException {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Transaction ID must be positive.");
         }
+        touched.add(xid);
+        if (enlisted.contains(xid)) {
+            return;
+        }
 
         // record the trxns need processing
         synchronized (RMTrxnsNeedProcessing) {
@@ -295,106 +827,168 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
         }
 
         // notify TM this RM will participate in this transaction
-        tm.enlist(xid, this);
+        if (tm(xid).enlist(xid, this) != TransactionManager.TMStatus.INITIATED) {
+            // the TM presumes an unknown trxn aborted, drop whatever this RM holds for it
+            forget(xid);
+            throw new InvalidTransactionException(xid, "Transaction is not active in TM.");
+        }
+        enlisted.add(xid);
 
         if (dieTime == RMDieTime.AfterEnlist) {
             dieNow();
         }
+    }
 
+    /**
+     * save the transaction shadow tables changed by one call
+     */
+    private void storeTrxnTables(int xid, Set<RMTable<T>> dirty) throws RemoteException {
+        for (RMTable<T> trxnTable : dirty) {
+            synchronized (trxnTable) {
+                if (!IOUtil.storeObject(trxnTable, DataDir + File.separator + xid + File.separator + trxnTable.getTableName())) {
+                    throw new RemoteException(String.format("RM %s trigger System Error: Can't write table %s to disk on Trxn ID %d!", myRMIName, trxnTable.getTableName(), xid));
+                }
+                trxnTable.saved();
+            }
+        }
+    }
+
+    private List<T> doQuery(int xid, String tableName, Set<RMTable<T>> dirty) throws DeadlockException {
+        RMTable<T> trxnTable = getTable(xid, tableName);
+        synchronized (trxnTable) {
+            // read resource items
+            List<T> result = new ArrayList<>();
+            Set<Object> keys = trxnTable.keySet();
+            for (Object key : keys) {
+                // lock before reading, the commit of another trxn may not have reached the main table yet
+                trxnTable.lock(key, 0);
+                T item = trxnTable.get(key);
+                if (item != null && !item.isDeleted()) {
+                    result.add(item);
+                }
+            }
+            if (!keys.isEmpty()) {
+                dirty.add(trxnTable);
+            }
+            return result;
+        }
+    }
+
+    private T doQuery(int xid, String tableName, Object key, Set<RMTable<T>> dirty) throws DeadlockException {
         // read resource items
         RMTable<T> trxnTable = getTable(xid, tableName);
+        // lock even a missing key, so the read waits for a committed insert whose phase 2 is still on the way
+        trxnTable.lock(key, 0);
+        dirty.add(trxnTable);
+        // escrow updates and inserts of other trxns may have committed while waiting for the lock
+        return trxnTable.get(key);
+    }
+
+    private boolean doUpdate(int xid, String tableName, Object key, T newItem, Set<RMTable<T>> dirty) throws DeadlockException {
+        // read resource items
+        RMTable<T> trxnTable = getTable(xid, tableName);
+        // lock before reading, like doQuery()
+        trxnTable.lock(key, 1);
+        dirty.add(trxnTable);
         T item = trxnTable.get(key);
         if (item != null && !item.isDeleted()) {
-            trxnTable.lock(key, 1);
             trxnTable.put(newItem);
-
-            // save transaction shadow table
-            if (!IOUtil.storeObject(trxnTable, DataDir + File.separator + xid + File.separator + tableName)) {
-                throw new RemoteException(String.format("RM %s trigger System Error: Can't write table %s to disk on Trxn ID %d!", myRMIName, tableName, xid));
-            }
             return true;
         }
         return false;
     }
 
-    @Override
-    public boolean insert(int xid, String tableName, T newItem) throws DeadlockException, InvalidTransactionException, RemoteException {
-        if (xid < 0) {
-            throw new InvalidTransactionException(xid, "Transaction ID must be positive.");
-        }
-
-        // record the trxns need processing
-        synchronized (RMTrxnsNeedProcessing) {
-            RMTrxnsNeedProcessing.add(xid);
-            IOUtil.storeObject(RMTrxnsNeedProcessing, RMTrxnsNeedProcessingPath);
-        }
-
-        // notify TM this RM will participate in this transaction
-        tm.enlist(xid, this);
-
-        if (dieTime == RMDieTime.AfterEnlist) {
-            dieNow();
-        }
-
+    private boolean doInsert(int xid, String tableName, T newItem, Set<RMTable<T>> dirty) throws DeadlockException {
         // read resource items
         RMTable<T> trxnTable = getTable(xid, tableName);
+        // lock before reading, a committed insert of the same key may still be on its way to the main table
+        trxnTable.lock(newItem.getKey(), 1);
+        dirty.add(trxnTable);
         T item = trxnTable.get(newItem.getKey());
         if (item != null && !item.isDeleted()) {  // already exist
             return false;
         }
-        trxnTable.lock(newItem.getKey(), 1);
         trxnTable.put(newItem);
-
-        // save transaction shadow table
-        if (!IOUtil.storeObject(trxnTable, DataDir + File.separator + xid + File.separator + tableName)) {
-            throw new RemoteException(String.format("RM %s trigger System Error: Can't write table %s to disk on Trxn ID %d!", myRMIName, tableName, xid));
-        }
         return true;
     }
 
     @SuppressWarnings("unchecked")
-    @Override
-    public boolean delete(int xid, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException {
-        if (xid < 0) {
-            throw new InvalidTransactionException(xid, "Transaction ID must be positive.");
-        }
-
-        // record the trxns need processing
-        synchronized (RMTrxnsNeedProcessing) {
-            RMTrxnsNeedProcessing.add(xid);
-            IOUtil.storeObject(RMTrxnsNeedProcessing, RMTrxnsNeedProcessingPath);
-        }
-
-        // notify TM this RM will participate in this transaction
-        tm.enlist(xid, this);
-
-        if (dieTime == RMDieTime.AfterEnlist) {
-            dieNow();
-        }
-
+    private boolean doDelete(int xid, String tableName, Object key, Set<RMTable<T>> dirty) throws DeadlockException {
         // read resource items
         RMTable<T> trxnTable = getTable(xid, tableName);
+        // lock before reading, like doQuery()
+        trxnTable.lock(key, 1);
+        dirty.add(trxnTable);
         T item = trxnTable.get(key);
         if (item != null && !item.isDeleted()) {
-            trxnTable.lock(key, 1);
             try {
                 item = (T) item.clone();
             } catch (CloneNotSupportedException ignored) {
             }
             item.setDeleted(true);
             trxnTable.put(item);
-
-            // save transaction shadow table
-            if (!IOUtil.storeObject(trxnTable, DataDir + File.separator + xid + File.separator + tableName)) {
-                throw new RemoteException(String.format("RM %s trigger System Error: Can't write table %s to disk on Trxn ID %d!", myRMIName, tableName, xid));
-            }
             return true;
         }
         return false;
     }
 
+    private boolean doIncrement(int xid, String tableName, Object key, String columnName, int delta, Set<RMTable<T>> dirty) throws DeadlockException {
+        RMTable<T> trxnTable = getTable(xid, tableName);
+        // escrow lock, compatible with other increments/decrements on the same item. taken before reading, like doQuery()
+        trxnTable.lock(key, LockManager.ESCROW);
+        dirty.add(trxnTable);
+        T item = trxnTable.get(key);
+        if (item == null || item.isDeleted()) {
+            return false;
+        }
+        try {
+            return trxnTable.increment(key, columnName, delta);
+        } catch (InvalidIndexException e) {
+            System.err.printf("RM %s can't increment column %s of table %s: %s\n", myRMIName, columnName, tableName, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * escrow decrement shared by decrementIfAtLeast() and decrementAvailable()
+     *
+     * @return the item as seen by the trxn after the decrement, null on failure
+     */
+    private T doDecrement(int xid, String tableName, Object key, String columnName, int amount, Set<RMTable<T>> dirty) throws DeadlockException {
+        if (amount < 0) {
+            return null;
+        }
+        RMTable<T> trxnTable = getTable(xid, tableName);
+        // escrow lock, compatible with other increments/decrements on the same item. taken before reading, like doQuery()
+        trxnTable.lock(key, LockManager.ESCROW);
+        dirty.add(trxnTable);
+        T item = trxnTable.get(key);
+        if (item == null || item.isDeleted()) {
+            return null;
+        }
+        try {
+            if (!trxnTable.decrementIfAtLeast(key, columnName, amount)) {
+                return null;
+            }
+        } catch (InvalidIndexException e) {
+            System.err.printf("RM %s can't decrement column %s of table %s: %s\n", myRMIName, columnName, tableName, e.getMessage());
+            return null;
+        }
+        return trxnTable.get(key);
+    }
+
+    /**
+     * write a main table to disk, a paged table only writes back its pages
+     */
+    private void storeTable(RMTable<T> table) throws RemoteException {
+        boolean stored = table.isPaged() ? table.flush() : IOUtil.storeObject(table, DataDir + File.separator + table.getTableName());
+        if (!stored) {
+            throw new RemoteException("Can't write table to disk!");
+        }
+    }
+
     @Override
-    public boolean prepare(int xid) throws InvalidTransactionException, RemoteException {
+    public Vote prepare(int xid) throws InvalidTransactionException, RemoteException {
         System.out.printf("Trxn ID %d: Enter RM.prepare().\n", xid);
 
         if (dieTime == RMDieTime.BeforePrepare) {
@@ -406,23 +1000,62 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
             throw new InvalidTransactionException(xid, "Transaction ID to prepare must be contained in RMTrxnsNeedProcessing.");
         }
 
-        // todo: I think here we should require all locks for this trxn
-        // todo: but the referenced codes do not
+        // load trxn tables
+        List<RMTable<T>> trxnTables = new ArrayList<>();
         File trxnTablesDir = new File(DataDir + File.separator + xid);
         if (trxnTablesDir.exists()) {
             File[] trxnTableFiles = trxnTablesDir.listFiles();
             if (trxnTableFiles != null) {
-                // load trxn table
                 for (File trxnTableFile : trxnTableFiles) {
-                    RMTable<T> trxnTable = getTable(xid, trxnTableFile.getName());
-                    try {
-                        // reacquire all locks and prepared to commit
-                        trxnTable.relockAll();
-                    } catch (DeadlockException e) {
-                        throw new RuntimeException(String.format("RM %s trigger deadlock when relockAll on table %s in Trxn %d", myRMIName, trxnTableFile.getName(), xid));
-                    }
+                    trxnTables.add(getTable(xid, trxnTableFile.getName()));
+                }
+            }
+        }
+
+        // nothing written here, release the trxn now so it can be skipped in phase 2
+        boolean readOnly = true;
+        for (RMTable<T> trxnTable : trxnTables) {
+            readOnly &= trxnTable.isReadOnly();
+        }
+        if (readOnly) {
+            forget(xid);
+            System.out.printf("Trxn ID %d: RM.prepare() read-only.\n", xid);
+            return Vote.READ_ONLY;
+        }
+
+        // a counter lowered by an increment may go below zero within the trxn, not once it commits
+        for (RMTable<T> trxnTable : trxnTables) {
+            try {
+                if (trxnTable.overdrawn()) {
+                    System.out.printf("Trxn ID %d: RM.prepare() votes NO, it would take a counter of table %s below zero.\n", xid, trxnTable.getTableName());
+                    return Vote.NO;
+                }
+            } catch (InvalidIndexException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // the read locks of cursors are kept in memory until now, write the tables that have some
+        Hashtable<String, RMTable<T>> liveTables = tables.get(xid);
+        if (liveTables != null) {
+            Set<RMTable<T>> unsaved = new HashSet<>();
+            for (RMTable<T> trxnTable : liveTables.values()) {
+                if (trxnTable.hasUnsavedLocks()) {
+                    unsaved.add(trxnTable);
                 }
             }
+            storeTrxnTables(xid, unsaved);
+        }
+
+        // todo: I think here we should require all locks for this trxn
+        // todo: but the referenced codes do not
+        for (RMTable<T> trxnTable : trxnTables) {
+            try {
+                // reacquire all locks and prepared to commit
+                trxnTable.relockAll();
+            } catch (DeadlockException e) {
+                throw new RuntimeException(String.format("RM %s trigger deadlock when relockAll on table %s in Trxn %d", myRMIName, trxnTable.getTableName(), xid));
+            }
         }
 
         if (dieTime == RMDieTime.AfterPrepare) {
@@ -430,7 +1063,7 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
         }
 
         System.out.printf("Trxn ID %d: RM.prepare() successfully.\n", xid);
-        return true;
+        return Vote.YES;
     }
 
     @Override
@@ -453,25 +1086,40 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
                     RMTable<T> trxnTable = entry.getValue(); // trxn shadow table
                     RMTable<T> table = getTable(tableName); // main table
 
-                    // merge changes in transaction shadow table to the original table
-                    for (Object key : trxnTable.keySet()) {
-                        T item = trxnTable.get(key);
-                        if (item.isDeleted()) {
-                            table.remove(item);
-                        } else {
-                            table.put(item);
+                    File trxnTableFile = new File(DataDir + File.separator + xid + File.separator + tableName);
+                    // one commit at a time per table, from merging until the shadow table is gone,
+                    // so a commit replayed after a crash is the latest one to have touched the table
+                    synchronized (table) {
+                        if (!trxnTable.isMerged()) {
+                            // apply pending escrow deltas to the latest committed items and keep the
+                            // whole items on disk first, a replay then writes the same values again
+                            trxnTable.mergeDeltas();
+                            if (!IOUtil.storeObject(trxnTable, trxnTableFile.getPath())) {
+                                throw new RemoteException(String.format("RM %s trigger System Error: Can't write table %s to disk on Trxn ID %d!", myRMIName, tableName, xid));
+                            }
+                        }
+
+                        // merge changes in transaction shadow table to the original table
+                        for (Object key : trxnTable.ownKeys()) {
+                            T item = trxnTable.get(key);
+                            if (item.isDeleted()) {
+                                table.remove(item);
+                            } else {
+                                table.put(item);
+                            }
                         }
-                    }
 
-                    // persistence the table
-                    if (!IOUtil.storeObject(table, DataDir + File.separator + tableName)) {
-                        throw new RemoteException("Can't write table to disk!");
-                    }
+                        // persistence the table
+                        storeTable(table);
 
-                    // cleanup the file of transaction shadow table
-                    File trxnTableFile = new File(DataDir + File.separator + xid + File.separator + tableName);
-                    if (!trxnTableFile.delete()) {
-                        System.err.printf("Failed to delete transaction shadow table %s!\n", trxnTableFile);
+                        if (dieTime == RMDieTime.AfterStore) {
+                            dieNow();
+                        }
+
+                        // cleanup the file of transaction shadow table
+                        if (!trxnTableFile.delete()) {
+                            System.err.printf("Failed to delete transaction shadow table %s!\n", trxnTableFile);
+                        }
                     }
 
                 }
@@ -494,10 +1142,95 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
 
         // remove the transaction from RMTrxnsNeedProcessing
         RMTrxnsNeedProcessing.remove(xid);
+        enlisted.remove(xid);
+        closeCursors(xid);
 
         System.out.printf("Trxn ID %d: RM.commit() successfully.\n", xid);
     }
 
+    @Override
+    public Vote[] prepareAll(int[] xids) throws RemoteException {
+        Vote[] votes = new Vote[xids.length];
+        for (int i = 0; i < xids.length; i++) {
+            try {
+                votes[i] = prepare(xids[i]);
+            } catch (InvalidTransactionException e) {
+                votes[i] = Vote.NO;
+            }
+        }
+        return votes;
+    }
+
+    @Override
+    public void commitAll(int[] xids) throws InvalidTransactionException, RemoteException {
+        for (int xid : xids) {
+            commit(xid);
+        }
+    }
+
+    @Override
+    public boolean commitOnePhase(int xid) throws InvalidTransactionException, RemoteException {
+        System.out.printf("Trxn ID %d: Enter RM.commitOnePhase().\n", xid);
+
+        synchronized (onePhaseLocks.computeIfAbsent(xid, k -> new Object())) {
+            try {
+                Vote vote = prepare(xid);
+                if (vote == Vote.NO) {
+                    abort(xid);
+                    return false;
+                }
+                // a read-only trxn is already released by prepare
+                if (vote == Vote.YES) {
+                    // the decision is on disk before it is applied, the RM finishes it if it dies meanwhile
+                    synchronized (RMOnePhaseCommitted) {
+                        RMOnePhaseCommitted.add(xid);
+                        if (RMOnePhaseCommitted.size() > ONE_PHASE_OUTCOMES) {
+                            RMOnePhaseCommitted.remove(RMOnePhaseCommitted.iterator().next());
+                        }
+                        if (!IOUtil.storeObject(RMOnePhaseCommitted, RMOnePhaseCommittedPath)) {
+                            RMOnePhaseCommitted.remove(xid);
+                            System.err.printf("Trxn ID %d: RM fails to write the one phase commit!\n", xid);
+                            abort(xid);
+                            return false;
+                        }
+                    }
+                    commit(xid);
+                }
+                return true;
+            } finally {
+                onePhaseLocks.remove(xid);
+            }
+        }
+    }
+
+    @Override
+    public Boolean committedOnePhase(int xid) throws RemoteException {
+        System.out.printf("Trxn ID %d: Enter RM.committedOnePhase().\n", xid);
+
+        synchronized (onePhaseLocks.computeIfAbsent(xid, k -> new Object())) {
+            try {
+                synchronized (RMOnePhaseCommitted) {
+                    if (RMOnePhaseCommitted.contains(xid)) {
+                        return true;
+                    }
+                }
+                if (RMTrxnsNeedProcessing.contains(xid)) {
+                    // the commit never got here, make sure it never does
+                    try {
+                        abort(xid);
+                    } catch (InvalidTransactionException e) {
+                        throw new RemoteException("Can't abort Trxn ID " + xid, e);
+                    }
+                    return false;
+                }
+                // aborted, read-only or committed too long ago
+                return null;
+            } finally {
+                onePhaseLocks.remove(xid);
+            }
+        }
+    }
+
     @Override
     public void abort(int xid) throws InvalidTransactionException, RemoteException {
         System.out.printf("Trxn ID %d: Enter RM.abort().\n", xid);
@@ -510,11 +1243,22 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
             throw new InvalidTransactionException(xid, "Transaction ID must be positive.");
         }
 
+        forget(xid);
+
+        System.out.printf("Trxn ID %d: RM.abort() successfully.\n", xid);
+    }
+
+    /**
+     * Drop the shadow tables, escrow and locks of a trxn without applying them.
+     */
+    private void forget(int xid) {
         Hashtable<String, RMTable<T>> trxnTables = tables.get(xid);
         if (trxnTables != null) {
             synchronized (trxnTables) {
                 for (Map.Entry<String, RMTable<T>> entry : trxnTables.entrySet()) {
                     String tableName = entry.getKey();
+                    // give back the escrow reserved by the transaction
+                    entry.getValue().releaseEscrow();
                     // cleanup the file of transaction shadow table
                     File trxnTableFile = new File(DataDir + File.separator + xid + File.separator + tableName);
                     if (!trxnTableFile.delete()) {
@@ -540,8 +1284,8 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
 
         // remove the transaction from RMTrxnsNeedProcessing
         RMTrxnsNeedProcessing.remove(xid);
-
-        System.out.printf("Trxn ID %d: RM.abort() successfully.\n", xid);
+        enlisted.remove(xid);
+        closeCursors(xid);
     }
 
     @Override
@@ -560,4 +1304,22 @@ public abstract class ResourceManagerImpl<T extends ResourceItem> extends Unicas
     public String getRMIName() throws RemoteException {
         return myRMIName;
     }
+
+    /**
+     * A cursor of a trxn over the keys of a table, in the order of their string form.
+     */
+    protected static class Cursor {
+        final int xid;
+        final String tableName;
+        /**
+         * the string form of the last key fetched, null before the first fetch
+         */
+        String last = null;
+        boolean exhausted = false;
+
+        Cursor(int xid, String tableName) {
+            this.xid = xid;
+            this.tableName = tableName;
+        }
+    }
 }
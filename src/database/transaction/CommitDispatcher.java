@@ -0,0 +1,125 @@
+package database.transaction;
+
+import database.entity.ResourceItem;
+import database.resource.ResourceManager;
+import database.transport.Transport;
+import database.utils.PropUtil;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Delivers phase 2 of committed trxns to the RMs in the background.
+ * <p>
+ * Commits are queued per RM, and one task at a time drains the queue of a RM, so commits to a busy RM
+ * go out in batches. A RM that can't be reached is retried with exponential backoff, looking it up
+ * again in case it restarted. The decision log keeps a commit until all its RMs have acked, so the
+ * queue is rebuilt from it when the TM restarts.
+ */
+public class CommitDispatcher {
+    private static final int DISPATCH_THREADS = 4;
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 10000;
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(DISPATCH_THREADS, r -> {
+        Thread thread = new Thread(r, "tm-phase2");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * called with (xid, rmName) once a RM has committed a trxn
+     */
+    private final BiConsumer<Integer, String> onAck;
+
+    private final Map<String, Participant> participants = new HashMap<>();
+
+    private static class Participant {
+        final String rmName;
+        ResourceManager<? extends ResourceItem> rm;
+        final Set<Integer> pending = new LinkedHashSet<>();
+        boolean scheduled = false;
+        long backoff = 0;
+
+        Participant(String rmName) {
+            this.rmName = rmName;
+        }
+    }
+
+    public CommitDispatcher(BiConsumer<Integer, String> onAck) {
+        this.onAck = onAck;
+    }
+
+    /**
+     * Queue the commit of trxn @xid to RM @rmName.
+     *
+     * @param rm the RM to send to, null to look it up by name
+     */
+    public synchronized void dispatch(int xid, String rmName, ResourceManager<? extends ResourceItem> rm) {
+        Participant participant = participants.computeIfAbsent(rmName, Participant::new);
+        if (rm != null) {
+            participant.rm = rm;
+        }
+        participant.pending.add(xid);
+        if (!participant.scheduled) {
+            participant.scheduled = true;
+            executor.execute(() -> deliver(participant));
+        }
+    }
+
+    private void deliver(Participant participant) {
+        List<Integer> batch;
+        ResourceManager<? extends ResourceItem> rm;
+        synchronized (this) {
+            batch = new ArrayList<>(participant.pending);
+            rm = participant.rm;
+        }
+
+        ResourceManager<? extends ResourceItem> used = rm;
+        try {
+            if (rm == null) {
+                rm = lookup(participant.rmName);
+            }
+            int[] xids = new int[batch.size()];
+            for (int i = 0; i < xids.length; i++) {
+                xids[i] = batch.get(i);
+            }
+            rm.commitAll(xids);
+            synchronized (this) {
+                participant.pending.removeAll(batch);
+            }
+            for (Integer xid : batch) {
+                onAck.accept(xid, participant.rmName);
+            }
+        } catch (Exception e) {
+            // the rm is down or restarted, look it up again on the next try
+            System.err.printf("Fail to deliver commits to RM %s: %s\n", participant.rmName, e);
+            rm = null;
+        }
+
+        synchronized (this) {
+            boolean failed = rm == null;
+            // keep a stub handed in by dispatch() meanwhile
+            if (participant.rm == used) {
+                participant.rm = rm;
+            }
+            if (participant.pending.isEmpty()) {
+                participant.scheduled = false;
+                participant.backoff = 0;
+            } else {
+                participant.backoff = failed ? Math.min(Math.max(participant.backoff * 2, MIN_BACKOFF), MAX_BACKOFF) : 0;
+                executor.schedule(() -> deliver(participant), participant.backoff, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    static ResourceManager<? extends ResourceItem> lookup(String rmName) throws Exception {
+        // the class literal can't carry the item type, any RM serves ResourceItems
+        @SuppressWarnings("unchecked")
+        ResourceManager<? extends ResourceItem> rm = Transport.lookup(ResourceManager.class, PropUtil.getRmiPort(rmName), rmName);
+        return rm;
+    }
+}
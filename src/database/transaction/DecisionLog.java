@@ -0,0 +1,198 @@
+package database.transaction;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Append-only log of the commit decisions of the TM.
+ * <p>
+ * The TM presumes abort, so only commits are logged: a COMMIT record naming the participants is forced
+ * before phase 2, and an END record is appended once all of them have committed. The log is truncated
+ * whenever no commit is outstanding, and otherwise rewritten to the outstanding commits once enough
+ * records are dead, so its size depends only on the trxns in flight.
+ */
+public class DecisionLog {
+    private static final byte COMMIT = 'C';
+    private static final byte END = 'E';
+
+    /**
+     * compact once this many records are dead, and more of them than commits outstanding
+     */
+    private static final int COMPACT_DEAD_RECORDS = 1000;
+
+    private final Path path;
+    private FileChannel channel;
+
+    /**
+     * records in the log that no longer matter, the COMMIT and END records of finished trxns
+     */
+    private int deadRecords = 0;
+
+    /**
+     * committed trxns and the participants that have not acknowledged the commit yet
+     */
+    private final Map<Integer, Set<String>> outstanding = new HashMap<>();
+
+    public DecisionLog(String path) throws IOException {
+        this.path = Paths.get(path);
+        Files.createDirectories(this.path.getParent());
+        channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+        while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) {
+        }
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                byte type = buf.get();
+                int xid = buf.getInt();
+                if (type == COMMIT) {
+                    Set<String> participants = new HashSet<>();
+                    for (int n = buf.getShort(); n > 0; n--) {
+                        byte[] name = new byte[buf.getShort()];
+                        buf.get(name);
+                        participants.add(new String(name, StandardCharsets.UTF_8));
+                    }
+                    outstanding.put(xid, participants);
+                } else if (type == END) {
+                    outstanding.remove(xid);
+                } else {
+                    break;
+                }
+            }
+        } catch (BufferUnderflowException ignored) {
+            // torn last record, its commit was never forced and so never reported
+        }
+
+        compact();
+    }
+
+    /**
+     * Rewrite the log to the commits still outstanding. The new log is forced to a file of its own and
+     * renamed over the old one, so a crash leaves either of them whole.
+     */
+    private void compact() throws IOException {
+        Path compacted = Paths.get(path + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (Map.Entry<Integer, Set<String>> entry : outstanding.entrySet()) {
+                ByteBuffer record = commitRecord(entry.getKey(), entry.getValue());
+                while (record.hasRemaining()) {
+                    position += out.write(record, position);
+                }
+            }
+            out.force(false);
+        }
+        Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        deadRecords = 0;
+    }
+
+    /**
+     * Force a commit decision to disk, the trxn is committed once this returns.
+     */
+    public synchronized void logCommit(int xid, Collection<String> participants) throws IOException {
+        logCommits(Collections.singletonMap(xid, participants));
+    }
+
+    /**
+     * Force the commit decisions of several trxns to disk with a single write.
+     */
+    public synchronized void logCommits(Map<Integer, ? extends Collection<String>> decisions) throws IOException {
+        if (decisions.isEmpty()) {
+            return;
+        }
+        List<ByteBuffer> records = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<Integer, ? extends Collection<String>> entry : decisions.entrySet()) {
+            ByteBuffer record = commitRecord(entry.getKey(), entry.getValue());
+            records.add(record);
+            size += record.remaining();
+        }
+        ByteBuffer batch = ByteBuffer.allocate(size);
+        for (ByteBuffer record : records) {
+            batch.put(record);
+        }
+        batch.flip();
+        append(batch);
+        channel.force(false);
+        for (Map.Entry<Integer, ? extends Collection<String>> entry : decisions.entrySet()) {
+            outstanding.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+    }
+
+    /**
+     * Record that a participant has committed the trxn.
+     *
+     * @return true if it was the last participant the trxn waited for
+     */
+    public synchronized boolean ack(int xid, String participant) throws IOException {
+        Set<String> participants = outstanding.get(xid);
+        if (participants == null || !participants.remove(participant) || !participants.isEmpty()) {
+            return false;
+        }
+        outstanding.remove(xid);
+        if (outstanding.isEmpty()) {
+            channel.truncate(0);
+            deadRecords = 0;
+        } else {
+            // no need to force, a lost END only makes the participants be asked again
+            ByteBuffer record = ByteBuffer.allocate(5);
+            record.put(END).putInt(xid).flip();
+            append(record);
+            deadRecords += 2;
+            if (deadRecords >= COMPACT_DEAD_RECORDS && deadRecords > outstanding.size()) {
+                compact();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the committed trxns that still wait for some participants, and those participants
+     */
+    public synchronized Map<Integer, Set<String>> outstanding() {
+        Map<Integer, Set<String>> copy = new HashMap<>();
+        for (Map.Entry<Integer, Set<String>> entry : outstanding.entrySet()) {
+            copy.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    private ByteBuffer commitRecord(int xid, Collection<String> participants) {
+        List<byte[]> names = new ArrayList<>();
+        int size = 1 + 4 + 2;
+        for (String participant : participants) {
+            byte[] name = participant.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += 2 + name.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.put(COMMIT).putInt(xid).putShort((short) names.size());
+        for (byte[] name : names) {
+            record.putShort((short) name.length).put(name);
+        }
+        record.flip();
+        return record;
+    }
+
+    private void append(ByteBuffer record) throws IOException {
+        long position = channel.size();
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+    }
+}
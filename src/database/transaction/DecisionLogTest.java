@@ -0,0 +1,81 @@
+package database.transaction;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+class DecisionLogTest {
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("decisionlog");
+        test1(dir.resolve("test1.log"));
+        test2(dir.resolve("test2.log"));
+        test3(dir.resolve("test3.log"));
+    }
+
+    static void test1(Path path) throws IOException {
+        System.out.println("Recovery test");
+        DecisionLog log = new DecisionLog(path.toString());
+        log.logCommit(1, Arrays.asList("rm.flights", "rm.cars"));
+        log.logCommits(new TreeMap<>(Map.of(2, Arrays.asList("rm.flights"), 3, Arrays.asList("rm.hotels", "rm.customers"))));
+        log.ack(1, "rm.flights");
+        log.ack(2, "rm.flights");
+        log.ack(3, "rm.hotels");
+        log.ack(3, "rm.customers");
+
+        // 1 still waits, 2 and 3 have their END records. A single ack isn't logged, so after recovery
+        // all the participants of 1 are asked again
+        Map<Integer, Set<String>> expected = new HashMap<>();
+        expected.put(1, new HashSet<>(Arrays.asList("rm.flights", "rm.cars")));
+        check(new DecisionLog(path.toString()).outstanding(), expected);
+    }
+
+    static void test2(Path path) throws IOException {
+        System.out.println("Torn record test");
+        DecisionLog log = new DecisionLog(path.toString());
+        log.logCommit(1, Arrays.asList("rm.flights"));
+        // the start of a COMMIT record whose write didn't finish
+        Files.write(path, new byte[]{'C', 0, 0}, StandardOpenOption.APPEND);
+
+        Map<Integer, Set<String>> expected = new HashMap<>();
+        expected.put(1, new HashSet<>(Arrays.asList("rm.flights")));
+        check(new DecisionLog(path.toString()).outstanding(), expected);
+    }
+
+    static void test3(Path path) throws IOException {
+        System.out.println("Compaction test");
+        DecisionLog log = new DecisionLog(path.toString());
+        // one commit stays outstanding, so the log is never truncated
+        log.logCommit(0, Arrays.asList("rm.flights", "rm.cars"));
+        log.ack(0, "rm.flights");
+        long maxSize = 0;
+        for (int xid = 1; xid <= 10000; xid++) {
+            log.logCommit(xid, Arrays.asList("rm.flights"));
+            log.ack(xid, "rm.flights");
+            maxSize = Math.max(maxSize, Files.size(path));
+        }
+        if (maxSize > 100000) {
+            fail("the log grew to " + maxSize + " bytes for a single outstanding commit");
+        }
+
+        // the compacted log keeps the participants not acked yet
+        Map<Integer, Set<String>> expected = new HashMap<>();
+        expected.put(0, new HashSet<>(Arrays.asList("rm.cars")));
+        check(log.outstanding(), expected);
+        check(new DecisionLog(path.toString()).outstanding(), expected);
+    }
+
+    static void check(Map<Integer, Set<String>> outstanding, Map<Integer, Set<String>> expected) {
+        if (!outstanding.equals(expected)) {
+            fail("expected outstanding " + expected + ", got " + outstanding);
+        }
+        System.out.println("Outstanding " + outstanding);
+    }
+
+    static void fail(String message) {
+        System.out.println("Decision log test failed: " + message);
+        System.exit(1);
+    }
+}
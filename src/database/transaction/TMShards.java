@@ -0,0 +1,52 @@
+package database.transaction;
+
+import database.transport.Transport;
+import database.utils.PropUtil;
+
+/**
+ * Routing of xids to the TM shards.
+ * <p>
+ * tm.shards TMs run side by side, each owning a disjoint range of XID_SHARD_SIZE xids:
+ * shard i hands out xids from i * XID_SHARD_SIZE + 1 on. Shard 0 listens on tm.port, shard i on tm.i.port.
+ */
+public class TMShards {
+    public static final int XID_SHARD_SIZE = 100000000;
+
+    public static int count() {
+        return Integer.parseInt(PropUtil.getProperty("tm.shards", "1"));
+    }
+
+    public static int shardOf(int xid) {
+        return Math.max(0, xid - 1) / XID_SHARD_SIZE;
+    }
+
+    public static int firstXid(int shard) {
+        return shard * XID_SHARD_SIZE + 1;
+    }
+
+    public static int lastXid(int shard) {
+        return (shard + 1) * XID_SHARD_SIZE;
+    }
+
+    public static String getRmiPort(int shard) {
+        return PropUtil.getRmiPort(shard == 0 ? "tm" : "tm." + shard);
+    }
+
+    /**
+     * @return the TM of @tms that owns trxn @xid, xids out of every range go to the last shard, which rejects them
+     */
+    public static TransactionManager route(TransactionManager[] tms, int xid) {
+        return tms[Math.min(shardOf(xid), tms.length - 1)];
+    }
+
+    /**
+     * look up all TM shards
+     */
+    public static TransactionManager[] lookup() throws Exception {
+        TransactionManager[] tms = new TransactionManager[count()];
+        for (int shard = 0; shard < tms.length; shard++) {
+            tms[shard] = Transport.lookup(TransactionManager.class, getRmiPort(shard), TransactionManager.RMIName);
+        }
+        return tms;
+    }
+}
@@ -68,6 +68,16 @@ public interface TransactionManager extends Remote {
      */
     public void commit(int xid) throws RemoteException, InvalidTransactionException, TransactionAbortedException;
 
+    /**
+     * commit a batch of transactions at once, the prepare and commit messages to each RM are
+     * grouped for the whole batch and the commit decisions are logged with a single write
+     *
+     * @param xids transaction ids
+     * @return for each transaction, true if it committed, false if it is invalid or was aborted
+     * @throws RemoteException on communications failure.
+     */
+    public boolean[] commitAll(int[] xids) throws RemoteException;
+
     /**
      * abort transaction id = @xid
      *
@@ -79,12 +89,32 @@ public interface TransactionManager extends Remote {
     public void abort(int xid, String msg) throws RemoteException, InvalidTransactionException;
 
     /**
-     * ask if transaction id = @xid is committed.
+     * ask if transaction id = @xid is committed. The TM only remembers the latest outcomes and forgets
+     * them when it restarts, so a trxn it has no record of may have committed.
      *
      * @param xid transaction id
+     * @return true if committed, false if aborted or never asked to commit, null if the TM doesn't know yet or any more
+     * @throws RemoteException on communications failure.
+     */
+    public Boolean ifCommitted(int xid) throws RemoteException;
+
+    /**
+     * tell the TM that RM = @rmName has committed transaction id = @xid,
+     * used by a RM that recovers a trxn the TM has decided to commit
+     *
+     * @param xid    transaction id
+     * @param rmName the RMI name of the RM
+     * @throws RemoteException on communications failure.
+     */
+    public void ackCommit(int xid, String rmName) throws RemoteException;
+
+    /**
+     * tell the TM that transactions @xids are still in use, so they are not aborted for inactivity
+     *
+     * @param xids transaction ids
      * @throws RemoteException on communications failure.
      */
-    public boolean ifCommitted(int xid) throws RemoteException;
+    public void touch(int[] xids) throws RemoteException;
 
     /**
      *  set tm die time, dieTime show be
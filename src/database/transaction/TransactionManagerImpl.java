@@ -4,15 +4,14 @@ import database.entity.ResourceItem;
 import database.exception.InvalidTransactionException;
 import database.exception.TransactionAbortedException;
 import database.resource.ResourceManager;
+import database.transport.Transport;
 import database.utils.IOUtil;
-import database.utils.PropUtil;
 
-import java.rmi.Naming;
+import java.io.IOException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Transaction Manager for the Distributed Travel Reservation System.
@@ -21,8 +20,20 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 
 public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject implements TransactionManager {
-    private Integer xidCounter;
-    private static final String xidCounterPath = "data/xidCounter.log";
+    private final AtomicInteger xidCounter;
+    private final String xidCounterPath;
+
+    /**
+     * this TM owns the xids of its shard, see TMShards
+     */
+    private final int shard;
+
+    /**
+     * xids are handed out from leases of XID_LEASE ids and only the end of the current lease is persisted,
+     * a restarted TM continues after the last lease so no xid is handed out twice
+     */
+    private static final int XID_LEASE = 10000;
+    private volatile int xidLeaseEnd;
 
     /**
      * the RMs that related to each transaction
@@ -30,20 +41,84 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
     private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, ResourceManager<? extends ResourceItem>>> rms;
 
     /**
-     * record each trxn's status
+     * record the status of each trxn in flight, only kept in memory since the TM presumes abort:
+     * a trxn the TM does not know about is aborted, unless its commit is in the decision log
+     */
+    private final ConcurrentHashMap<Integer, TMStatus> TMTrxnStatus = new ConcurrentHashMap<>();
+
+    /**
+     * the outcome of the latest finished trxns, to answer ifCommitted() and repeated commit/abort calls
+     */
+    private static final int RECENT_OUTCOMES = 10000;
+    private final Map<Integer, TMStatus> recentOutcomes = Collections.synchronizedMap(new LinkedHashMap<Integer, TMStatus>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, TMStatus> eldest) {
+            return size() > RECENT_OUTCOMES;
+        }
+    });
+
+    /**
+     * trxns committing in one phase, their only RM decides the outcome and the TM can't abort them
+     */
+    private final Set<Integer> onePhase = ConcurrentHashMap.newKeySet();
+
+    /**
+     * the RM of each one phase commit whose reply was lost, the reaper asks it for the outcome until it answers
      */
-    private final ConcurrentHashMap<Integer, TMStatus> TMTrxnStatus;
-    private static final String TMTrxnStatusPath = "data/TMTrxnStatus.log";
+    private final ConcurrentHashMap<Integer, String> inDoubt = new ConcurrentHashMap<>();
+
+    private final DecisionLog decisionLog;
+    private final String decisionLogPath;
+
+    /**
+     * delivers phase 2 in the background once the commit decision is logged
+     */
+    private final CommitDispatcher commitDispatcher = new CommitDispatcher((xid, rmName) -> {
+        try {
+            ackCommit(xid, rmName);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    });
 
     private TMDieTime dieTime;
 
-    protected static Registry _rmiRegistry = null;
+    /**
+     * bounded pool used to send prepare/commit to all participants of a trxn at the same time
+     */
+    private static final int PARTICIPANT_THREADS = 16;
+    private final ExecutorService participantExecutor = Executors.newFixedThreadPool(PARTICIPANT_THREADS, r -> {
+        Thread thread = new Thread(r, "tm-2pc");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    /**
+     * how long the TM waits for all votes of a trxn, in milliseconds
+     */
+    private static final long PREPARE_TIMEOUT = 30000;
 
-    @SuppressWarnings("unchecked")
-    public TransactionManagerImpl() throws RemoteException {
+    /**
+     * a trxn without any activity for TRXN_TIMEOUT milliseconds is aborted by the reaper,
+     * so a crashed client can't hold its locks forever
+     */
+    private static final long TRXN_TIMEOUT = 60000;
+    private static final long REAP_INTERVAL = 5000;
+
+    /**
+     * last time each active trxn was started, enlisted or used on a RM
+     */
+    private final ConcurrentHashMap<Integer, Long> lastActivity = new ConcurrentHashMap<>();
+
+
+
+    public TransactionManagerImpl(int shard) throws RemoteException {
         super();
 
+        // every shard keeps its own logs, shard 0 keeps the names of a single TM
+        this.shard = shard;
+        this.xidCounterPath = shard == 0 ? "data/xidCounter.log" : "data/xidCounter-" + shard + ".log";
+        this.decisionLogPath = shard == 0 ? "data/TMDecisions.log" : "data/TMDecisions-" + shard + ".log";
         this.rms = new ConcurrentHashMap<>();
         this.dieTime = TMDieTime.Never;
 
@@ -51,35 +126,75 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
         Object temp;
         temp = IOUtil.loadObject(xidCounterPath);
         if (temp != null)
-            this.xidCounter = (Integer) temp;
+            this.xidLeaseEnd = (Integer) temp;
         else {
-            System.out.println("Fail to load previous xidCounter from xidCounterPath: " + xidCounterPath + " , set xidCounter to 1 instead");
-            this.xidCounter = 1;
+            System.out.println("Fail to load previous xidCounter from xidCounterPath: " + xidCounterPath + " , set xidCounter to " + TMShards.firstXid(shard) + " instead");
+            this.xidLeaseEnd = TMShards.firstXid(shard);
         }
-        temp = IOUtil.loadObject(TMTrxnStatusPath);
-        if (temp != null)
-            this.TMTrxnStatus = (ConcurrentHashMap<Integer, TMStatus>) temp;
-        else {
-            System.out.println("Fail to load previous TMTrxnStatus from TMTrxnStatusPath: " + TMTrxnStatusPath + " , new an empty TMTrxnStatus instead");
-            this.TMTrxnStatus = new ConcurrentHashMap<>();
+        this.xidCounter = new AtomicInteger(xidLeaseEnd);
+        try {
+            this.decisionLog = new DecisionLog(decisionLogPath);
+        } catch (IOException e) {
+            throw new RemoteException("Can't open decision log " + decisionLogPath, e);
+        }
+        // commits not acknowledged by all participants before the TM died, deliver them again
+        for (Map.Entry<Integer, Set<String>> entry : decisionLog.outstanding().entrySet()) {
+            TMTrxnStatus.put(entry.getKey(), TMStatus.COMMITTED);
+            for (String rmName : entry.getValue()) {
+                commitDispatcher.dispatch(entry.getKey(), rmName, null);
+            }
         }
+        System.out.println("TM recover committed Trxns waiting for RMs: " + TMTrxnStatus.keySet());
+
+        startReaper();
+    }
+
+    private void startReaper() {
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tm-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Integer, Long> entry : lastActivity.entrySet()) {
+                int xid = entry.getKey();
+                if (now - entry.getValue() < TRXN_TIMEOUT)
+                    continue;
+                // only a trxn nobody has asked to commit yet
+                synchronized (decisionLog) {
+                    if (!TMTrxnStatus.replace(xid, TMStatus.INITIATED, TMStatus.ABORTED))
+                        continue;
+                }
+                try {
+                    this.abort(xid, "Trxn ID " + xid + " is inactive for more than " + TRXN_TIMEOUT + "ms");
+                } catch (Exception e) {
+                    // committed or aborted meanwhile
+                    System.err.printf("TM fails to abort inactive Trxn ID %d: %s\n", xid, e);
+                }
+            }
+            for (Integer xid : inDoubt.keySet()) {
+                resolveInDoubt(xid);
+            }
+        }, REAP_INTERVAL, REAP_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
 
     public static void main(String[] args) {
+        // the shard of this TM, 0 unless given
+        int shard = args.length > 0 ? Integer.parseInt(args[0]) : 0;
 
-        String rmiPort = PropUtil.getRmiPort("tm");
+        String rmiPort = TMShards.getRmiPort(shard);
 
         try {
-            _rmiRegistry = LocateRegistry.createRegistry(Integer.parseInt(rmiPort));
+            Transport.listen(rmiPort);
         } catch (RemoteException e) {
             e.printStackTrace();
             System.exit(1);
         }
-        rmiPort = "//localhost:" + rmiPort + "/";
         try {
-            TransactionManagerImpl obj = new TransactionManagerImpl();
-            Naming.rebind(rmiPort + TransactionManager.RMIName, obj);
+            TransactionManagerImpl obj = new TransactionManagerImpl(shard);
+            Transport.bind(rmiPort, TransactionManager.RMIName, obj);
             System.out.println("TM bound");
         } catch (Exception e) {
             System.err.println("TM not bound:");
@@ -107,30 +222,33 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
         System.out.printf("Trxn ID %d: Enter TM.enlist().\n", xid);
 
         // abnormal case, happen when TM recover from die and RM call TM.enlist() to reconnect TM
-        if (!TMTrxnStatus.containsKey(xid))
-            throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "xid to enlist, should start first!");
-        else if (TMTrxnStatus.get(xid) == TMStatus.COMMITTED) {
-            System.out.println("TM state is: " + TMTrxnStatus.get(xid) + ". Tell RM " + rm.getRMIName() + "that Trxn ID " + xid + " should commit!");
-            return TMStatus.COMMITTED;
-        } else if (TMTrxnStatus.get(xid) == TMStatus.ABORTED) {
-            System.out.println("TM state is: " + TMTrxnStatus.get(xid) + ". Tell RM " + rm.getRMIName() + "that Trxn ID " + xid + " should abort!");
-            return TMStatus.ABORTED;
-        } else if (TMTrxnStatus.get(xid) == TMStatus.PREPARING) {
-            System.out.println("TM state is: " + TMTrxnStatus.get(xid) + ". Tell RM " + rm.getRMIName() + "that Trxn ID " + xid + " should abort!");
-            synchronized (TMTrxnStatus) {
-                TMTrxnStatus.put(xid, TMStatus.ABORTED);
-                IOUtil.storeObject(TMTrxnStatus, TMTrxnStatusPath);
+        TMStatus status = statusOf(xid);
+        if (status == TMStatus.PREPARING) {
+            // the RM died while preparing, its vote is lost. decisions are made holding the decision log
+            synchronized (decisionLog) {
+                TMTrxnStatus.replace(xid, TMStatus.PREPARING, TMStatus.ABORTED);
             }
+            status = statusOf(xid);
+        }
+        if (status == null) {
+            System.out.println("TM does not know Trxn ID " + xid + ", presume it aborted. Tell RM " + rm.getRMIName() + " that it should abort!");
+            return TMStatus.ABORTED;
+        } else if (status == TMStatus.COMMITTED) {
+            System.out.println("TM state is: " + status + ". Tell RM " + rm.getRMIName() + "that Trxn ID " + xid + " should commit!");
+            return TMStatus.COMMITTED;
+        } else if (status == TMStatus.ABORTED) {
+            System.out.println("TM state is: " + status + ". Tell RM " + rm.getRMIName() + "that Trxn ID " + xid + " should abort!");
             return TMStatus.ABORTED;
         }
 
         // normal case, trxnStatus.get(xid) == TMStatus.INITIATED
         synchronized (rms) {
-            if (!rms.containsKey(xid)) // maybe happen when TM die before preparing
+            if (!rms.containsKey(xid))
                 rms.put(xid, new ConcurrentHashMap<>());
             System.out.printf("Trxn ID %d: RM %s enlist to TM.\n", xid, rm.getRMIName());
             rms.get(xid).put(rm.getRMIName(), rm);
         }
+        lastActivity.put(xid, System.currentTimeMillis());
         return TMStatus.INITIATED;
     }
 
@@ -138,13 +256,12 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
     @Override
     public int start() throws RemoteException {
         System.out.println("Enter TM.start().");
-        Integer newXid = xidCounter++;
-        IOUtil.storeObject(xidCounter, xidCounterPath);
+        int newXid = xidCounter.getAndIncrement();
+        if (newXid >= xidLeaseEnd)
+            leaseXids(newXid);
 
-        synchronized (TMTrxnStatus) {
-            TMTrxnStatus.put(newXid, TMStatus.INITIATED);
-            IOUtil.storeObject(TMTrxnStatus, TMTrxnStatusPath);
-        }
+        TMTrxnStatus.put(newXid, TMStatus.INITIATED);
+        lastActivity.put(newXid, System.currentTimeMillis());
 
         synchronized (rms) {
             rms.put(newXid, new ConcurrentHashMap<>());
@@ -153,70 +270,138 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
         return newXid;
     }
 
+    /**
+     * persist a new lease that covers @xid before it is handed out
+     */
+    private synchronized void leaseXids(int xid) throws RemoteException {
+        if (xid < xidLeaseEnd)
+            return;
+        if (xid > TMShards.lastXid(shard))
+            throw new RemoteException("TM shard " + shard + " runs out of xids");
+        int leaseEnd = Math.min(xid + XID_LEASE, TMShards.lastXid(shard) + 1);
+        if (!IOUtil.storeObject(leaseEnd, xidCounterPath))
+            throw new RemoteException("Can't write xid lease to " + xidCounterPath);
+        xidLeaseEnd = leaseEnd;
+    }
+
     @Override
     public void commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         System.out.printf("Trxn ID %d: Enter TM.commit().\n", xid);
 
         // abnormal case
-        if (!TMTrxnStatus.containsKey(xid))
-            throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to commit, it needs to start first");
-        else if (TMTrxnStatus.get(xid) == TMStatus.COMMITTED) {
+        TMStatus status = statusOf(xid);
+        if (status == null)
+            throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to commit, it is not started or already aborted");
+        else if (status == TMStatus.COMMITTED) {
             throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to commit, it is already committed!");
-        } else if (TMTrxnStatus.get(xid) == TMStatus.ABORTED) {
+        } else if (status == TMStatus.ABORTED) {
             throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to commit, it is already aborted!");
-        } else if (TMTrxnStatus.get(xid) == TMStatus.PREPARING) {
+        } else if (status == TMStatus.PREPARING) {
             // perhaps never reach this
             throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to commit, it is already preparing!");
         }
 
         // normal case, trxnStatus.get(xid) == TMStatus.INITIATED
         ConcurrentHashMap<String, ResourceManager<? extends ResourceItem>> relatedRMs = rms.get(xid);
+        // an abort or the reaper may have finished the trxn since its status was read
+        if (relatedRMs == null)
+            throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to commit, it is already aborted!");
+        // a single participant decides the outcome by itself, skip the 2pc round trips and log writes
+        if (relatedRMs.size() == 1) {
+            commitOnePhase(xid, relatedRMs);
+            return;
+        }
         // 2pc
         // phase 1: prepare phase
-        synchronized (TMTrxnStatus) {
-            TMTrxnStatus.put(xid, TMStatus.PREPARING);
-            IOUtil.storeObject(TMTrxnStatus, TMTrxnStatusPath);
-        }
+        // not logged, a TM that dies while preparing forgets the trxn and so presumes it aborted
+        if (!TMTrxnStatus.replace(xid, TMStatus.INITIATED, TMStatus.PREPARING))
+            throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to commit, it is already aborted!");
+        // send prepare to every participant at once and collect the votes as they arrive
+        CompletionService<ResourceManager.Vote> votes = new ExecutorCompletionService<>(participantExecutor);
+        Map<Future<ResourceManager.Vote>, String> voters = new HashMap<>();
         for (Map.Entry<String, ResourceManager<? extends ResourceItem>> temp : relatedRMs.entrySet()) {
-            String rmName = temp.getKey();
             ResourceManager<? extends ResourceItem> rm = temp.getValue();
+            voters.put(votes.submit(() -> rm.prepare(xid)), temp.getKey());
+        }
+        // read-only participants have already released the trxn and are left out of phase 2
+        Set<String> readOnlyRMs = new HashSet<>();
+        String failure = null;
+        long deadline = System.currentTimeMillis() + PREPARE_TIMEOUT;
+        for (int i = 0; i < voters.size() && failure == null; i++) {
+            Future<ResourceManager.Vote> vote;
             try {
-                if (!rm.prepare(xid)) {
+                vote = votes.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                vote = null;
+            }
+            if (vote == null) {
+                failure = "When committing Trxn ID " + xid + ", not all RMs voted within " + PREPARE_TIMEOUT + "ms!";
+                break;
+            }
+            String rmName = voters.get(vote);
+            try {
+                ResourceManager.Vote result = vote.get();
+                if (result == ResourceManager.Vote.NO) {
                     // rm is not prepared.
-                    throw new TransactionAbortedException(xid, "When committing Trxn ID " + xid + ", RM " + rmName + " is not prepared!");
+                    failure = "When committing Trxn ID " + xid + ", RM " + rmName + " is not prepared!";
+                } else if (result == ResourceManager.Vote.READ_ONLY) {
+                    readOnlyRMs.add(rmName);
                 }
-            } catch (RemoteException e) {
-                // catch RemoteException, abort all if any rm is not prepared
+            } catch (ExecutionException | InterruptedException e) {
+                // catch RemoteException etc., abort all if any rm is not prepared
                 System.err.printf("Detect RM %s die when prepare Trxn ID %d!\n", rmName, xid);
                 e.printStackTrace();
-                this.abort(xid, "When committing Trxn ID " + xid + ", RM " + rmName + " is not prepared!");
-                throw new TransactionAbortedException(xid, "When committing Trxn ID " + xid + ", RM " + rmName + " is not prepared!");
+                failure = "When committing Trxn ID " + xid + ", RM " + rmName + " is not prepared!";
             }
         }
+        if (failure != null) {
+            // the first NO decides, don't wait for the other votes
+            for (Future<ResourceManager.Vote> vote : voters.keySet()) {
+                vote.cancel(true);
+            }
+            this.abort(xid, failure);
+            throw new TransactionAbortedException(xid, failure);
+        }
 
-        // prepared, die before commit if set
-        if (this.dieTime == TMDieTime.BeforeCommit)
-            dieNow();
-        // log commit with xid
-        synchronized (TMTrxnStatus) {
-            TMTrxnStatus.put(xid, TMStatus.COMMITTED);
-            IOUtil.storeObject(TMTrxnStatus, TMTrxnStatusPath);
+        // nothing to commit anywhere, the outcome does not need to be logged
+        if (readOnlyRMs.size() == relatedRMs.size()) {
+            finish(xid, TMStatus.COMMITTED);
+            System.out.printf("Successfully commit read-only Trxn ID %d.\n", xid);
+            return;
+        }
+
+        Set<String> committingRMs = new HashSet<>(relatedRMs.keySet());
+        committingRMs.removeAll(readOnlyRMs);
+        synchronized (decisionLog) {
+            // a participant may have restarted and been told to abort while the votes were collected
+            if (TMTrxnStatus.get(xid) != TMStatus.PREPARING) {
+                failure = "When committing Trxn ID " + xid + ", a RM restarted while preparing!";
+            } else {
+                // prepared, die before commit if set
+                if (this.dieTime == TMDieTime.BeforeCommit)
+                    dieNow();
+                // force the commit decision, the only record the TM keeps of a trxn
+                try {
+                    decisionLog.logCommit(xid, committingRMs);
+                    TMTrxnStatus.put(xid, TMStatus.COMMITTED);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failure = "When committing Trxn ID " + xid + ", TM fails to log the commit!";
+                }
+            }
+        }
+        if (failure != null) {
+            this.abort(xid, failure);
+            throw new TransactionAbortedException(xid, failure);
         }
         // finish log commit, die before commit if set
         if (this.dieTime == TMDieTime.AfterCommit)
             dieNow();
 
-        // phase 2: commit phase
-        for (Map.Entry<String, ResourceManager<? extends ResourceItem>> temp : relatedRMs.entrySet()) {
-            String rmName = temp.getKey();
-            ResourceManager<? extends ResourceItem> rm = temp.getValue();
-            try {
-                rm.commit(xid);
-            } catch (RemoteException e) {
-                // catch RemoteException, the rm will recommit when it recovers
-                System.err.printf("Detect RM %s die when commit Trxn ID %d!\n", rmName, xid);
-                e.printStackTrace();
-            }
+        // phase 2: commit phase, the decision is durable so the client does not wait for it
+        for (String rmName : committingRMs) {
+            commitDispatcher.dispatch(xid, rmName, relatedRMs.get(rmName));
         }
 
         // remove committed transactions
@@ -224,36 +409,225 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
             rms.remove(xid);
         }
 
-        //todo: perhaps we can do some design and remove trxnStatus here
-        synchronized (TMTrxnStatus) {
+        // since the decision is logged, the trxn will eventually commit on every RM, even though the TM or RM will suddenly die
+        System.out.printf("Successfully commit Trxn ID %d.\n", xid);
+    }
 
+    @Override
+    public boolean[] commitAll(int[] xids) throws RemoteException {
+        System.out.printf("Enter TM.commitAll() for %d Trxns.\n", xids.length);
+
+        // phase 1: one prepareAll() per RM for all the trxns of the batch it takes part in
+        Map<Integer, ConcurrentHashMap<String, ResourceManager<? extends ResourceItem>>> preparing = new LinkedHashMap<>();
+        Map<String, List<Integer>> xidsPerRM = new HashMap<>();
+        Map<String, ResourceManager<? extends ResourceItem>> batchRMs = new HashMap<>();
+        for (int xid : xids) {
+            // invalid trxns are reported as not committed, the participants are read first since a
+            // finished trxn loses its status before them
+            ConcurrentHashMap<String, ResourceManager<? extends ResourceItem>> relatedRMs = rms.get(xid);
+            if (relatedRMs == null || preparing.containsKey(xid) || !TMTrxnStatus.replace(xid, TMStatus.INITIATED, TMStatus.PREPARING))
+                continue;
+            preparing.put(xid, relatedRMs);
+            for (Map.Entry<String, ResourceManager<? extends ResourceItem>> temp : relatedRMs.entrySet()) {
+                xidsPerRM.computeIfAbsent(temp.getKey(), k -> new ArrayList<>()).add(xid);
+                batchRMs.put(temp.getKey(), temp.getValue());
+            }
+        }
+        Map<Future<ResourceManager.Vote[]>, String> voters = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> temp : xidsPerRM.entrySet()) {
+            ResourceManager<? extends ResourceItem> rm = batchRMs.get(temp.getKey());
+            int[] batch = new int[temp.getValue().size()];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = temp.getValue().get(i);
+            }
+            voters.put(participantExecutor.submit(() -> rm.prepareAll(batch)), temp.getKey());
+        }
+        Map<Integer, String> failures = new HashMap<>();
+        Map<Integer, Set<String>> readOnlyRMs = new HashMap<>();
+        long deadline = System.currentTimeMillis() + PREPARE_TIMEOUT;
+        for (Map.Entry<Future<ResourceManager.Vote[]>, String> voter : voters.entrySet()) {
+            String rmName = voter.getValue();
+            List<Integer> batch = xidsPerRM.get(rmName);
+            try {
+                ResourceManager.Vote[] votes = voter.getKey().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                for (int i = 0; i < votes.length; i++) {
+                    if (votes[i] == ResourceManager.Vote.NO)
+                        failures.putIfAbsent(batch.get(i), "When committing Trxn ID " + batch.get(i) + ", RM " + rmName + " is not prepared!");
+                    else if (votes[i] == ResourceManager.Vote.READ_ONLY)
+                        readOnlyRMs.computeIfAbsent(batch.get(i), k -> new HashSet<>()).add(rmName);
+                }
+            } catch (ExecutionException | InterruptedException | TimeoutException e) {
+                System.err.printf("Detect RM %s die when prepare %d Trxns!\n", rmName, batch.size());
+                e.printStackTrace();
+                for (Integer xid : batch) {
+                    failures.putIfAbsent(xid, "When committing Trxn ID " + xid + ", RM " + rmName + " is not prepared!");
+                }
+            }
         }
 
-        // since TM already enter COMMITTED state, the trxn will eventually commit, even though the TM or RM will suddenly die
-        System.out.printf("Successfully commit Trxn ID %d.\n", xid);
+        // one forced write for the decisions of the whole batch
+        Map<Integer, Set<String>> decisions = new LinkedHashMap<>();
+        synchronized (decisionLog) {
+            for (Map.Entry<Integer, ConcurrentHashMap<String, ResourceManager<? extends ResourceItem>>> temp : preparing.entrySet()) {
+                int xid = temp.getKey();
+                if (failures.containsKey(xid))
+                    continue;
+                if (TMTrxnStatus.get(xid) != TMStatus.PREPARING) {
+                    failures.put(xid, "When committing Trxn ID " + xid + ", a RM restarted while preparing!");
+                    continue;
+                }
+                Set<String> committingRMs = new HashSet<>(temp.getValue().keySet());
+                committingRMs.removeAll(readOnlyRMs.getOrDefault(xid, Collections.emptySet()));
+                decisions.put(xid, committingRMs);
+            }
+            if (this.dieTime == TMDieTime.BeforeCommit)
+                dieNow();
+            // nothing to commit anywhere for a read-only trxn, the outcome does not need to be logged
+            Map<Integer, Set<String>> logged = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Set<String>> decision : decisions.entrySet()) {
+                if (!decision.getValue().isEmpty())
+                    logged.put(decision.getKey(), decision.getValue());
+            }
+            try {
+                decisionLog.logCommits(logged);
+                for (Integer xid : decisions.keySet()) {
+                    TMTrxnStatus.put(xid, TMStatus.COMMITTED);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (Integer xid : decisions.keySet()) {
+                    failures.put(xid, "When committing Trxn ID " + xid + ", TM fails to log the commit!");
+                }
+                decisions.clear();
+            }
+        }
+        if (this.dieTime == TMDieTime.AfterCommit)
+            dieNow();
+
+        for (Map.Entry<Integer, String> failure : failures.entrySet()) {
+            try {
+                this.abort(failure.getKey(), failure.getValue());
+            } catch (InvalidTransactionException e) {
+                // aborted meanwhile
+                e.printStackTrace();
+            }
+        }
+
+        // phase 2: the dispatcher groups the commits per RM
+        for (Map.Entry<Integer, Set<String>> decision : decisions.entrySet()) {
+            int xid = decision.getKey();
+            if (decision.getValue().isEmpty()) {
+                finish(xid, TMStatus.COMMITTED);
+                continue;
+            }
+            for (String rmName : decision.getValue()) {
+                commitDispatcher.dispatch(xid, rmName, preparing.get(xid).get(rmName));
+            }
+            synchronized (rms) {
+                rms.remove(xid);
+            }
+        }
+
+        boolean[] committed = new boolean[xids.length];
+        for (int i = 0; i < xids.length; i++) {
+            committed[i] = decisions.containsKey(xids[i]);
+        }
+        System.out.printf("Successfully commit %d of %d Trxns.\n", decisions.size(), xids.length);
+        return committed;
+    }
+
+    private void commitOnePhase(int xid, Map<String, ResourceManager<? extends ResourceItem>> relatedRMs) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        Map.Entry<String, ResourceManager<? extends ResourceItem>> participant = relatedRMs.entrySet().iterator().next();
+        String rmName = participant.getKey();
+
+        // from here on the rm decides the outcome
+        synchronized (decisionLog) {
+            if (!TMTrxnStatus.replace(xid, TMStatus.INITIATED, TMStatus.PREPARING))
+                throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to commit, it is already aborted!");
+            onePhase.add(xid);
+        }
+        if (this.dieTime == TMDieTime.BeforeCommit)
+            dieNow();
+        boolean committed;
+        try {
+            committed = participant.getValue().commitOnePhase(xid);
+        } catch (InvalidTransactionException e) {
+            // the rm no longer knows the trxn, it was aborted there
+            e.printStackTrace();
+            committed = false;
+        } catch (RemoteException e) {
+            // the rm may have committed before the reply was lost, only it knows the outcome
+            System.err.printf("Detect RM %s die when commit Trxn ID %d in one phase!\n", rmName, xid);
+            e.printStackTrace();
+            inDoubt.put(xid, rmName);
+            TMStatus outcome = resolveInDoubt(xid);
+            if (outcome == null)
+                throw new RemoteException("The outcome of Trxn ID " + xid + " is in doubt, RM " + rmName + " can't tell it", e);
+            committed = outcome == TMStatus.COMMITTED;
+        }
+        if (!committed) {
+            String msg = "When committing Trxn ID " + xid + " in one phase, RM " + rmName + " is not prepared!";
+            // the rm has already aborted
+            finish(xid, TMStatus.ABORTED);
+            throw new TransactionAbortedException(xid, msg);
+        }
+
+        // the rm has committed, so no COMMITTED record is needed for recovery
+        if (this.dieTime == TMDieTime.AfterCommit)
+            dieNow();
+        finish(xid, TMStatus.COMMITTED);
+        System.out.printf("Successfully commit Trxn ID %d in one phase.\n", xid);
+    }
+
+    /**
+     * Ask the rm of a one phase commit in doubt for the outcome, and finish the trxn once it is known.
+     *
+     * @return COMMITTED or ABORTED, null while the rm can't be reached or if it no longer knows the trxn
+     */
+    private TMStatus resolveInDoubt(int xid) {
+        String rmName = inDoubt.get(xid);
+        if (rmName == null)
+            return statusOf(xid);
+        // a rm that restarts without the commit enlists the trxn again and is told to abort
+        TMStatus outcome = TMTrxnStatus.get(xid);
+        if (outcome == TMStatus.PREPARING) {
+            try {
+                Boolean committed = CommitDispatcher.lookup(rmName).committedOnePhase(xid);
+                outcome = committed == null ? null : committed ? TMStatus.COMMITTED : TMStatus.ABORTED;
+            } catch (Exception e) {
+                System.err.printf("Fail to ask RM %s for the outcome of Trxn ID %d: %s\n", rmName, xid, e);
+                return null;
+            }
+        }
+        System.out.printf("Trxn ID %d in doubt is resolved as %s.\n", xid, outcome);
+        finish(xid, outcome);
+        return outcome;
     }
 
     @Override
     public void abort(int xid, String msg) throws RemoteException, InvalidTransactionException {
         System.out.printf("Trxn ID %d: Enter TM.abort(). The reason for abort is: %s\n", xid, msg);
 
-        // abnormal case
-        if (!TMTrxnStatus.containsKey(xid))
-            throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to abort, it needs to start first");
-        else if (TMTrxnStatus.get(xid) == TMStatus.COMMITTED) {
-            throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to abort, it is already committed!");
-        } else if (TMTrxnStatus.get(xid) == TMStatus.ABORTED) {
-            throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to abort, is already aborted!");
-        }
+        // decisions are made holding the decision log, so a commit can't be logged between the check and the abort
+        synchronized (decisionLog) {
+            // abnormal case
+            TMStatus status = statusOf(xid);
+            if (status == null)
+                throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to abort, it is not started or already aborted");
+            else if (status == TMStatus.COMMITTED) {
+                throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to abort, it is already committed!");
+            } else if (status == TMStatus.ABORTED && rms.get(xid) == null) {
+                throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to abort, is already aborted!");
+            } else if (onePhase.contains(xid)) {
+                throw new InvalidTransactionException(xid, "Invalid Trxn ID " + xid + "to abort, its only RM is committing it!");
+            }
 
-        // log aborted with xid, trxnStatus.get(xid) == TMStatus.INITIATED or TMStatus.PREPARING
-        synchronized (TMTrxnStatus) {
+            // no need to log the abort, trxnStatus.get(xid) == TMStatus.INITIATED or TMStatus.PREPARING
             TMTrxnStatus.put(xid, TMStatus.ABORTED);
-            IOUtil.storeObject(TMTrxnStatus, TMTrxnStatusPath);
         }
 
-        // call each rm's abort() method
-        ConcurrentHashMap<String, ResourceManager<? extends ResourceItem>> relatedRMs = rms.get(xid);
+        // call each rm's abort() method, nothing left to do if a concurrent abort has finished the trxn
+        ConcurrentHashMap<String, ResourceManager<? extends ResourceItem>> relatedRMs = rms.getOrDefault(xid, new ConcurrentHashMap<>());
         for (Map.Entry<String, ResourceManager<? extends ResourceItem>> temp : relatedRMs.entrySet()) {
             String rmName = temp.getKey();
             ResourceManager<? extends ResourceItem> rm = temp.getValue();
@@ -266,18 +640,62 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
             }
         }
 
-        // remove aborted transactions
-        synchronized (rms) {
-            rms.remove(xid);
-        }
-
-        //todo: perhaps we can do some design and remove trxnStatus here
+        finish(xid, TMStatus.ABORTED);
 
         System.out.printf("Successfully abort Trxn ID %d.\n", xid);
     }
 
     @Override
-    public boolean ifCommitted(int xid) throws RemoteException {
-        return TMTrxnStatus.get(xid) == TMStatus.COMMITTED;
+    public Boolean ifCommitted(int xid) throws RemoteException {
+        TMStatus status = inDoubt.containsKey(xid) ? resolveInDoubt(xid) : statusOf(xid);
+        // no record, or still being decided
+        if (status == null || status == TMStatus.PREPARING)
+            return null;
+        return status == TMStatus.COMMITTED;
+    }
+
+    @Override
+    public void ackCommit(int xid, String rmName) throws RemoteException {
+        System.out.printf("Trxn ID %d: RM %s acks the commit.\n", xid, rmName);
+        try {
+            if (decisionLog.ack(xid, rmName)) {
+                finish(xid, TMStatus.COMMITTED);
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Can't write decision log " + decisionLogPath, e);
+        }
+    }
+
+    @Override
+    public void touch(int[] xids) throws RemoteException {
+        long now = System.currentTimeMillis();
+        for (int xid : xids) {
+            lastActivity.replace(xid, now);
+        }
+    }
+
+    /**
+     * @return the status of the trxn, null if the TM does not know it, which means it is aborted
+     */
+    private TMStatus statusOf(int xid) {
+        TMStatus status = TMTrxnStatus.get(xid);
+        return status != null ? status : recentOutcomes.get(xid);
+    }
+
+    /**
+     * Forget a trxn that needs nothing more from the TM, only its outcome is kept for a while.
+     *
+     * @param outcome null if nobody knows it any more
+     */
+    private void finish(int xid, TMStatus outcome) {
+        if (outcome != null)
+            recentOutcomes.put(xid, outcome);
+        TMTrxnStatus.remove(xid);
+        lastActivity.remove(xid);
+        onePhase.remove(xid);
+        inDoubt.remove(xid);
+        synchronized (rms) {
+            rms.remove(xid);
+        }
     }
 }
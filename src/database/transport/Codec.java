@@ -0,0 +1,265 @@
+package database.transport;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of one frame of a NIO call.
+ * <p>
+ * The types that make up most of the traffic (ints, booleans, strings, xid arrays, enums, lists) get a
+ * one byte tag and a compact body. Remote objects travel as references. Anything else, e.g. the
+ * entities and Ops, falls back to java serialization: those values are written together in one object
+ * stream after the compact part, so a frame carries the class descriptors once like an RMI call.
+ * <p>
+ * A frame is (frame length, compact part length, compact part, object stream).
+ */
+class Codec {
+    private static final byte NULL = 0;
+    private static final byte INT = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte STRING = 3;
+    private static final byte INT_ARRAY = 4;
+    private static final byte BOOLEAN_ARRAY = 5;
+    private static final byte ENUM = 6;
+    private static final byte ENUM_ARRAY = 7;
+    private static final byte LIST = 8;
+    private static final byte REMOTE = 9;
+    private static final byte LONG = 10;
+    private static final byte SERIALIZED = 127;
+
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    // writing
+    private Buffer bytes;
+    DataOutputStream out;
+    private List<Object> objects;
+
+    // reading
+    DataInputStream in;
+    private byte[] frame;
+    private int objectsOffset;
+    private Object[] readObjects;
+    private String peerHost;
+
+    /**
+     * a codec to write a frame
+     */
+    Codec() {
+        bytes = new Buffer();
+        out = new DataOutputStream(bytes);
+        objects = new ArrayList<>();
+    }
+
+    /**
+     * a codec to read @frame, without its length
+     *
+     * @param peerHost host of the other end, remote references it sends live there
+     */
+    Codec(byte[] frame, String peerHost) {
+        int length = ByteBuffer.wrap(frame).getInt();
+        this.frame = frame;
+        this.in = new DataInputStream(new ByteArrayInputStream(frame, 4, length));
+        this.objectsOffset = 4 + length;
+        this.peerHost = peerHost;
+    }
+
+    /**
+     * the written frame, ready to send
+     */
+    ByteBuffer toFrame() throws IOException {
+        Buffer tail = new Buffer();
+        if (!objects.isEmpty()) {
+            try (ObjectOutputStream oos = new ObjectOutputStream(tail)) {
+                oos.writeObject(objects.toArray());
+            }
+        }
+        ByteBuffer frame = ByteBuffer.allocate(8 + bytes.size() + tail.size());
+        frame.putInt(4 + bytes.size() + tail.size());
+        frame.putInt(bytes.size());
+        frame.put(bytes.array(), 0, bytes.size());
+        frame.put(tail.array(), 0, tail.size());
+        frame.flip();
+        return frame;
+    }
+
+    void write(Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString((String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof int[]) {
+            int[] ints = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            out.writeInt(ints.length);
+            for (int i : ints) {
+                out.writeInt(i);
+            }
+        } else if (value instanceof boolean[]) {
+            boolean[] booleans = (boolean[]) value;
+            out.writeByte(BOOLEAN_ARRAY);
+            out.writeInt(booleans.length);
+            for (boolean b : booleans) {
+                out.writeBoolean(b);
+            }
+        } else if (value instanceof Enum) {
+            Enum<?> e = (Enum<?>) value;
+            out.writeByte(ENUM);
+            writeString(e.getDeclaringClass().getName());
+            out.writeShort(e.ordinal());
+        } else if (value instanceof Enum[]) {
+            Enum<?>[] enums = (Enum<?>[]) value;
+            out.writeByte(ENUM_ARRAY);
+            writeString(value.getClass().getComponentType().getName());
+            out.writeInt(enums.length);
+            for (Enum<?> e : enums) {
+                out.writeShort(e == null ? -1 : e.ordinal());
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                write(element);
+            }
+        } else if (value instanceof Remote) {
+            RemoteRef ref = refOf(value);
+            out.writeByte(REMOTE);
+            writeString(ref.iface.getName());
+            out.writeInt(ref.port);
+            writeString(ref.name);
+            out.writeLong(ref.incarnation);
+        } else if (value instanceof Serializable) {
+            out.writeByte(SERIALIZED);
+            out.writeInt(objects.size());
+            objects.add(value);
+        } else {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Object read() throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INT:
+                return in.readInt();
+            case BOOLEAN:
+                return in.readBoolean();
+            case STRING:
+                return readString();
+            case LONG:
+                return in.readLong();
+            case INT_ARRAY: {
+                int[] ints = new int[in.readInt()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = in.readInt();
+                }
+                return ints;
+            }
+            case BOOLEAN_ARRAY: {
+                boolean[] booleans = new boolean[in.readInt()];
+                for (int i = 0; i < booleans.length; i++) {
+                    booleans[i] = in.readBoolean();
+                }
+                return booleans;
+            }
+            case ENUM: {
+                Class<?> type = classFor(readString());
+                return type.getEnumConstants()[in.readShort()];
+            }
+            case ENUM_ARRAY: {
+                Class<?> type = classFor(readString());
+                Object[] constants = type.getEnumConstants();
+                Object[] enums = (Object[]) Array.newInstance(type, in.readInt());
+                for (int i = 0; i < enums.length; i++) {
+                    short ordinal = in.readShort();
+                    enums[i] = ordinal < 0 ? null : constants[ordinal];
+                }
+                return enums;
+            }
+            case LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read());
+                }
+                return list;
+            }
+            case REMOTE: {
+                Class iface = classFor(readString());
+                int port = in.readInt();
+                String name = readString();
+                long incarnation = in.readLong();
+                return NioClient.stub(new RemoteRef(iface, peerHost, port, name, incarnation));
+            }
+            case SERIALIZED:
+                return readObjects()[in.readInt()];
+            default:
+                throw new StreamCorruptedException("Unknown tag " + tag);
+        }
+    }
+
+    private Object[] readObjects() throws IOException {
+        if (readObjects == null) {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(frame, objectsOffset, frame.length - objectsOffset))) {
+                readObjects = (Object[]) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new InvalidClassException(e.getMessage());
+            }
+        }
+        return readObjects;
+    }
+
+    private static RemoteRef refOf(Object value) throws IOException {
+        if (Proxy.isProxyClass(value.getClass()) && Proxy.getInvocationHandler(value) instanceof NioClient.Stub) {
+            return ((NioClient.Stub) Proxy.getInvocationHandler(value)).ref;
+        }
+        RemoteRef ref = NioServer.refOf(value);
+        if (ref == null) {
+            throw new NotSerializableException("Remote object is not exported over NIO: " + value.getClass().getName());
+        }
+        return ref;
+    }
+
+    private static Class<?> classFor(String name) throws IOException {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(name);
+        }
+    }
+
+    void writeString(String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    String readString() throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,386 @@
+package database.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.*;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One connection to a NioServer, shared by every stub and thread that calls into that server.
+ * <p>
+ * Calls are pipelined: each request gets an id and is written right away, responses come back in
+ * whatever order the server finishes them. There is no reader thread: one of the waiting callers
+ * reads the responses and hands each to its caller, until its own has arrived and it passes the
+ * reading on to another waiting caller. A lone caller so reads its own response without any thread
+ * switch. When the connection breaks all pending calls fail with a RemoteException, and the next call
+ * opens a new connection.
+ * <p>
+ * Interface methods that return a CompletableFuture don't wait at all: the future is completed with
+ * the result once it comes back, read by a waiting caller or by a reader thread that runs while only
+ * such calls are pending. Callbacks on these futures run on the reading thread and must not block.
+ */
+public class NioClient {
+    private static final Map<String, NioClient> clients = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final int port;
+    private final SocketChannel channel;
+    private final long incarnation;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, Call> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock reading = new ReentrantLock();
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private volatile IOException closed = null;
+    /**
+     * pending calls nobody waits for, and whether a thread reads their responses
+     */
+    private final AtomicInteger asyncPending = new AtomicInteger();
+    private final AtomicBoolean asyncReading = new AtomicBoolean();
+
+    private static class Call {
+        // null for an async call
+        final Thread caller;
+        final CompletableFuture<Codec> future;
+        volatile Codec response;
+        volatile IOException failure;
+
+        Call(boolean async) {
+            this.caller = async ? null : Thread.currentThread();
+            this.future = async ? new CompletableFuture<>() : null;
+        }
+
+        boolean isDone() {
+            return response != null || failure != null;
+        }
+
+        void complete(Codec response, IOException failure) {
+            this.response = response;
+            this.failure = failure;
+            if (caller != null) {
+                LockSupport.unpark(caller);
+            } else if (failure == null) {
+                future.complete(response);
+            } else {
+                future.completeExceptionally(new ConnectIOException("Connection is lost", failure));
+            }
+        }
+    }
+
+    private NioClient(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        ByteBuffer hello = ByteBuffer.allocate(8);
+        readFully(hello);
+        this.incarnation = hello.getLong(0);
+    }
+
+    private static NioClient get(String host, int port) throws RemoteException {
+        String endpoint = host + ":" + port;
+        NioClient client = clients.get(endpoint);
+        if (client != null && client.closed == null) {
+            return client;
+        }
+        synchronized (clients) {
+            client = clients.get(endpoint);
+            if (client == null || client.closed != null) {
+                try {
+                    client = new NioClient(host, port);
+                } catch (IOException e) {
+                    throw new ConnectException("Connection refused to " + endpoint, e);
+                }
+                clients.put(endpoint, client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * look up the object bound to @name on @host:@port, like Naming.lookup()
+     */
+    static <T> T lookup(Class<T> iface, String host, int port, String name) throws RemoteException, NotBoundException {
+        NioClient client = get(host, port);
+        Codec response = client.call(RemoteRef.LOOKUP, name, new Object[0]);
+        try {
+            if (response.in.readByte() != NioServer.OK) {
+                Object failure = response.read();
+                if (failure instanceof NotBoundException) {
+                    throw (NotBoundException) failure;
+                }
+                throw new RemoteException("Lookup of " + name + " failed", (Throwable) failure);
+            }
+        } catch (IOException e) {
+            throw new UnmarshalException("Fail to decode the lookup of " + name, e);
+        }
+        return iface.cast(stub(new RemoteRef(iface, host, port, name, client.incarnation)));
+    }
+
+    static Object stub(RemoteRef ref) {
+        return Proxy.newProxyInstance(ref.iface.getClassLoader(), new Class<?>[]{ref.iface}, new Stub(ref));
+    }
+
+    /**
+     * send a call and wait for its response
+     *
+     * @return the response, positioned at the status byte
+     */
+    private Codec call(int methodId, String name, Object[] args) throws RemoteException {
+        Call call = send(methodId, name, args, false);
+        await(call);
+        if (call.failure != null) {
+            throw new ConnectIOException("Connection to " + host + ":" + port + " is lost", call.failure);
+        }
+        return call.response;
+    }
+
+    /**
+     * send a call without waiting for it
+     *
+     * @return the future of the response, positioned at the status byte
+     */
+    private CompletableFuture<Codec> callAsync(int methodId, String name, Object[] args) throws RemoteException {
+        asyncPending.incrementAndGet();
+        Call call = send(methodId, name, args, true);
+        if (asyncReading.compareAndSet(false, true)) {
+            Thread reader = new Thread(this::readAsync, "nio-client-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return call.future;
+    }
+
+    private Call send(int methodId, String name, Object[] args, boolean async) throws RemoteException {
+        int requestId = nextRequestId.getAndIncrement() & Integer.MAX_VALUE;
+        ByteBuffer frame;
+        try {
+            Codec codec = new Codec();
+            codec.out.writeInt(requestId);
+            codec.out.writeInt(methodId);
+            codec.writeString(name);
+            codec.out.writeByte(args.length);
+            for (Object arg : args) {
+                codec.write(arg);
+            }
+            frame = codec.toFrame();
+        } catch (IOException e) {
+            if (async) {
+                asyncPending.decrementAndGet();
+            }
+            throw new MarshalException("Fail to encode a call to " + name, e);
+        }
+
+        Call call = new Call(async);
+        pending.put(requestId, call);
+        try {
+            synchronized (channel) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+        if (closed != null && pending.remove(requestId) != null) {
+            // close() may have run before the put
+            finish(call, null, closed);
+        }
+        return call;
+    }
+
+    private void await(Call call) {
+        while (!call.isDone()) {
+            if (reading.tryLock()) {
+                try {
+                    while (!call.isDone()) {
+                        readResponse();
+                    }
+                } catch (IOException e) {
+                    close(e);
+                } finally {
+                    reading.unlock();
+                }
+                handOver();
+            } else {
+                // woken when the response arrives or the reading is handed over, the timeout is a safety net
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    /**
+     * let a caller that still waits read on
+     */
+    private void handOver() {
+        for (Call call : pending.values()) {
+            if (call.caller != null) {
+                LockSupport.unpark(call.caller);
+                return;
+            }
+        }
+    }
+
+    /**
+     * read the responses while async calls are pending
+     */
+    private void readAsync() {
+        do {
+            reading.lock();
+            try {
+                while (asyncPending.get() > 0 && closed == null) {
+                    readResponse();
+                }
+            } catch (IOException e) {
+                close(e);
+            } finally {
+                reading.unlock();
+            }
+            handOver();
+            asyncReading.set(false);
+            // an async call sent meanwhile may have seen this reader still running
+        } while (asyncPending.get() > 0 && closed == null && asyncReading.compareAndSet(false, true));
+    }
+
+    private void finish(Call call, Codec response, IOException failure) {
+        if (call.caller == null) {
+            asyncPending.decrementAndGet();
+        }
+        call.complete(response, failure);
+    }
+
+    private void readResponse() throws IOException {
+        header.clear();
+        readFully(header);
+        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+        readFully(body);
+        Codec response = new Codec(body.array(), host);
+        Call call = pending.remove(response.in.readInt());
+        if (call != null) {
+            finish(call, response, null);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by " + host + ":" + port);
+            }
+        }
+    }
+
+    private void close(IOException cause) {
+        synchronized (this) {
+            if (closed != null) {
+                return;
+            }
+            closed = cause;
+        }
+        clients.remove(host + ":" + port, this);
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        for (Integer requestId : pending.keySet()) {
+            Call call = pending.remove(requestId);
+            if (call != null) {
+                finish(call, null, cause);
+            }
+        }
+    }
+
+    /**
+     * Proxy behind a remote reference, turns interface calls into NIO calls.
+     */
+    static class Stub implements InvocationHandler {
+        final RemoteRef ref;
+
+        Stub(RemoteRef ref) {
+            this.ref = ref;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return args[0] != null && Proxy.isProxyClass(args[0].getClass())
+                                && Proxy.getInvocationHandler(args[0]) instanceof Stub
+                                && ref.equals(((Stub) Proxy.getInvocationHandler(args[0])).ref);
+                    case "hashCode":
+                        return ref.hashCode();
+                    default:
+                        return "NioStub{" + ref + "}";
+                }
+            }
+
+            NioClient client = get(ref.host, ref.port);
+            if (client.incarnation != ref.incarnation) {
+                throw new NoSuchObjectException(ref.name + " on " + ref.host + ":" + ref.port + " has restarted");
+            }
+            if (method.getReturnType() == CompletableFuture.class) {
+                CompletableFuture<Object> result = new CompletableFuture<>();
+                client.callAsync(RemoteRef.methodId(method), ref.name, args == null ? new Object[0] : args).whenComplete((response, failure) -> {
+                    if (failure != null) {
+                        result.completeExceptionally(failure);
+                        return;
+                    }
+                    try {
+                        result.complete(result(method, response));
+                    } catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    }
+                });
+                return result;
+            }
+            return result(method, client.call(RemoteRef.methodId(method), ref.name, args == null ? new Object[0] : args));
+        }
+
+        /**
+         * @return the value of @response, or throw the exception in it
+         */
+        private Object result(Method method, Codec response) throws Throwable {
+            byte status;
+            Object value;
+            try {
+                status = response.in.readByte();
+                value = response.read();
+            } catch (IOException e) {
+                throw new UnmarshalException("Fail to decode the result of " + method.getName(), e);
+            }
+            if (status == NioServer.OK) {
+                return value;
+            }
+
+            Throwable cause = (Throwable) value;
+            if (cause instanceof NotBoundException) {
+                throw new NoSuchObjectException(ref.name + " is no longer bound");
+            }
+            if (cause instanceof RuntimeException || cause instanceof Error) {
+                throw cause;
+            }
+            // an async call may fail with anything its future can
+            if (method.getReturnType() == CompletableFuture.class) {
+                throw cause;
+            }
+            for (Class<?> declared : method.getExceptionTypes()) {
+                if (declared.isInstance(cause)) {
+                    throw cause;
+                }
+            }
+            throw new UnexpectedException("Undeclared exception from " + method.getName(), (Exception) cause);
+        }
+    }
+}
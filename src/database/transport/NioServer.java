@@ -0,0 +1,348 @@
+package database.transport;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.ServerException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the objects bound on one port over NIO.
+ * <p>
+ * The server threads take turns as the leader that runs the selector: it accepts connections,
+ * reads request frames and flushes responses. Once the leader has a frame, it hands the selector to
+ * the next thread and runs the call itself, so a request is served by the thread that read it. A call
+ * that waits for a lock holds neither the connection nor the other calls multiplexed on it, and a new
+ * thread is started whenever none is left to take over the selector, like RMI's thread per call.
+ * <p>
+ * Frames are length prefixed. A request is (request id, method id, object name, args) and a response
+ * is (request id, status, result or exception). On accept the server sends its incarnation first.
+ * A method that returns a CompletableFuture is answered when the future completes, with its value.
+ */
+public class NioServer {
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private static final Map<Integer, NioServer> servers = new ConcurrentHashMap<>();
+    private static final Map<Object, RemoteRef> exported = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final int port;
+    private final long incarnation = new Random().nextLong();
+    private final Map<String, Object> objects = new ConcurrentHashMap<>();
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Queue<Connection> toFlush = new ConcurrentLinkedQueue<>();
+
+    /**
+     * held by the leader, the other idle threads wait for it
+     */
+    private final ReentrantLock leader = new ReentrantLock();
+    /**
+     * calls read but not yet taken by a thread, guarded by leader
+     */
+    private final Queue<Runnable> ready = new ArrayDeque<>();
+    /**
+     * threads not running a call
+     */
+    private final AtomicInteger idle = new AtomicInteger();
+    private static final int MAX_IDLE = 4;
+
+    private class Connection {
+        final SocketChannel channel;
+        final String peerHost;
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        final Queue<ByteBuffer> out = new ArrayDeque<>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.peerHost = ((InetSocketAddress) channel.socket().getRemoteSocketAddress()).getHostString();
+        }
+
+        /**
+         * write @frame right away if nothing is queued before it, leave the rest to the selector thread
+         */
+        void send(ByteBuffer frame) throws IOException {
+            synchronized (this) {
+                if (out.isEmpty()) {
+                    channel.write(frame);
+                    if (!frame.hasRemaining()) {
+                        return;
+                    }
+                }
+                out.add(frame);
+            }
+            toFlush.add(this);
+            selector.wakeup();
+        }
+    }
+
+    private NioServer(int port) throws IOException {
+        this.port = port;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        startThread();
+    }
+
+    private void startThread() {
+        idle.incrementAndGet();
+        new Thread(this::serve, "nio-server-" + port).start();
+    }
+
+    /**
+     * start serving on @port, like LocateRegistry.createRegistry()
+     */
+    public static synchronized NioServer listen(int port) throws IOException {
+        NioServer server = servers.get(port);
+        if (server == null) {
+            server = new NioServer(port);
+            servers.put(port, server);
+        }
+        return server;
+    }
+
+    public static NioServer get(int port) {
+        return servers.get(port);
+    }
+
+    /**
+     * make @obj callable under @name, references to it sent to other processes point here
+     */
+    public void bind(String name, Remote obj) {
+        objects.put(name, obj);
+        exported.put(obj, new RemoteRef(RemoteRef.remoteInterface(obj.getClass()), "localhost", port, name, incarnation));
+    }
+
+    static RemoteRef refOf(Object obj) {
+        return exported.get(obj);
+    }
+
+    private void serve() {
+        while (true) {
+            Runnable call;
+            leader.lock();
+            try {
+                call = next();
+            } catch (IOException e) {
+                System.err.printf("NIO server on port %d: %s\n", port, e);
+                continue;
+            } finally {
+                leader.unlock();
+            }
+            // keep a thread to take over the selector while this one runs the call
+            if (idle.decrementAndGet() == 0) {
+                startThread();
+            }
+            call.run();
+            if (idle.incrementAndGet() > MAX_IDLE) {
+                idle.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * run the selector until a call is ready
+     */
+    private Runnable next() throws IOException {
+        while (ready.isEmpty()) {
+            selector.select();
+            Connection connection;
+            while ((connection = toFlush.poll()) != null) {
+                SelectionKey key = connection.channel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    // the peer went away, its in-flight calls just lose their responses
+                    key.cancel();
+                    try {
+                        key.channel().close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        return ready.poll();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        ByteBuffer hello = ByteBuffer.allocate(8);
+        hello.putLong(incarnation).flip();
+        try {
+            connection.send(hello);
+        } catch (IOException e) {
+            channel.close();
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.channel.read(connection.in) < 0) {
+            throw new EOFException();
+        }
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (in.remaining() < 4 + length) {
+                if (4 + length > in.capacity()) {
+                    // grow for a big frame
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                    bigger.put(in);
+                    bigger.flip();
+                    in = bigger;
+                }
+                break;
+            }
+            in.getInt();
+            byte[] frame = new byte[length];
+            in.get(frame);
+            ready.add(() -> handle(connection, frame));
+        }
+        in.compact();
+        connection.in = in;
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        synchronized (connection) {
+            ByteBuffer frame;
+            while ((frame = connection.out.peek()) != null) {
+                connection.channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                connection.out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void handle(Connection connection, byte[] frame) {
+        int requestId = -1;
+        byte status;
+        Object result;
+        try {
+            Codec request = new Codec(frame, connection.peerHost);
+            requestId = request.in.readInt();
+            int methodId = request.in.readInt();
+            String name = request.readString();
+            Object[] args = new Object[request.in.readByte()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = request.read();
+            }
+            result = invoke(name, methodId, args);
+            status = OK;
+            if (result instanceof CompletableFuture) {
+                int id = requestId;
+                ((CompletableFuture<?>) result).whenComplete((value, e) -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    reply(connection, id, cause == null ? OK : ERROR, cause == null ? value : cause);
+                });
+                return;
+            }
+        } catch (InvocationTargetException e) {
+            result = e.getCause();
+            status = ERROR;
+        } catch (Exception e) {
+            result = e instanceof RemoteExceptionHolder ? e.getCause() : new ServerException("NIO call failed", e);
+            status = ERROR;
+        }
+        if (requestId < 0) {
+            return;
+        }
+        reply(connection, requestId, status, result);
+    }
+
+    private void reply(Connection connection, int requestId, byte status, Object result) {
+        ByteBuffer response;
+        try {
+            response = response(requestId, status, result);
+        } catch (IOException e) {
+            try {
+                response = response(requestId, ERROR, new ServerException("Fail to send the result", e));
+            } catch (IOException e2) {
+                System.err.printf("NIO server on port %d fails to encode a response: %s\n", port, e2);
+                return;
+            }
+        }
+        try {
+            connection.send(response);
+        } catch (IOException e) {
+            // the peer went away, the selector thread closes the connection
+        }
+    }
+
+    private static ByteBuffer response(int requestId, byte status, Object result) throws IOException {
+        Codec codec = new Codec();
+        codec.out.writeInt(requestId);
+        codec.out.writeByte(status);
+        codec.write(result);
+        return codec.toFrame();
+    }
+
+    private Object invoke(String name, int methodId, Object[] args) throws Exception {
+        Object target = objects.get(name);
+        if (target == null) {
+            throw new RemoteExceptionHolder(new NotBoundException(name));
+        }
+        if (methodId == RemoteRef.LOOKUP) {
+            return null;
+        }
+        Method method = RemoteRef.methodTable(target.getClass()).get(methodId);
+        if (method == null) {
+            throw new RemoteExceptionHolder(new NoSuchObjectException("No such method on " + name));
+        }
+        return method.invoke(target, args);
+    }
+
+    /**
+     * carries an exception that goes back to the caller as is
+     */
+    private static class RemoteExceptionHolder extends Exception {
+        RemoteExceptionHolder(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package database.transport;
+
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Address of an object exported over NIO: the interface it is called through, where its server
+ * listens and the name it is bound to there.
+ * <p>
+ * The incarnation identifies one run of the server, so a reference into a server that has since
+ * restarted fails like a stale RMI stub instead of silently reaching the new object.
+ */
+class RemoteRef {
+    /**
+     * method id 0 is no method of an interface, it checks that a name is bound
+     */
+    static final int LOOKUP = 0;
+
+    final Class<?> iface;
+    final String host;
+    final int port;
+    final String name;
+    final long incarnation;
+
+    private static final Map<Method, Integer> methodIds = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Map<Integer, Method>> methodTables = new ConcurrentHashMap<>();
+
+    RemoteRef(Class<?> iface, String host, int port, String name, long incarnation) {
+        this.iface = iface;
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.incarnation = incarnation;
+    }
+
+    /**
+     * the id of a method on the wire, the same on both ends as long as they run the same interfaces
+     */
+    static int methodId(Method method) {
+        return methodIds.computeIfAbsent(method, m -> {
+            int id = (m.getName() + Arrays.toString(m.getParameterTypes())).hashCode();
+            return id == LOOKUP ? 1 : id;
+        });
+    }
+
+    /**
+     * all methods of the remote interfaces of @cls by id
+     */
+    static Map<Integer, Method> methodTable(Class<?> cls) {
+        return methodTables.computeIfAbsent(cls, c -> {
+            Map<Integer, Method> table = new HashMap<>();
+            for (Class<?> iface : remoteInterfaces(c)) {
+                for (Method method : iface.getMethods()) {
+                    Method other = table.put(methodId(method), method);
+                    if (other != null && !sameSignature(other, method)) {
+                        throw new IllegalStateException("Method id clash between " + other + " and " + method);
+                    }
+                }
+            }
+            return table;
+        });
+    }
+
+    /**
+     * the first remote interface of @cls, the one its references are called through
+     */
+    static Class<?> remoteInterface(Class<?> cls) {
+        List<Class<?>> ifaces = remoteInterfaces(cls);
+        if (ifaces.isEmpty()) {
+            throw new IllegalArgumentException(cls.getName() + " implements no remote interface");
+        }
+        return ifaces.get(0);
+    }
+
+    private static List<Class<?>> remoteInterfaces(Class<?> cls) {
+        List<Class<?>> ifaces = new ArrayList<>();
+        for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+            for (Class<?> iface : c.getInterfaces()) {
+                if (Remote.class.isAssignableFrom(iface) && iface != Remote.class && !ifaces.contains(iface)) {
+                    ifaces.add(iface);
+                }
+            }
+        }
+        return ifaces;
+    }
+
+    private static boolean sameSignature(Method a, Method b) {
+        return a.getName().equals(b.getName()) && Arrays.equals(a.getParameterTypes(), b.getParameterTypes());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RemoteRef that = (RemoteRef) o;
+
+        return port == that.port && incarnation == that.incarnation && host.equals(that.host) && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = host.hashCode();
+        result = 31 * result + port;
+        result = 31 * result + name.hashCode();
+        result = 31 * result + Long.hashCode(incarnation);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteRef{" +
+                "iface=" + iface.getSimpleName() +
+                ", host='" + host + '\'' +
+                ", port=" + port +
+                ", name='" + name + '\'' +
+                '}';
+    }
+}
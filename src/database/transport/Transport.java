@@ -0,0 +1,75 @@
+package database.transport;
+
+import database.utils.PropUtil;
+
+import java.io.IOException;
+import java.rmi.Naming;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How the TM, RMs and WC reach each other, chosen by "transport" in ddb.conf:
+ * rmi (the default) or nio, see NioServer and NioClient.
+ * <p>
+ * Both sides of a call must use the same transport. A component serves on its usual port either way.
+ */
+public class Transport {
+    private static final boolean NIO = "nio".equalsIgnoreCase(PropUtil.getProperty("transport", "rmi"));
+
+    private static final Map<String, Registry> registries = new HashMap<>();
+
+    public static boolean isNio() {
+        return NIO;
+    }
+
+    /**
+     * start serving on @port, this replaces LocateRegistry.createRegistry()
+     */
+    public static synchronized void listen(String port) throws RemoteException {
+        if (NIO) {
+            try {
+                NioServer.listen(Integer.parseInt(port));
+            } catch (IOException e) {
+                throw new RemoteException("Can't listen on port " + port, e);
+            }
+        } else if (!registries.containsKey(port)) {
+            registries.put(port, LocateRegistry.createRegistry(Integer.parseInt(port)));
+        }
+    }
+
+    /**
+     * Make @obj callable by the components it is handed to before it is bound, e.g. a RM that enlists
+     * with the TM during recovery. RMI has already exported it in the UnicastRemoteObject constructor.
+     */
+    public static void export(String port, String name, Remote obj) throws RemoteException {
+        if (NIO) {
+            listen(port);
+            NioServer.get(Integer.parseInt(port)).bind(name, obj);
+        }
+    }
+
+    /**
+     * bind @obj under @name on @port, listen() must have been called for @port
+     */
+    public static synchronized void bind(String port, String name, Remote obj) throws RemoteException {
+        if (NIO) {
+            export(port, name, obj);
+        } else {
+            registries.get(port).rebind(name, obj);
+        }
+    }
+
+    /**
+     * look up the object bound under @name on @port of this host
+     */
+    public static <T> T lookup(Class<T> iface, String port, String name) throws Exception {
+        if (NIO) {
+            return NioClient.lookup(iface, "localhost", Integer.parseInt(port), name);
+        }
+        return iface.cast(Naming.lookup("//localhost:" + port + "/" + name));
+    }
+}
@@ -0,0 +1,122 @@
+package database.transport;
+
+import database.entity.Car;
+
+import java.rmi.Naming;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency and throughput of RMI against the NIO transport, both over loopback in one JVM.
+ * <p>
+ * usage: TransportBenchmark [calls] [threads] [rmi port] [nio port]
+ */
+public class TransportBenchmark {
+
+    public interface Bench extends Remote {
+        int ping(int x) throws RemoteException;
+
+        List<Car> query(int n) throws RemoteException;
+    }
+
+    private static class BenchImpl implements Bench {
+        @Override
+        public int ping(int x) {
+            return x;
+        }
+
+        @Override
+        public List<Car> query(int n) {
+            List<Car> cars = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                cars.add(new Car("Location" + i, 200, 50, 49));
+            }
+            return cars;
+        }
+    }
+
+    private interface Call {
+        void run(Bench bench, int i) throws RemoteException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int rmiPort = args.length > 2 ? Integer.parseInt(args[2]) : 18098;
+        int nioPort = args.length > 3 ? Integer.parseInt(args[3]) : 18099;
+
+        BenchImpl impl = new BenchImpl();
+        LocateRegistry.createRegistry(rmiPort).rebind("bench", UnicastRemoteObject.exportObject(impl, 0));
+        Bench rmi = (Bench) Naming.lookup("//localhost:" + rmiPort + "/bench");
+        NioServer.listen(nioPort).bind("bench", impl);
+        Bench nio = NioClient.lookup(Bench.class, "localhost", nioPort, "bench");
+
+        Call ping = (bench, i) -> bench.ping(i);
+        Call query = (bench, i) -> bench.query(10);
+
+        System.out.printf("%d calls per run, %d threads for throughput\n", calls, threads);
+        System.out.printf("%-10s %-6s %12s %12s %16s\n", "call", "", "avg (us)", "p99 (us)", "throughput (/s)");
+        for (String name : new String[]{"ping", "query10"}) {
+            Call call = name.equals("ping") ? ping : query;
+            for (Bench bench : new Bench[]{rmi, nio}) {
+                String transport = bench == rmi ? "rmi" : "nio";
+                // warm up the JIT and the connections
+                latency(bench, call, calls / 4);
+                throughput(bench, call, calls / 4, threads);
+
+                long[] latencies = latency(bench, call, calls);
+                double perSecond = throughput(bench, call, calls, threads);
+                double avg = Arrays.stream(latencies).average().orElse(0) / 1000;
+                double p99 = latencies[(int) (latencies.length * 0.99)] / 1000.0;
+                System.out.printf("%-10s %-6s %12.1f %12.1f %16.0f\n", name, transport, avg, p99, perSecond);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return sorted latencies of @calls sequential calls in ns
+     */
+    private static long[] latency(Bench bench, Call call, int calls) throws RemoteException {
+        long[] latencies = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            call.run(bench, i);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * @return calls per second with @threads threads sharing @calls calls
+     */
+    private static double throughput(Bench bench, Call call, int calls, int threads) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < calls) {
+                        call.run(bench, i);
+                    }
+                } catch (RemoteException e) {
+                    System.err.println("Benchmark call failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return calls * 1e9 / (System.nanoTime() - start);
+    }
+}
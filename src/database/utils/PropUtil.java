@@ -18,4 +18,16 @@ public class PropUtil {
         return rmiPort;
 
     }
+
+    public static String getProperty(String key, String defaultValue){
+        Properties prop = new Properties();
+        try {
+            prop.load(Files.newInputStream(Paths.get("conf/ddb.conf")));
+        } catch (Exception e) {
+            System.out.println(key + " fail to load configuration file!");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return prop.getProperty(key, defaultValue);
+    }
 }
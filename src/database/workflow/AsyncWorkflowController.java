@@ -0,0 +1,76 @@
+package database.workflow;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of the transaction, query and reservation calls of WorkflowController,
+ * so that one client thread can keep thousands of transactions in flight.
+ * <p>
+ * Every call returns at once. Its future completes with what the WorkflowController method returns,
+ * or fails with the exception it throws: TransactionAbortedException if the transaction was aborted,
+ * InvalidTransactionException if it is invalid, RemoteException on communications failure.
+ * Callbacks on the futures run on the transport's reading thread and must not block.
+ * <p>
+ * Only served over the nio transport, see database.transport.Transport.
+ */
+public interface AsyncWorkflowController extends Remote {
+
+    /**
+     * The name an AsyncWorkflowController binds to, on the port of the WC.
+     */
+    String RMIName = "AsyncWC";
+
+    //////////
+    // TRANSACTION INTERFACE
+    //////////
+
+    /**
+     * Start a new transaction.
+     *
+     * @return the transaction id, <=0 if the server is not accepting new transactions.
+     */
+    CompletableFuture<Integer> start() throws RemoteException;
+
+    /**
+     * Commit a transaction. Concurrent commits are sent to the TM in batches.
+     *
+     * @return true on success, fails with TransactionAbortedException if the transaction was
+     * aborted or is invalid.
+     */
+    CompletableFuture<Boolean> commit(int xid) throws RemoteException;
+
+    CompletableFuture<Void> abort(int xid) throws RemoteException;
+
+    //////////
+    // QUERY INTERFACE
+    //////////
+
+    CompletableFuture<Integer> queryFlight(int xid, String flightNum) throws RemoteException;
+
+    CompletableFuture<Integer> queryFlightPrice(int xid, String flightNum) throws RemoteException;
+
+    CompletableFuture<Integer> queryRooms(int xid, String location) throws RemoteException;
+
+    CompletableFuture<Integer> queryRoomsPrice(int xid, String location) throws RemoteException;
+
+    CompletableFuture<Integer> queryCars(int xid, String location) throws RemoteException;
+
+    CompletableFuture<Integer> queryCarsPrice(int xid, String location) throws RemoteException;
+
+    CompletableFuture<Integer> queryCustomerBill(int xid, String custName) throws RemoteException;
+
+    //////////
+    // RESERVATION INTERFACE
+    //////////
+
+    CompletableFuture<Boolean> reserveFlight(int xid, String custName, String flightNum) throws RemoteException;
+
+    CompletableFuture<Boolean> reserveCar(int xid, String custName, String location) throws RemoteException;
+
+    CompletableFuture<Boolean> reserveRoom(int xid, String custName, String location) throws RemoteException;
+
+    CompletableFuture<Boolean> reserveItinerary(int xid, String custName, List<String> flightNumList, String location, boolean needCar, boolean needRoom) throws RemoteException;
+}
@@ -0,0 +1,352 @@
+package database.workflow;
+
+import database.entity.*;
+import database.exception.DeadlockException;
+import database.exception.InvalidTransactionException;
+import database.exception.TransactionAbortedException;
+import database.resource.Op;
+import database.resource.ResourceManager;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+import static database.workflow.WorkflowControllerImpl.*;
+
+/**
+ * AsyncWorkflowController over the RMs and TM shards of a WorkflowControllerImpl.
+ * <p>
+ * The RM steps of a call are chained on ResourceManager.executeAsync, so no WC thread waits for an RM.
+ * The TM calls run on a small pool, and the commits that pile up meanwhile go to the TM together
+ * through commitAll. A deadlock or a lost RM aborts the transaction like in WorkflowControllerImpl.
+ */
+class AsyncWorkflowControllerImpl implements AsyncWorkflowController {
+    private static final int TM_THREADS = 4;
+    private static final int MAX_COMMIT_BATCH = 256;
+
+    private final WorkflowControllerImpl wc;
+    private final ExecutorService tmExecutor = Executors.newFixedThreadPool(TM_THREADS, r -> {
+        Thread thread = new Thread(r, "wc-async-tm");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final BlockingQueue<PendingCommit> commits = new LinkedBlockingQueue<>();
+
+    private static class PendingCommit {
+        final int xid;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingCommit(int xid) {
+            this.xid = xid;
+        }
+    }
+
+    AsyncWorkflowControllerImpl(WorkflowControllerImpl wc) {
+        this.wc = wc;
+        for (int i = 0; i < TM_THREADS; i++) {
+            Thread committer = new Thread(this::commitBatches, "wc-async-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    // TRANSACTION INTERFACE
+    @Override
+    public CompletableFuture<Integer> start() {
+        return onTM(wc::start);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> commit(int xid) {
+        PendingCommit commit = new PendingCommit(xid);
+        commits.add(commit);
+        return commit.result;
+    }
+
+    @Override
+    public CompletableFuture<Void> abort(int xid) {
+        return onTM(() -> {
+            wc.abort(xid);
+            return null;
+        });
+    }
+
+    /**
+     * send the queued commits to the TM, as many per commitAll as have piled up
+     */
+    private void commitBatches() {
+        List<PendingCommit> batch = new ArrayList<>();
+        while (true) {
+            batch.clear();
+            try {
+                batch.add(commits.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            commits.drainTo(batch, MAX_COMMIT_BATCH - 1);
+            int[] xids = new int[batch.size()];
+            for (int i = 0; i < xids.length; i++) {
+                xids[i] = batch.get(i).xid;
+            }
+            try {
+                Boolean[] committed = wc.commitAll(xids);
+                for (int i = 0; i < xids.length; i++) {
+                    if (committed[i] == null) {
+                        batch.get(i).result.completeExceptionally(new RemoteException("The outcome of Trxn ID " + xids[i] + " is unknown"));
+                    } else if (committed[i]) {
+                        batch.get(i).result.complete(true);
+                    } else {
+                        batch.get(i).result.completeExceptionally(new TransactionAbortedException(xids[i], "TM did not commit Trxn ID " + xids[i]));
+                    }
+                }
+            } catch (RemoteException | RuntimeException e) {
+                for (PendingCommit commit : batch) {
+                    commit.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    // QUERY INTERFACE
+    @Override
+    public CompletableFuture<Integer> queryFlight(int xid, String flightNum) {
+        return queryColumn(xid, "queryFlight", wc.rmFlights, FlightsTable, flightNum, Flight::getNumAvail);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryFlightPrice(int xid, String flightNum) {
+        return queryColumn(xid, "queryFlightPrice", wc.rmFlights, FlightsTable, flightNum, Flight::getPrice);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryRooms(int xid, String location) {
+        return queryColumn(xid, "queryRooms", wc.rmHotels, RoomsTable, location, Hotel::getNumAvail);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryRoomsPrice(int xid, String location) {
+        return queryColumn(xid, "queryRoomsPrice", wc.rmHotels, RoomsTable, location, Hotel::getPrice);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryCars(int xid, String location) {
+        return queryColumn(xid, "queryCars", wc.rmCars, CarsTable, location, Car::getNumAvail);
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryCarsPrice(int xid, String location) {
+        return queryColumn(xid, "queryCarsPrice", wc.rmCars, CarsTable, location, Car::getPrice);
+    }
+
+    /**
+     * @return @column of the item, -1 if it does not exist
+     */
+    private <T extends ResourceItem> CompletableFuture<Integer> queryColumn(int xid, String call, ResourceManager<T> rm, String table, String key, Function<T, Integer> column) {
+        return guard(xid, call, this.<T, T>one(rm, xid, Op.query(table, key))
+                .thenApply(item -> item == null || item.isDeleted() ? -1 : column.apply(item)));
+    }
+
+    @Override
+    public CompletableFuture<Integer> queryCustomerBill(int xid, String custName) {
+        return queryColumn(xid, "queryCustomerBill", wc.rmCustomers, CustomersTable, custName, Customer::getBill);
+    }
+
+    // RESERVATION INTERFACE
+    @Override
+    public CompletableFuture<Boolean> reserveFlight(int xid, String custName, String flightNum) {
+        return reserve(xid, "reserveFlight", custName, wc.rmFlights, FlightsTable, flightNum, ReservationType.FLIGHT, Flight::getPrice);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveCar(int xid, String custName, String location) {
+        return reserve(xid, "reserveCar", custName, wc.rmCars, CarsTable, location, ReservationType.CAR, Car::getPrice);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveRoom(int xid, String custName, String location) {
+        return reserve(xid, "reserveRoom", custName, wc.rmHotels, RoomsTable, location, ReservationType.HOTEL, Hotel::getPrice);
+    }
+
+    /**
+     * check the customer, take one unit of @key, record the reservation and bill it, like WorkflowControllerImpl.reserveFlight()
+     */
+    private <T extends ResourceItem> CompletableFuture<Boolean> reserve(int xid, String call, String custName, ResourceManager<T> rm, String table, String key, ReservationType type, Function<T, Integer> price) {
+        if (custName == null || key == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        wc.readCache.invalidate(xid, CustomersTable, custName);
+        CompletableFuture<Boolean> reserved = this.<Customer, Boolean>one(wc.rmCustomers, xid, Op.increment(CustomersTable, custName, Customer.BILL, 0)).thenCompose(customerExists -> {
+            if (!customerExists) {
+                return CompletableFuture.completedFuture(false);
+            }
+            // the sync API of this trxn may have cached the row
+            wc.readCache.invalidate(xid, table, key);
+            return this.<T, T>one(rm, xid, Op.decrementAvailable(table, key, 1)).thenCompose(taken -> {
+                if (taken == null) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return this.<Reservation, Boolean>one(wc.rmReservations, xid, Op.insert(ReservationsTable, new Reservation(custName, type, key))).thenCompose(inserted -> {
+                    if (inserted) {
+                        return one(wc.rmCustomers, xid, Op.<Customer>increment(CustomersTable, custName, Customer.BILL, price.apply(taken))).thenApply(v -> true);
+                    }
+                    // already reserved, give the unit back
+                    return one(rm, xid, Op.<T>increment(table, key, ResourceItem.NUM_AVAIL, 1)).thenApply(v -> false);
+                });
+            });
+        });
+        return guard(xid, call, reserved);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveItinerary(int xid, String custName, List<String> flightNumList, String location, boolean needCar, boolean needRoom) {
+        if (custName == null || flightNumList.contains(null)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if ((needCar || needRoom) && location == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        // the same parts as WorkflowControllerImpl.reserveItinerary(), one per RM and in sorted key order
+        List<String> flightNums = new ArrayList<>(flightNumList);
+        Collections.sort(flightNums);
+        List<Op<Flight>> takeFlights = new ArrayList<>();
+        List<Op<Reservation>> inserts = new ArrayList<>();
+        for (String flightNum : flightNums) {
+            wc.readCache.invalidate(xid, FlightsTable, flightNum);
+            takeFlights.add(Op.decrementAvailable(FlightsTable, flightNum, 1));
+            inserts.add(Op.insert(ReservationsTable, new Reservation(custName, ReservationType.FLIGHT, flightNum)));
+        }
+        if (needCar) {
+            wc.readCache.invalidate(xid, CarsTable, location);
+            inserts.add(Op.insert(ReservationsTable, new Reservation(custName, ReservationType.CAR, location)));
+        }
+        if (needRoom) {
+            wc.readCache.invalidate(xid, RoomsTable, location);
+            inserts.add(Op.insert(ReservationsTable, new Reservation(custName, ReservationType.HOTEL, location)));
+        }
+
+        wc.readCache.invalidate(xid, CustomersTable, custName);
+        CompletableFuture<Boolean> customerPart = one(wc.rmCustomers, xid, Op.increment(CustomersTable, custName, Customer.BILL, 0));
+        CompletableFuture<List<Object>> flightsPart = takeFlights.isEmpty() ? CompletableFuture.completedFuture(new ArrayList<>()) : execute(wc.rmFlights, xid, takeFlights);
+        CompletableFuture<Car> carPart = needCar ? one(wc.rmCars, xid, Op.decrementAvailable(CarsTable, location, 1)) : CompletableFuture.completedFuture(null);
+        CompletableFuture<Hotel> roomPart = needRoom ? one(wc.rmHotels, xid, Op.decrementAvailable(RoomsTable, location, 1)) : CompletableFuture.completedFuture(null);
+        CompletableFuture<List<Object>> reservationsPart = execute(wc.rmReservations, xid, inserts);
+
+        // wait for every part, a failed one fails the whole call through allOf
+        CompletableFuture<Boolean> reserved = CompletableFuture.allOf(customerPart, flightsPart, carPart, roomPart, reservationsPart).thenCompose(v -> {
+            boolean customerExists = customerPart.join();
+            List<Object> takenFlights = flightsPart.join();
+            Car takenCar = carPart.join();
+            Hotel takenRoom = roomPart.join();
+            List<Object> inserted = reservationsPart.join();
+            if (customerExists
+                    && !takenFlights.contains(null)
+                    && (!needCar || takenCar != null)
+                    && (!needRoom || takenRoom != null)
+                    && !inserted.contains(false)) {
+                int price = 0;
+                for (Object takenFlight : takenFlights) {
+                    price += ((Flight) takenFlight).getPrice();
+                }
+                if (takenCar != null) {
+                    price += takenCar.getPrice();
+                }
+                if (takenRoom != null) {
+                    price += takenRoom.getPrice();
+                }
+                return one(wc.rmCustomers, xid, Op.<Customer>increment(CustomersTable, custName, Customer.BILL, price)).thenApply(done -> true);
+            }
+
+            // some part failed, give back what the other parts took so the itinerary has no effect
+            List<CompletableFuture<?>> giveBacks = new ArrayList<>();
+            List<Op<Flight>> giveBackFlights = new ArrayList<>();
+            for (int i = 0; i < flightNums.size(); i++) {
+                if (takenFlights.get(i) != null) {
+                    giveBackFlights.add(Op.increment(FlightsTable, flightNums.get(i), Flight.NUM_AVAIL, 1));
+                }
+            }
+            if (!giveBackFlights.isEmpty()) {
+                giveBacks.add(execute(wc.rmFlights, xid, giveBackFlights));
+            }
+            if (takenCar != null) {
+                giveBacks.add(one(wc.rmCars, xid, Op.increment(CarsTable, location, Car.NUM_AVAIL, 1)));
+            }
+            if (takenRoom != null) {
+                giveBacks.add(one(wc.rmHotels, xid, Op.increment(RoomsTable, location, Hotel.NUM_AVAIL, 1)));
+            }
+            List<Op<Reservation>> deletes = new ArrayList<>();
+            for (int i = 0; i < inserts.size(); i++) {
+                if ((Boolean) inserted.get(i)) {
+                    deletes.add(Op.delete(ReservationsTable, inserts.get(i).getKey()));
+                }
+            }
+            if (!deletes.isEmpty()) {
+                giveBacks.add(execute(wc.rmReservations, xid, deletes));
+            }
+            return CompletableFuture.allOf(giveBacks.toArray(new CompletableFuture<?>[0])).thenApply(done -> false);
+        });
+        return guard(xid, "reserveItinerary", reserved);
+    }
+
+    private <T extends ResourceItem> CompletableFuture<List<Object>> execute(ResourceManager<T> rm, int xid, List<Op<T>> ops) {
+        try {
+            return rm.executeAsync(xid, ops);
+        } catch (RemoteException e) {
+            CompletableFuture<List<Object>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * run a single @op, its result is cast to what the caller expects
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends ResourceItem, V> CompletableFuture<V> one(ResourceManager<T> rm, int xid, Op<T> op) {
+        return execute(rm, xid, Collections.singletonList(op)).thenApply(results -> (V) results.get(0));
+    }
+
+    /**
+     * Pass on the outcome of @future. If it failed with a deadlock or a RemoteException, abort the
+     * transaction first and fail with TransactionAbortedException instead.
+     */
+    private <V> CompletableFuture<V> guard(int xid, String call, CompletableFuture<V> future) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        future.whenComplete((value, e) -> {
+            if (e == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof InvalidTransactionException || cause instanceof TransactionAbortedException) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            String what = cause instanceof DeadlockException ? "deadlock" : cause instanceof RemoteException ? "RemoteException" : cause.toString();
+            String msg = "WC detect " + what + " when it call " + call + "() in Trxn ID " + xid;
+            onTM(() -> {
+                wc.abortTrxn(xid, msg);
+                return null;
+            }).whenComplete((v, abortFailure) -> result.completeExceptionally(new TransactionAbortedException(xid, msg)));
+        });
+        return result;
+    }
+
+    /**
+     * run a blocking TM call off the thread that completes the RM futures
+     */
+    private <V> CompletableFuture<V> onTM(Callable<V> call) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        tmExecutor.execute(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+}
@@ -0,0 +1,85 @@
+package database.workflow;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rows each trxn has read through the WC, so reading a row again in the same trxn costs no call
+ * to its RM.
+ * <p>
+ * A read leaves a read lock on the row, missing rows included, and a read lock conflicts with the
+ * writes and escrow updates of other trxns. So a cached row only changes through writes of its own
+ * trxn, which drop it from the cache. The rows of a trxn are forgotten when it commits or aborts.
+ * Writes of the trxn through another WC of the pool aren't seen here, so WCPool keeps a trxn on one WC.
+ */
+class ReadCache {
+    /**
+     * trxns with cached rows, beyond that the oldest ones lose their rows, e.g. those the TM aborted on a timeout
+     */
+    private static final int MAX_TRXNS = 4096;
+
+    /**
+     * stands for a row that doesn't exist
+     */
+    private static final Object MISSING = new Object();
+
+    private final Map<Integer, Map<String, Object>> trxns = new LinkedHashMap<Integer, Map<String, Object>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, Object>> eldest) {
+            return size() > MAX_TRXNS;
+        }
+    };
+
+    private static String rowId(String tableName, Object key) {
+        return tableName + "/" + key;
+    }
+
+    private synchronized Map<String, Object> rows(int xid, boolean create) {
+        Map<String, Object> rows = trxns.get(xid);
+        if (rows == null && create) {
+            rows = new ConcurrentHashMap<>();
+            trxns.put(xid, rows);
+        }
+        return rows;
+    }
+
+    boolean contains(int xid, String tableName, Object key) {
+        Map<String, Object> rows = rows(xid, false);
+        return rows != null && rows.containsKey(rowId(tableName, key));
+    }
+
+    /**
+     * @return the cached row, null if it doesn't exist or isn't cached
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(int xid, String tableName, Object key) {
+        Map<String, Object> rows = rows(xid, false);
+        Object row = rows == null ? null : rows.get(rowId(tableName, key));
+        return row == MISSING ? null : (T) row;
+    }
+
+    /**
+     * @param row as read by the trxn, null if it doesn't exist
+     */
+    void put(int xid, String tableName, Object key, Object row) {
+        rows(xid, true).put(rowId(tableName, key), row == null ? MISSING : row);
+    }
+
+    /**
+     * forget a row the trxn is about to change
+     */
+    void invalidate(int xid, String tableName, Object key) {
+        Map<String, Object> rows = rows(xid, false);
+        if (rows != null) {
+            rows.remove(rowId(tableName, key));
+        }
+    }
+
+    /**
+     * forget all rows of a trxn that has ended
+     */
+    synchronized void drop(int xid) {
+        trxns.remove(xid);
+    }
+}
@@ -0,0 +1,35 @@
+package database.workflow;
+
+/**
+ * Caps the retries of runInTransaction() over all callers of a WC to a share of the workflows run.
+ * <p>
+ * Each workflow adds ratio of a token, up to burst tokens, and each retry takes a whole one. A few
+ * aborts are always retried, but when most workflows abort the retries can't multiply the load on
+ * the hot items: the callers past the budget get their TransactionAbortedException right away.
+ */
+class RetryBudget {
+    private final double ratio;
+    private final double burst;
+    private double tokens;
+
+    RetryBudget(double ratio, int burst) {
+        this.ratio = ratio;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    synchronized void deposit() {
+        tokens = Math.min(burst, tokens + ratio);
+    }
+
+    /**
+     * @return false if the budget is spent and the caller should not retry
+     */
+    synchronized boolean withdraw() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
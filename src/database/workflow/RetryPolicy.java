@@ -0,0 +1,72 @@
+package database.workflow;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often and how soon {@link WorkflowController#runInTransaction} replays an aborted workflow.
+ * <p>
+ * The wait before retry n is drawn at random from [0, min(maxDelayMillis, baseDelayMillis * 2^(n-1))],
+ * so callers that collided on the same items spread out instead of colliding again in lockstep.
+ */
+public class RetryPolicy implements Serializable {
+
+    /**
+     * 5 attempts, waiting up to 20, 40, 80 and 160 ms in between
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 20, 1000);
+
+    /**
+     * run the workflow once, like start(), the calls and commit() by hand
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+
+    private final long baseDelayMillis;
+
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxAttempts     attempts in total including the first one, >= 1
+     * @param baseDelayMillis upper bound of the wait before the first retry
+     * @param maxDelayMillis  upper bound of any wait
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry policy " + maxAttempts + ", " + baseDelayMillis + ", " + maxDelayMillis);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * @return how long to wait after @attempt failed attempts
+     */
+    public long backoffMillis(int attempt) {
+        long bound = baseDelayMillis << Math.min(attempt - 1, 30);
+        return ThreadLocalRandom.current().nextLong(Math.min(maxDelayMillis, bound) + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "maxAttempts=" + maxAttempts +
+                ", baseDelayMillis=" + baseDelayMillis +
+                ", maxDelayMillis=" + maxDelayMillis +
+                '}';
+    }
+}
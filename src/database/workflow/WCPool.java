@@ -0,0 +1,170 @@
+package database.workflow;
+
+import database.exception.InvalidTransactionException;
+import database.exception.TransactionAbortedException;
+import database.transport.Transport;
+import database.utils.PropUtil;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The WC instances and how clients spread their calls over them.
+ * <p>
+ * wc.instances WCs run side by side, instance 0 listens on wc.port, instance i on wc.i.port. A WC keeps
+ * nothing about a trxn that the TM and RMs don't keep too, so any instance can serve any xid.
+ * The client from lookup() still sends all calls of a trxn to one instance, so its read cache hits,
+ * and only moves the trxn to the next instance when that one can't be reached. A moved trxn stays on
+ * its new instance until it commits or aborts.
+ */
+public class WCPool {
+    public static int count() {
+        return Integer.parseInt(PropUtil.getProperty("wc.instances", "1"));
+    }
+
+    public static String getRmiPort(int instance) {
+        return PropUtil.getRmiPort(instance == 0 ? "wc" : "wc." + instance);
+    }
+
+    /**
+     * @return a WC that balances over all instances, it looks up the others as it first calls them
+     */
+    public static WorkflowController lookup() throws Exception {
+        int count = count();
+        Balancer balancer = new Balancer(count);
+        // fail like a plain lookup if no instance is up
+        Exception failure = null;
+        for (int instance = 0; instance < count; instance++) {
+            try {
+                balancer.stub(instance);
+                failure = null;
+                break;
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return (WorkflowController) Proxy.newProxyInstance(WorkflowController.class.getClassLoader(),
+                new Class<?>[]{WorkflowController.class}, balancer);
+    }
+
+    /**
+     * Sends calls that take an xid to the instance of that trxn and spreads all others round robin.
+     */
+    private static class Balancer implements InvocationHandler {
+        private final WorkflowController[] wcs;
+        private final AtomicInteger next = new AtomicInteger();
+        /**
+         * the instance of each live trxn that moved away from its hash. Never evicted, a trxn sent back
+         * to its hash instance would read the rows that instance cached before the move
+         */
+        private final Map<Integer, Integer> pinned = new HashMap<>();
+
+        Balancer(int count) {
+            this.wcs = new WorkflowController[count];
+        }
+
+        /**
+         * @return the stub of @instance, looked up again if it hasn't been yet or has failed
+         */
+        synchronized WorkflowController stub(int instance) throws Exception {
+            if (wcs[instance] == null) {
+                wcs[instance] = Transport.lookup(WorkflowController.class, getRmiPort(instance), WorkflowController.RMIName);
+            }
+            return wcs[instance];
+        }
+
+        private synchronized void forget(int instance) {
+            wcs[instance] = null;
+        }
+
+        private synchronized Integer instanceOf(int xid) {
+            return pinned.get(xid);
+        }
+
+        private synchronized void pin(int xid, int instance) {
+            pinned.put(xid, instance);
+        }
+
+        private synchronized void unpin(int xid) {
+            pinned.remove(xid);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "WCPool{" + wcs.length + " instances}";
+                }
+            }
+
+            // every call about one trxn takes its xid first
+            boolean byXid = method.getParameterCount() > 0 && method.getParameterTypes()[0] == int.class;
+            int xid = byXid ? (Integer) args[0] : 0;
+            int first;
+            if (byXid) {
+                Integer instance = instanceOf(xid);
+                first = instance != null ? instance : Math.floorMod(xid, wcs.length);
+            } else {
+                first = Math.floorMod(next.getAndIncrement(), wcs.length);
+            }
+
+            Throwable failure = null;
+            for (int i = 0; i < wcs.length; i++) {
+                int instance = (first + i) % wcs.length;
+                WorkflowController wc;
+                try {
+                    wc = stub(instance);
+                } catch (Exception e) {
+                    failure = e;
+                    continue;
+                }
+                try {
+                    Object result = method.invoke(wc, args);
+                    if (byXid && (method.getName().equals("commit") || method.getName().equals("abort"))) {
+                        unpin(xid);
+                    } else if (byXid && instance != first) {
+                        // stay on the new instance, the old one may come back with stale rows of the trxn cached
+                        pin(xid, instance);
+                    }
+                    return result;
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (!unreached(cause)) {
+                        if (byXid && (cause instanceof TransactionAbortedException || cause instanceof InvalidTransactionException)) {
+                            // the trxn is gone
+                            unpin(xid);
+                        }
+                        throw cause;
+                    }
+                    System.err.println("WC instance " + instance + " can't be reached: " + cause);
+                    forget(instance);
+                    failure = cause;
+                }
+            }
+            throw new RemoteException("No WC instance can be reached", failure);
+        }
+
+        /**
+         * @return if @e means the call never got to the WC, so another instance may run it instead
+         */
+        private static boolean unreached(Throwable e) {
+            return e instanceof ConnectException || e instanceof NoSuchObjectException;
+        }
+    }
+}
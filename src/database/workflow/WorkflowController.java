@@ -1,5 +1,8 @@
 package database.workflow;
 
+import database.entity.Car;
+import database.entity.Flight;
+import database.entity.Hotel;
 import database.exception.InvalidTransactionException;
 import database.exception.TransactionAbortedException;
 
@@ -55,12 +58,37 @@ public interface WorkflowController extends Remote {
      *
      * @param xid id of transaction to be committed.
      * @return true on success, false on failure.
-     * @throws RemoteException             on communications failure.
+     * @throws RemoteException             on communications failure, or if it is unknown whether the transaction committed.
      * @throws TransactionAbortedException if transaction was aborted.
      * @throws InvalidTransactionException if transaction id is invalid.
      */
     boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException;
 
+    /**
+     * Commit a batch of transactions with one round of 2PC messages per RM.
+     *
+     * @param xids ids of transactions to be committed.
+     * @return for each transaction, true on success, false if it is invalid or was aborted, null if its outcome is unknown.
+     * @throws RemoteException on communications failure.
+     */
+    Boolean[] commitAll(int[] xids) throws RemoteException;
+
+    /**
+     * Run a workflow in a new transaction and commit it. If the transaction is aborted, e.g. by a
+     * deadlock or a failed RM, the whole workflow is run again in a fresh transaction, after a
+     * randomized backoff and within the limits of @policy and of a retry budget shared by all callers.
+     * <p>
+     * If an operation returns false the transaction is aborted and the remaining operations are skipped.
+     *
+     * @param ops    the operations of the workflow, in order.
+     * @param policy how often and how soon to retry.
+     * @return the results of the operations and whether the transaction committed.
+     * @throws RemoteException             on communications failure, or if it is unknown whether the last attempt
+     *                                     committed. It is not retried then, since it may have committed.
+     * @throws TransactionAbortedException if the last attempt was aborted and no retry is left.
+     */
+    WorkflowResult runInTransaction(List<WorkflowOp> ops, RetryPolicy policy) throws RemoteException, TransactionAbortedException;
+
 
     //////////
     // ADMINISTRATIVE INTERFACE
@@ -145,7 +173,7 @@ public interface WorkflowController extends Remote {
      * @param numCars the number of cars.
      * @param price the price of a car in the location.
      * @return true on success, false on failure.
-     * @throws RemoteException             on communications failure.
+     * @throws RemoteException             on communications failure, or if it is unknown whether the transaction committed.
      * @throws TransactionAbortedException if transaction was aborted.
      * @throws InvalidTransactionException if transaction id is invalid.
      * @see #addRooms
@@ -160,7 +188,7 @@ public interface WorkflowController extends Remote {
      * @param location location.
      * @param numCars the number of cars.
      * @return true on success, false on failure.
-     * @throws RemoteException             on communications failure.
+     * @throws RemoteException             on communications failure, or if it is unknown whether the transaction committed.
      * @throws TransactionAbortedException if transaction was aborted.
      * @throws InvalidTransactionException if transaction id is invalid.
      * @see #deleteRooms
@@ -175,7 +203,7 @@ public interface WorkflowController extends Remote {
      * @param xid      id of transaction.
      * @param custName name of customer.
      * @return true on success, false on failure.
-     * @throws RemoteException             on communications failure.
+     * @throws RemoteException             on communications failure, or if it is unknown whether the transaction committed.
      * @throws TransactionAbortedException if transaction was aborted.
      * @throws InvalidTransactionException if transaction id is invalid.
      */
@@ -261,6 +289,31 @@ public interface WorkflowController extends Remote {
      */
     int queryCarsPrice(int xid, String location) throws RemoteException, TransactionAbortedException, InvalidTransactionException;
 
+    /**
+     * Return the cheapest flights with enough empty seats.
+     * @param xid      id of transaction.
+     * @param maxPrice highest price of a seat, -1 for any price.
+     * @param minAvail fewest empty seats.
+     * @param limit    most flights to return.
+     * @return the flights by price, cheapest first.
+     * @throws RemoteException             on communications failure.
+     * @throws TransactionAbortedException if transaction was aborted.
+     * @throws InvalidTransactionException if transaction id is invalid.
+     */
+    List<Flight> searchFlights(int xid, int maxPrice, int minAvail, int limit) throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+
+    /**
+     * Return the cheapest locations with enough available rooms.
+     * @see #searchFlights
+     */
+    List<Hotel> searchRooms(int xid, int maxPrice, int minAvail, int limit) throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+
+    /**
+     * Return the cheapest locations with enough available cars.
+     * @see #searchFlights
+     */
+    List<Car> searchCars(int xid, int maxPrice, int minAvail, int limit) throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+
 
     //////////
     // RESERVATION INTERFACE
@@ -425,6 +478,18 @@ public interface WorkflowController extends Remote {
      */
     boolean dieRMBeforeCommit(String who) throws RemoteException;
 
+    /**
+     * Sets a flag so that the RM fails in the middle of a commit, after it
+     * has written a main table to disk but before it has deleted the shadow
+     * table of the transaction, so it replays the commit when it recovers.
+     * <p>
+     * This method is used for testing and is not part of a transaction.
+     *
+     * @param who which RM to kill; must be "RMFlights", "RMRooms", "RMCars", or "RMCustomers".
+     * @return true on success, false on failure.
+     */
+    boolean dieRMAfterStore(String who) throws RemoteException;
+
     /**
      * Sets a flag so that the RM fails when it is told by the TM to
      * abort, by before it could actually do anything.  (i.e., die at
@@ -1,22 +1,31 @@
 package database.workflow;
 
-import database.entity.*;
 import database.entity.*;
 import database.exception.DeadlockException;
 import database.exception.InvalidTransactionException;
 import database.exception.TransactionAbortedException;
+import database.resource.Op;
+import database.resource.Predicate;
+import database.resource.RMCursor;
+import database.resource.RMPartitions;
 import database.resource.ResourceManager;
+import database.transaction.TMShards;
 import database.transaction.TransactionManager;
+import database.transport.Transport;
 import database.utils.PropUtil;
 
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.rmi.Naming;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Workflow Controller for the Distributed Travel Reservation System.
@@ -27,20 +36,43 @@ import java.util.Properties;
  */
 public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject implements WorkflowController {
 
-    private static final String FlightsTable = "flights";
-    private static final String RoomsTable = "hotels";
-    private static final String CarsTable = "cars";
-    private static final String CustomersTable = "customers";
-    private static final String ReservationsTable = "reservations";
+    // the tables and RMs are shared with AsyncWorkflowControllerImpl
+    static final String FlightsTable = "flights";
+    static final String RoomsTable = "hotels";
+    static final String CarsTable = "cars";
+    static final String CustomersTable = "customers";
+    static final String ReservationsTable = "reservations";
+
+    ResourceManager<Flight> rmFlights = null;
+    ResourceManager<Hotel> rmHotels = null;
+    ResourceManager<Car> rmCars = null;
+    ResourceManager<Customer> rmCustomers = null;
+    ResourceManager<Reservation> rmReservations = null;
+    /**
+     * the TM shards, each trxn is routed to the shard that owns its xid
+     */
+    private TransactionManager[] tms = null;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    /**
+     * the rows each trxn has read, shared with AsyncWorkflowControllerImpl
+     */
+    final ReadCache readCache = new ReadCache();
+    /**
+     * limits the retries of runInTransaction() to wc.retry.ratio of the workflows, with wc.retry.burst to start with
+     */
+    private final RetryBudget retryBudget = new RetryBudget(
+            Double.parseDouble(PropUtil.getProperty("wc.retry.ratio", "0.2")),
+            Integer.parseInt(PropUtil.getProperty("wc.retry.burst", "20")));
 
-    private ResourceManager<Flight> rmFlights = null;
-    private ResourceManager<Hotel> rmHotels = null;
-    private ResourceManager<Car> rmCars = null;
-    private ResourceManager<Customer> rmCustomers = null;
-    private ResourceManager<Reservation> rmReservations = null;
-    private TransactionManager tm = null;
+    /**
+     * runs the independent per-RM parts of reserveItinerary() concurrently
+     */
+    private final ExecutorService itineraryExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "wc-itinerary");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    protected static Registry _rmiRegistry = null;
 
     @SuppressWarnings("BusyWait")
     public WorkflowControllerImpl() throws RemoteException {
@@ -54,19 +86,24 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
 
 
     public static void main(String[] args) {
+        // the instance of this WC in the pool, 0 unless given
+        int instance = args.length > 0 ? Integer.parseInt(args[0]) : 0;
 
-        String rmiPort = PropUtil.getRmiPort("wc");
+        String rmiPort = WCPool.getRmiPort(instance);
         try {
-            _rmiRegistry = LocateRegistry.createRegistry(Integer.parseInt(rmiPort));
+            Transport.listen(rmiPort);
         } catch (RemoteException e2) {
             e2.printStackTrace();
             System.exit(1);
         }
-        rmiPort = "//localhost:" + rmiPort + "/";
         try {
             WorkflowControllerImpl obj = new WorkflowControllerImpl();
-            Naming.rebind(rmiPort + WorkflowController.RMIName, obj);
+            Transport.bind(rmiPort, WorkflowController.RMIName, obj);
             System.out.println("WC bound");
+            if (Transport.isNio()) {
+                Transport.bind(rmiPort, AsyncWorkflowController.RMIName, new AsyncWorkflowControllerImpl(obj));
+                System.out.println("Async WC bound");
+            }
         } catch (Exception e) {
             System.err.println("WC not bound:" + e);
             System.exit(1);
@@ -78,7 +115,8 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public int start() throws RemoteException {
         System.out.println("WC call tm.start() to start a new Trxn.");
         try{
-            int newXid = tm.start();
+            // spread new trxns over the TM shards
+            int newXid = tms[Math.floorMod(nextShard.getAndIncrement(), tms.length)].start();
             System.out.println("The new Trxn ID is " + newXid);
             return newXid;
         }catch (RemoteException e) {
@@ -88,37 +126,237 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
         }
     }
 
-    @SuppressWarnings("BusyWait")
     @Override
     public boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         System.out.println("WC call tm.commit() to commit Trxn ID " + xid);
+        drop(xid);
         try{
-            tm.commit(xid);
+            tm(xid).commit(xid);
         }catch (RemoteException e){
             // tm die before or after commit, we catch the RemoteException triggered by TM
             System.err.println("WC catch RemoteException when call tm.commit() to commit a new Trxn.");
             e.printStackTrace();
-            // wait until tm recover
-            while (!reconnect()) {
-                try {
-                    Thread.sleep(1000);
-                } catch (Exception ignored) {
+            awaitTMRecovery();
+            Boolean committed = outcomeOf(xid);
+            if (committed == null) {
+                throw new RemoteException("The outcome of Trxn ID " + xid + " is unknown", e);
+            }
+            return committed;
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean[] commitAll(int[] xids) throws RemoteException {
+        System.out.println("WC call tm.commitAll() to commit " + xids.length + " Trxns");
+        for (int xid : xids) {
+            drop(xid);
+        }
+        try {
+            // one batch per TM shard
+            Map<Integer, List<Integer>> shardIndexes = new HashMap<>();
+            for (int i = 0; i < xids.length; i++) {
+                shardIndexes.computeIfAbsent(Math.min(TMShards.shardOf(xids[i]), tms.length - 1), k -> new ArrayList<>()).add(i);
+            }
+            Boolean[] committed = new Boolean[xids.length];
+            for (Map.Entry<Integer, List<Integer>> entry : shardIndexes.entrySet()) {
+                List<Integer> indexes = entry.getValue();
+                int[] batch = new int[indexes.size()];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = xids[indexes.get(i)];
                 }
+                boolean[] result = tms[entry.getKey()].commitAll(batch);
+                for (int i = 0; i < batch.length; i++) {
+                    committed[indexes.get(i)] = result[i];
+                }
+            }
+            return committed;
+        } catch (RemoteException e) {
+            // tm die before or after commit, ask it for the outcome of each trxn after it recovers
+            System.err.println("WC catch RemoteException when call tm.commitAll() to commit a batch of Trxns.");
+            e.printStackTrace();
+            awaitTMRecovery();
+            Boolean[] committed = new Boolean[xids.length];
+            for (int i = 0; i < xids.length; i++) {
+                committed[i] = outcomeOf(xids[i]);
             }
+            return committed;
+        }
+    }
+
+    /**
+     * ask the TM for the outcome of a commit whose reply was lost
+     *
+     * @return null if the TM can't tell whether trxn @xid committed
+     */
+    private Boolean outcomeOf(int xid) throws RemoteException {
+        Boolean committed = tm(xid).ifCommitted(xid);
+        if (Boolean.FALSE.equals(committed)) {
+            // the commit may never have reached the TM, make sure the trxn doesn't commit later
             try {
-                Thread.sleep(5000);
+                tm(xid).abort(xid, "WC lost the commit of Trxn ID " + xid);
+            } catch (InvalidTransactionException ignored) {
+            }
+        }
+        return committed;
+    }
+
+    @SuppressWarnings("BusyWait")
+    private void awaitTMRecovery() throws RemoteException {
+        // wait until tm recover
+        while (!reconnect()) {
+            try {
+                Thread.sleep(1000);
             } catch (Exception ignored) {
             }
-            System.out.println("WC successfully reconnect to all rms and tm.");
-            return tm.ifCommitted(xid);
         }
-        return true;
+        try {
+            Thread.sleep(5000);
+        } catch (Exception ignored) {
+        }
+        System.out.println("WC successfully reconnect to all rms and tm.");
+    }
+
+    /**
+     * @return the TM shard that owns trxn @xid
+     */
+    TransactionManager tm(int xid) {
+        return TMShards.route(tms, xid);
     }
 
     @Override
     public void abort(int xid) throws RemoteException, InvalidTransactionException {
         System.out.println("WC call tm.abort() to abort Trxn ID " + xid);
-        tm.abort(xid, String.format("WC manual abort Trxn ID %d.", xid));
+        abortTrxn(xid, String.format("WC manual abort Trxn ID %d.", xid));
+    }
+
+    /**
+     * forget what the WC keeps for trxn @xid, the rows it has read and its cursors on partitioned RMs
+     */
+    private void drop(int xid) {
+        readCache.drop(xid);
+        for (ResourceManager<?> rm : Arrays.asList(rmFlights, rmHotels, rmCars, rmCustomers, rmReservations)) {
+            RMPartitions.endTrxn(rm, xid);
+        }
+    }
+
+    /**
+     * abort trxn @xid at its TM and forget the rows it has read
+     */
+    void abortTrxn(int xid, String msg) throws RemoteException, InvalidTransactionException {
+        drop(xid);
+        tm(xid).abort(xid, msg);
+    }
+
+    @Override
+    public WorkflowResult runInTransaction(List<WorkflowOp> ops, RetryPolicy policy) throws RemoteException, TransactionAbortedException {
+        retryBudget.deposit();
+        for (int attempt = 1; ; attempt++) {
+            int xid = start();
+            if (xid <= 0) {
+                throw new RemoteException("WC can't start a Trxn for the workflow");
+            }
+            try {
+                List<Object> results = new ArrayList<>(ops.size());
+                for (WorkflowOp op : ops) {
+                    Object result = run(xid, op);
+                    results.add(result);
+                    if (Boolean.FALSE.equals(result)) {
+                        System.out.printf("WC abort Trxn ID %d because %s failed\n", xid, op);
+                        try {
+                            abort(xid);
+                        } catch (InvalidTransactionException ignored) {
+                        }
+                        return new WorkflowResult(false, results, attempt);
+                    }
+                }
+                // only a known abort is retried, an unknown outcome leaves commit() as a RemoteException
+                if (!commitOnce(xid)) {
+                    throw new TransactionAbortedException(xid, "TM did not commit Trxn ID " + xid);
+                }
+                return new WorkflowResult(true, results, attempt);
+            } catch (TransactionAbortedException | InvalidTransactionException e) {
+                // the trxn is gone: aborted on a deadlock or a failure, or by the TM after an inactivity timeout
+                if (attempt >= policy.getMaxAttempts() || !retryBudget.withdraw()) {
+                    System.out.printf("WC give up the workflow of Trxn ID %d after %d attempts\n", xid, attempt);
+                    throw e instanceof TransactionAbortedException ? (TransactionAbortedException) e : new TransactionAbortedException(xid, e.getMessage());
+                }
+                long backoff = policy.backoffMillis(attempt);
+                System.out.printf("WC retry the workflow of Trxn ID %d in %d ms: %s\n", xid, backoff, e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e instanceof TransactionAbortedException ? (TransactionAbortedException) e : new TransactionAbortedException(xid, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * commit trxn @xid of a workflow
+     *
+     * @return false only if the trxn is known to be aborted
+     */
+    private boolean commitOnce(int xid) throws RemoteException, TransactionAbortedException {
+        try {
+            return commit(xid);
+        } catch (InvalidTransactionException e) {
+            // the TM refuses a trxn it has already aborted, or one that has committed meanwhile
+            Boolean committed = tm(xid).ifCommitted(xid);
+            if (committed == null) {
+                throw new RemoteException("The outcome of Trxn ID " + xid + " is unknown", e);
+            }
+            return committed;
+        }
+    }
+
+    /**
+     * run one operation of a workflow in trxn @xid
+     */
+    private Object run(int xid, WorkflowOp op) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        switch (op.getType()) {
+            case ADD_FLIGHT:
+                return addFlight(xid, op.getKey(), op.getNum(), op.getPrice());
+            case DELETE_FLIGHT:
+                return deleteFlight(xid, op.getKey());
+            case ADD_ROOMS:
+                return addRooms(xid, op.getKey(), op.getNum(), op.getPrice());
+            case DELETE_ROOMS:
+                return deleteRooms(xid, op.getKey(), op.getNum());
+            case ADD_CARS:
+                return addCars(xid, op.getKey(), op.getNum(), op.getPrice());
+            case DELETE_CARS:
+                return deleteCars(xid, op.getKey(), op.getNum());
+            case NEW_CUSTOMER:
+                return newCustomer(xid, op.getKey());
+            case DELETE_CUSTOMER:
+                return deleteCustomer(xid, op.getKey());
+            case QUERY_FLIGHT:
+                return queryFlight(xid, op.getKey());
+            case QUERY_FLIGHT_PRICE:
+                return queryFlightPrice(xid, op.getKey());
+            case QUERY_ROOMS:
+                return queryRooms(xid, op.getKey());
+            case QUERY_ROOMS_PRICE:
+                return queryRoomsPrice(xid, op.getKey());
+            case QUERY_CARS:
+                return queryCars(xid, op.getKey());
+            case QUERY_CARS_PRICE:
+                return queryCarsPrice(xid, op.getKey());
+            case QUERY_CUSTOMER_BILL:
+                return queryCustomerBill(xid, op.getKey());
+            case RESERVE_FLIGHT:
+                return reserveFlight(xid, op.getCustName(), op.getKey());
+            case RESERVE_CAR:
+                return reserveCar(xid, op.getCustName(), op.getKey());
+            case RESERVE_ROOM:
+                return reserveRoom(xid, op.getCustName(), op.getKey());
+            case RESERVE_ITINERARY:
+                return reserveItinerary(xid, op.getCustName(), op.getFlightNums(), op.getKey(), op.isNeedCar(), op.isNeedRoom());
+            default:
+                throw new RemoteException("WC meet unknown workflow operation " + op);
+        }
     }
 
 
@@ -132,8 +370,9 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Flight check = rmFlights.query(xid, FlightsTable, flightNum);
+            Flight check = query(xid, rmFlights, FlightsTable, flightNum);
             if (check == null || check.isDeleted()) {
+                readCache.invalidate(xid, FlightsTable, flightNum);
                 rmFlights.insert(xid, FlightsTable, new Flight(flightNum, Math.max(price, 0), numSeats, numSeats));
             } else {
                 if (price < 0) {
@@ -141,13 +380,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
                 }
                 int total = check.getNumSeats() + numSeats;
                 int avail = check.getNumAvail() + numSeats;
+                readCache.invalidate(xid, FlightsTable, flightNum);
                 rmFlights.update(xid, FlightsTable, flightNum, new Flight(flightNum, price, total, avail));
+                if (price != check.getPrice()) {
+                    repriceBills(xid, ReservationType.FLIGHT, flightNum, price - check.getPrice());
+                }
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call addFlight() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call addFlight() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call addFlight() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call addFlight() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call addFlight() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call addFlight() in Trxn ID " + xid);
         }
         return true;
@@ -159,19 +402,20 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Flight check = rmFlights.query(xid, FlightsTable, flightNum);
+            Flight check = query(xid, rmFlights, FlightsTable, flightNum);
             if (check == null || check.isDeleted()) {
                 return false;
             }
             if (check.getNumAvail() != check.getNumSeats()) {
                 return false;
             }
+            readCache.invalidate(xid, FlightsTable, flightNum);
             rmFlights.delete(xid, FlightsTable, flightNum);
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call deleteFlight() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call deleteFlight() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call deleteFlight() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call deleteFlight() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call deleteFlight() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call deleteFlight() in Trxn ID " + xid);
         }
         return true;
@@ -186,8 +430,9 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Hotel check = rmHotels.query(xid, RoomsTable, location);
+            Hotel check = query(xid, rmHotels, RoomsTable, location);
             if (check == null || check.isDeleted()) {
+                readCache.invalidate(xid, RoomsTable, location);
                 rmHotels.insert(xid, RoomsTable, new Hotel(location, Math.max(price, 0), numRooms, numRooms));
             } else {
                 if (price < 0) {
@@ -195,13 +440,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
                 }
                 int total = check.getNumRooms() + numRooms;
                 int avail = check.getNumAvail() + numRooms;
+                readCache.invalidate(xid, RoomsTable, location);
                 rmHotels.update(xid, RoomsTable, location, new Hotel(location, price, total, avail));
+                if (price != check.getPrice()) {
+                    repriceBills(xid, ReservationType.HOTEL, location, price - check.getPrice());
+                }
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call addRooms() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call addRooms() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call addRooms() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call addRooms() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call addRooms() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call addRooms() in Trxn ID " + xid);
         }
         return true;
@@ -216,7 +465,7 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Hotel check = rmHotels.query(xid, RoomsTable, location);
+            Hotel check = query(xid, rmHotels, RoomsTable, location);
             if (check == null || check.isDeleted()) {
                 return false;
             }
@@ -225,12 +474,13 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             if (avail < 0) {
                 return false;
             }
+            readCache.invalidate(xid, RoomsTable, location);
             rmHotels.update(xid, RoomsTable, location, new Hotel(location, check.getPrice(), total, avail));
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call deleteRooms() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call deleteRooms() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call deleteRooms() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call deleteRooms() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call deleteRooms() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call deleteRooms() in Trxn ID " + xid);
         }
         return true;
@@ -245,8 +495,9 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Car check = rmCars.query(xid, CarsTable, location);
+            Car check = query(xid, rmCars, CarsTable, location);
             if (check == null || check.isDeleted()) {
+                readCache.invalidate(xid, CarsTable, location);
                 rmCars.insert(xid, CarsTable, new Car(location, Math.max(price, 0), numCars, numCars));
             } else {
                 if (price < 0) {
@@ -254,13 +505,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
                 }
                 int total = check.getNumCars() + numCars;
                 int avail = check.getNumAvail() + numCars;
+                readCache.invalidate(xid, CarsTable, location);
                 rmCars.update(xid, CarsTable, location, new Car(location, price, total, avail));
+                if (price != check.getPrice()) {
+                    repriceBills(xid, ReservationType.CAR, location, price - check.getPrice());
+                }
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call addCars() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call addCars() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call addCars() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call addCars() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call addCars() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call addCars() in Trxn ID " + xid);
         }
         return true;
@@ -275,7 +530,7 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Car check = rmCars.query(xid, CarsTable, location);
+            Car check = query(xid, rmCars, CarsTable, location);
             if (check == null || check.isDeleted()) {
                 return false;
             }
@@ -284,12 +539,13 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             if (avail < 0) {
                 return false;
             }
+            readCache.invalidate(xid, CarsTable, location);
             rmCars.update(xid, CarsTable, location, new Car(location, check.getPrice(), total, avail));
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call deleteCars() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call deleteCars() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call deleteCars() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call deleteCars() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call deleteCars() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call deleteCars() in Trxn ID " + xid);
         }
         return true;
@@ -301,16 +557,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Customer check = rmCustomers.query(xid, CustomersTable, custName);
+            Customer check = query(xid, rmCustomers, CustomersTable, custName);
             if (check != null && !check.isDeleted()) {
                 return true;
             }
+            readCache.invalidate(xid, CustomersTable, custName);
             rmCustomers.insert(xid, CustomersTable, new Customer(custName));
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call newCustomer() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call newCustomer() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call newCustomer() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call newCustomer() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call newCustomer() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call newCustomer() in Trxn ID " + xid);
         }
         return true;
@@ -322,25 +579,34 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Customer check = rmCustomers.query(xid, CustomersTable, custName);
+            Customer check = query(xid, rmCustomers, CustomersTable, custName);
             if (check == null || check.isDeleted()) {
                 return false;
             }
+            readCache.invalidate(xid, CustomersTable, custName);
             rmCustomers.delete(xid, CustomersTable, custName);
-            List<Reservation> records = rmReservations.query(xid, ReservationsTable);
-            for (Reservation r : records) {
-                if (r.isDeleted()) {
-                    continue;
-                }
-                if (r.getCustName().equals(custName)) {
-                    rmReservations.delete(xid, ReservationsTable, new Reservation(custName, r.getResvType(), r.getResvKey()));
+            // delete all reservations of the customer in one batch
+            List<Op<Reservation>> deletes = new ArrayList<>();
+            // stream the reservations instead of pulling the whole table at once
+            try (RMCursor<Reservation> records = RMCursor.open(rmReservations, xid, ReservationsTable)) {
+                while (records.hasNext()) {
+                    Reservation r = records.next();
+                    if (r.isDeleted()) {
+                        continue;
+                    }
+                    if (r.getCustName().equals(custName)) {
+                        deletes.add(Op.delete(ReservationsTable, r.getKey()));
+                    }
                 }
             }
+            if (!deletes.isEmpty()) {
+                rmReservations.execute(xid, deletes);
+            }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call deleteCustomer() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call deleteCustomer() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call deleteCustomer() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call deleteCustomer() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call deleteCustomer() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call deleteCustomer() in Trxn ID " + xid);
         }
         return true;
@@ -352,17 +618,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public int queryFlight(int xid, String flightNum) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         int avail;
         try {
-            Flight res = rmFlights.query(xid, FlightsTable, flightNum);
+            Flight res = query(xid, rmFlights, FlightsTable, flightNum);
             if (res == null || res.isDeleted()) {
                 avail = -1;
             } else {
                 avail = res.getNumAvail();
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call queryFlight() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call queryFlight() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call queryFlight() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call queryFlight() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call queryFlight() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call queryFlight() in Trxn ID " + xid);
         }
         return avail;
@@ -372,17 +638,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public int queryFlightPrice(int xid, String flightNum) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         int price;
         try {
-            Flight res = rmFlights.query(xid, FlightsTable, flightNum);
+            Flight res = query(xid, rmFlights, FlightsTable, flightNum);
             if (res == null || res.isDeleted()) {
                 price = -1;
             } else {
                 price = res.getPrice();
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call queryFlightPrice() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call queryFlightPrice() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call queryFlightPrice() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call queryFlightPrice() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call queryFlightPrice() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call queryFlightPrice() in Trxn ID " + xid);
         }
         return price;
@@ -392,17 +658,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public int queryRooms(int xid, String location) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         int avail;
         try {
-            Hotel res = rmHotels.query(xid, RoomsTable, location);
+            Hotel res = query(xid, rmHotels, RoomsTable, location);
             if (res == null || res.isDeleted()) {
                 avail = -1;
             } else {
                 avail = res.getNumAvail();
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call queryRooms() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call queryRooms() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call queryRooms() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call queryRooms() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call queryRooms() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call queryRooms() in Trxn ID " + xid);
         }
         return avail;
@@ -412,17 +678,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public int queryRoomsPrice(int xid, String location) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         int price;
         try {
-            Hotel res = rmHotels.query(xid, RoomsTable, location);
+            Hotel res = query(xid, rmHotels, RoomsTable, location);
             if (res == null || res.isDeleted()) {
                 price = -1;
             } else {
                 price = res.getPrice();
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call queryRoomsPrice() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call queryRoomsPrice() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call queryRoomsPrice() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call queryRoomsPrice() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call queryRoomsPrice() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call queryRoomsPrice() in Trxn ID " + xid);
         }
         return price;
@@ -432,17 +698,17 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public int queryCars(int xid, String location) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         int avail;
         try {
-            Car res = rmCars.query(xid, CarsTable, location);
+            Car res = query(xid, rmCars, CarsTable, location);
             if (res == null || res.isDeleted()) {
                 avail = -1;
             } else {
                 avail = res.getNumAvail();
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call queryCars() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call queryCars() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call queryCars() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call queryCars() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call queryCars() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call queryCars() in Trxn ID " + xid);
         }
         return avail;
@@ -452,66 +718,112 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public int queryCarsPrice(int xid, String location) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         int price;
         try {
-            Car res = rmCars.query(xid, CarsTable, location);
+            Car res = query(xid, rmCars, CarsTable, location);
             if (res == null || res.isDeleted()) {
                 price = -1;
             } else {
                 price = res.getPrice();
             }
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call queryCarsPrice() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call queryCarsPrice() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call queryCarsPrice() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call queryCarsPrice() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call queryCarsPrice() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call queryCarsPrice() in Trxn ID " + xid);
         }
         return price;
     }
 
+    @Override
+    public List<Flight> searchFlights(int xid, int maxPrice, int minAvail, int limit) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        return search(xid, "searchFlights", rmFlights, FlightsTable, maxPrice, minAvail, limit);
+    }
+
+    @Override
+    public List<Hotel> searchRooms(int xid, int maxPrice, int minAvail, int limit) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        return search(xid, "searchRooms", rmHotels, RoomsTable, maxPrice, minAvail, limit);
+    }
+
+    @Override
+    public List<Car> searchCars(int xid, int maxPrice, int minAvail, int limit) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        return search(xid, "searchCars", rmCars, CarsTable, maxPrice, minAvail, limit);
+    }
+
+    /**
+     * the cheapest items of @tableName with at least @minAvail available, filtered and sorted on the RM
+     */
+    private <T extends ResourceItem> List<T> search(int xid, String call, ResourceManager<T> rm, String tableName, int maxPrice, int minAvail, int limit) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        Predicate where = Predicate.ge(ResourceItem.NUM_AVAIL, Math.max(minAvail, 1));
+        if (maxPrice >= 0) {
+            where = Predicate.and(Predicate.le("price", maxPrice), where);
+        }
+        try {
+            List<T> items = rm.query(xid, tableName, where, "price", limit);
+            // the RM has read-locked what it returned
+            for (T item : items) {
+                readCache.put(xid, tableName, item.getKey(), item);
+            }
+            return items;
+        } catch (DeadlockException e) {
+            abortTrxn(xid, "WC detect deadlock when it call " + call + "() in Trxn ID " + xid);
+            throw new TransactionAbortedException(xid, "WC detect deadlock when it call " + call + "() in Trxn ID " + xid);
+        } catch (RemoteException e) {
+            abortTrxn(xid, "WC detect RemoteException when it call " + call + "() in Trxn ID " + xid);
+            throw new TransactionAbortedException(xid, "WC detect RemoteException when it call " + call + "() in Trxn ID " + xid);
+        }
+    }
+
     @Override
     public int queryCustomerBill(int xid, String custName) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        int total = 0;
         try {
-            Object res = rmCustomers.query(xid, CustomersTable, custName);
-            if (res == null || ((Customer) res).isDeleted()) {
+            // the bill is kept up to date on every reservation and price change
+            Customer res = query(xid, rmCustomers, CustomersTable, custName);
+            if (res == null || res.isDeleted()) {
                 return -1;
             }
-            List<Reservation> records = rmReservations.query(xid, ReservationsTable);
-            for (Reservation r : records) {
-                if (r.isDeleted()) {
-                    continue;
-                }
-                if (r.getCustName().equals(custName)) {
-                    switch (r.getResvType()) {
-                        case CAR: {
-                            res = rmCars.query(xid, CarsTable, r.getResvKey());
-                            total += ((Car) res).getPrice();
-                            break;
-                        }
-                        case FLIGHT: {
-                            res = rmFlights.query(xid, FlightsTable, r.getResvKey());
-                            total += ((Flight) res).getPrice();
-                            break;
-                        }
-                        case HOTEL: {
-                            res = rmHotels.query(xid, RoomsTable, r.getResvKey());
-                            total += ((Hotel) res).getPrice();
-                            break;
-                        }
-                        default: {
-                            System.out.println("Wrong reservation " + r);
-                        }
-                    }
-                }
-            }
+            return res.getBill();
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call queryCustomerBill() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call queryCustomerBill() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call queryCustomerBill() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call queryCustomerBill() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call queryCustomerBill() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call queryCustomerBill() in Trxn ID " + xid);
         }
-        return total;
+    }
+
+    /**
+     * add @delta to the bill of @custName under an escrow lock, a bill that goes down may pass below zero
+     * within the trxn, e.g. when repricing a reservation this trxn made, the RM only checks it at prepare
+     */
+    private void addToBill(int xid, String custName, int delta) throws DeadlockException, InvalidTransactionException, RemoteException {
+        readCache.invalidate(xid, CustomersTable, custName);
+        rmCustomers.increment(xid, CustomersTable, custName, Customer.BILL, delta);
+    }
+
+    /**
+     * the price of @resvKey changed by @delta, change the bills of the customers who reserved it, found
+     * through the hash index of the reservations table on resvKey
+     */
+    private void repriceBills(int xid, ReservationType resvType, String resvKey, int delta) throws DeadlockException, InvalidTransactionException, RemoteException {
+        Predicate holders = Predicate.and(Predicate.eq("resvType", resvType), Predicate.eq("resvKey", resvKey));
+        for (Reservation r : rmReservations.query(xid, ReservationsTable, holders, null, 0)) {
+            addToBill(xid, r.getCustName(), delta);
+        }
+    }
+
+    /**
+     * read a row through the read cache, only the first read of a row in trxn @xid calls its RM
+     */
+    <T extends ResourceItem> T query(int xid, ResourceManager<T> rm, String tableName, Object key) throws DeadlockException, InvalidTransactionException, RemoteException {
+        if (readCache.contains(xid, tableName, key)) {
+            return readCache.get(xid, tableName, key);
+        }
+        T row = rm.query(xid, tableName, key);
+        readCache.put(xid, tableName, key, row);
+        return row;
     }
 
     // RESERVATION INTERFACE
@@ -524,32 +836,28 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Customer checkCust = rmCustomers.query(xid, CustomersTable, custName);
-            if (checkCust == null || checkCust.isDeleted()) {
+            // check the customer under an escrow lock, bookings of the same customer don't block each other
+            if (!rmCustomers.increment(xid, CustomersTable, custName, Customer.BILL, 0)) {
                 return false;
             }
-            Flight checkFlight = rmFlights.query(xid, FlightsTable, flightNum);
-            if (checkFlight == null || checkFlight.isDeleted()) {
+            // check and take one unit in a single escrow call on the RM, concurrent bookings of the same flight don't block each other
+            readCache.invalidate(xid, FlightsTable, flightNum);
+            Flight taken = rmFlights.decrementAvailable(xid, FlightsTable, flightNum, 1);
+            if (taken == null) {
                 return false;
             }
-            if (checkFlight.getNumAvail() == 0) {
-                return false;
-            }
-            if (rmReservations.insert(xid, ReservationsTable, new Reservation(custName, ReservationType.FLIGHT, flightNum)))
-                rmFlights.update(
-                        xid,
-                        FlightsTable,
-                        flightNum,
-                        new Flight(flightNum, checkFlight.getPrice(), checkFlight.getNumSeats() - 1, checkFlight.getNumAvail() - 1)
-                );
-            else {
+            if (!rmReservations.insert(xid, ReservationsTable, new Reservation(custName, ReservationType.FLIGHT, flightNum))) {
+                // already reserved, give the seat back
+                readCache.invalidate(xid, FlightsTable, flightNum);
+                rmFlights.increment(xid, FlightsTable, flightNum, Flight.NUM_AVAIL, 1);
                 return false;
             }
+            addToBill(xid, custName, taken.getPrice());
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call reserveFlight() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call reserveFlight() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call reserveFlight() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call reserveFlight() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call reserveFlight() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call reserveFlight() in Trxn ID " + xid);
         }
         return true;
@@ -564,29 +872,28 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Customer checkCust = rmCustomers.query(xid, CustomersTable, custName);
-            if (checkCust == null || checkCust.isDeleted()) {
+            // check the customer under an escrow lock, bookings of the same customer don't block each other
+            if (!rmCustomers.increment(xid, CustomersTable, custName, Customer.BILL, 0)) {
                 return false;
             }
-            Car checkCar = rmCars.query(xid, CarsTable, location);
-            if (checkCar == null || checkCar.isDeleted() || checkCar.getNumAvail() == 0) {
+            // check and take one unit in a single escrow call on the RM, concurrent bookings at the same location don't block each other
+            readCache.invalidate(xid, CarsTable, location);
+            Car taken = rmCars.decrementAvailable(xid, CarsTable, location, 1);
+            if (taken == null) {
                 return false;
             }
-            if (rmReservations.insert(xid, ReservationsTable, new Reservation(custName, ReservationType.CAR, location)))
-                rmCars.update(
-                        xid,
-                        CarsTable,
-                        location,
-                        new Car(location, checkCar.getPrice(), checkCar.getNumCars() - 1, checkCar.getNumAvail() - 1)
-                );
-            else {
+            if (!rmReservations.insert(xid, ReservationsTable, new Reservation(custName, ReservationType.CAR, location))) {
+                // already reserved, give the car back
+                readCache.invalidate(xid, CarsTable, location);
+                rmCars.increment(xid, CarsTable, location, Car.NUM_AVAIL, 1);
                 return false;
             }
+            addToBill(xid, custName, taken.getPrice());
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call reserveCar() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call reserveCar() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call reserveCar() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call reserveCar() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call reserveCar() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call reserveCar() in Trxn ID " + xid);
         }
         return true;
@@ -601,30 +908,28 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
             return false;
         }
         try {
-            Customer checkCust = rmCustomers.query(xid, CustomersTable, custName);
-            if (checkCust == null || checkCust.isDeleted()) {
+            // check the customer under an escrow lock, bookings of the same customer don't block each other
+            if (!rmCustomers.increment(xid, CustomersTable, custName, Customer.BILL, 0)) {
                 return false;
             }
-            Hotel checkRoom = rmHotels.query(xid, RoomsTable, location);
-            if (checkRoom == null || checkRoom.isDeleted() || checkRoom.getNumAvail() == 0) {
+            // check and take one unit in a single escrow call on the RM, concurrent bookings at the same location don't block each other
+            readCache.invalidate(xid, RoomsTable, location);
+            Hotel taken = rmHotels.decrementAvailable(xid, RoomsTable, location, 1);
+            if (taken == null) {
                 return false;
             }
-            if (rmReservations.insert(xid, ReservationsTable, new Reservation(custName, ReservationType.HOTEL, location)))
-                rmHotels.update(
-                        xid,
-                        RoomsTable,
-                        location,
-                        new Hotel(location, checkRoom.getPrice(), checkRoom.getNumRooms() - 1, checkRoom.getNumAvail() - 1)
-                );
-
-            else {
+            if (!rmReservations.insert(xid, ReservationsTable, new Reservation(custName, ReservationType.HOTEL, location))) {
+                // already reserved, give the room back
+                readCache.invalidate(xid, RoomsTable, location);
+                rmHotels.increment(xid, RoomsTable, location, Hotel.NUM_AVAIL, 1);
                 return false;
             }
+            addToBill(xid, custName, taken.getPrice());
         } catch (DeadlockException e) {
-            tm.abort(xid, "WC detect deadlock when it call reserveRoom() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect deadlock when it call reserveRoom() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect deadlock when it call reserveRoom() in Trxn ID " + xid);
         } catch (RemoteException e) {
-            tm.abort(xid, "WC detect RemoteException when it call reserveRoom() in Trxn ID " + xid);
+            abortTrxn(xid, "WC detect RemoteException when it call reserveRoom() in Trxn ID " + xid);
             throw new TransactionAbortedException(xid, "WC detect RemoteException when it call reserveRoom() in Trxn ID " + xid);
         }
         return true;
@@ -632,25 +937,142 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
 
     @Override
     public boolean reserveItinerary(int xid, String custName, List<String> flightNumList, String location, boolean needCar, boolean needRoom) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        for (String flightNum : flightNumList) {
-            boolean res = reserveFlight(xid, custName, flightNum);
-            if (!res) {
-                return false;
-            }
+        if (custName == null || flightNumList.contains(null)) {
+            return false;
+        }
+        if ((needCar || needRoom) && location == null) {
+            return false;
+        }
+
+        // every part below talks to a different RM and takes its locks in sorted key order,
+        // so the parts can't deadlock each other and concurrent itineraries lock in the same order
+        List<String> flightNums = new ArrayList<>(flightNumList);
+        Collections.sort(flightNums);
+        List<Op<Flight>> takeFlights = new ArrayList<>();
+        List<Op<Reservation>> inserts = new ArrayList<>();
+        for (String flightNum : flightNums) {
+            readCache.invalidate(xid, FlightsTable, flightNum);
+            takeFlights.add(Op.decrementAvailable(FlightsTable, flightNum, 1));
+            inserts.add(Op.insert(ReservationsTable, new Reservation(custName, ReservationType.FLIGHT, flightNum)));
         }
         if (needCar) {
-            boolean res = reserveCar(xid, custName, location);
-            if (!res) {
-                return false;
-            }
+            readCache.invalidate(xid, CarsTable, location);
+            inserts.add(Op.insert(ReservationsTable, new Reservation(custName, ReservationType.CAR, location)));
         }
         if (needRoom) {
-            boolean res = reserveRoom(xid, custName, location);
-            if (!res) {
-                return false;
+            readCache.invalidate(xid, RoomsTable, location);
+            inserts.add(Op.insert(ReservationsTable, new Reservation(custName, ReservationType.HOTEL, location)));
+        }
+
+        // an escrow lock on the bill, so itineraries of one customer don't serialize on it
+        readCache.invalidate(xid, CustomersTable, custName);
+        CompletableFuture<Boolean> customerPart = submit(() -> rmCustomers.increment(xid, CustomersTable, custName, Customer.BILL, 0));
+        CompletableFuture<List<Object>> flightsPart = submit(() -> takeFlights.isEmpty() ? new ArrayList<>() : rmFlights.execute(xid, takeFlights));
+        CompletableFuture<Car> carPart = submit(() -> needCar ? rmCars.decrementAvailable(xid, CarsTable, location, 1) : null);
+        CompletableFuture<Hotel> roomPart = submit(() -> needRoom ? rmHotels.decrementAvailable(xid, RoomsTable, location, 1) : null);
+        CompletableFuture<List<Object>> reservationsPart = submit(() -> rmReservations.execute(xid, inserts));
+        awaitItinerary(xid, customerPart, flightsPart, carPart, roomPart, reservationsPart);
+
+        boolean customerExists = customerPart.join();
+        List<Object> takenFlights = flightsPart.join();
+        Car takenCar = carPart.join();
+        Hotel takenRoom = roomPart.join();
+        List<Object> inserted = reservationsPart.join();
+        try {
+            if (customerExists
+                    && !takenFlights.contains(null)
+                    && (!needCar || takenCar != null)
+                    && (!needRoom || takenRoom != null)
+                    && !inserted.contains(false)) {
+                int price = 0;
+                for (Object takenFlight : takenFlights) {
+                    price += ((Flight) takenFlight).getPrice();
+                }
+                if (takenCar != null) {
+                    price += takenCar.getPrice();
+                }
+                if (takenRoom != null) {
+                    price += takenRoom.getPrice();
+                }
+                addToBill(xid, custName, price);
+                return true;
+            }
+
+            // some part failed, give back what the other parts took so the itinerary has no effect
+            List<Op<Flight>> giveBackFlights = new ArrayList<>();
+            for (int i = 0; i < flightNums.size(); i++) {
+                if (takenFlights.get(i) != null) {
+                    giveBackFlights.add(Op.increment(FlightsTable, flightNums.get(i), Flight.NUM_AVAIL, 1));
+                }
+            }
+            if (!giveBackFlights.isEmpty()) {
+                for (Op<Flight> giveBack : giveBackFlights) {
+                    readCache.invalidate(xid, FlightsTable, giveBack.getKey());
+                }
+                rmFlights.execute(xid, giveBackFlights);
+            }
+            if (takenCar != null) {
+                readCache.invalidate(xid, CarsTable, location);
+                rmCars.increment(xid, CarsTable, location, Car.NUM_AVAIL, 1);
+            }
+            if (takenRoom != null) {
+                readCache.invalidate(xid, RoomsTable, location);
+                rmHotels.increment(xid, RoomsTable, location, Hotel.NUM_AVAIL, 1);
+            }
+            List<Op<Reservation>> deletes = new ArrayList<>();
+            for (int i = 0; i < inserts.size(); i++) {
+                if ((Boolean) inserted.get(i)) {
+                    deletes.add(Op.delete(ReservationsTable, inserts.get(i).getKey()));
+                }
             }
+            if (!deletes.isEmpty()) {
+                rmReservations.execute(xid, deletes);
+            }
+        } catch (DeadlockException e) {
+            abortTrxn(xid, "WC detect deadlock when it call reserveItinerary() in Trxn ID " + xid);
+            throw new TransactionAbortedException(xid, "WC detect deadlock when it call reserveItinerary() in Trxn ID " + xid);
+        } catch (RemoteException e) {
+            abortTrxn(xid, "WC detect RemoteException when it call reserveItinerary() in Trxn ID " + xid);
+            throw new TransactionAbortedException(xid, "WC detect RemoteException when it call reserveItinerary() in Trxn ID " + xid);
         }
-        return true;
+        return false;
+    }
+
+    private <V> CompletableFuture<V> submit(Callable<V> part) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        itineraryExecutor.execute(() -> {
+            try {
+                future.complete(part.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * wait until every part of the itinerary has finished, abort the transaction if any of them failed
+     */
+    private void awaitItinerary(int xid, CompletableFuture<?>... parts) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        Throwable failure = null;
+        for (CompletableFuture<?> part : parts) {
+            Throwable e = part.handle((result, cause) -> cause).join();
+            if (e != null && failure == null) {
+                failure = e;
+            }
+        }
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof InvalidTransactionException) {
+            throw (InvalidTransactionException) failure;
+        }
+        if (failure instanceof DeadlockException) {
+            abortTrxn(xid, "WC detect deadlock when it call reserveItinerary() in Trxn ID " + xid);
+            throw new TransactionAbortedException(xid, "WC detect deadlock when it call reserveItinerary() in Trxn ID " + xid);
+        }
+        abortTrxn(xid, "WC detect " + failure + " when it call reserveItinerary() in Trxn ID " + xid);
+        throw new TransactionAbortedException(xid, "WC detect " + failure + " when it call reserveItinerary() in Trxn ID " + xid);
     }
 
     // TECHNICAL/TESTING INTERFACE
@@ -658,27 +1080,19 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     @Override
     public boolean reconnect() throws RemoteException {
         System.out.println("Enter WC reconnect()!");
-        Properties prop = new Properties();
-        try {
-            prop.load(Files.newInputStream(Paths.get("conf/ddb.conf")));
-        } catch (Exception e1) {
-            e1.printStackTrace();
-            return false;
-        }
-
         try {
-            rmFlights = (ResourceManager<Flight>) Naming.lookup("//localhost:" + prop.getProperty(ResourceManager.RMI_NAME_RM_FLIGHTS + ".port") + "/" + ResourceManager.RMI_NAME_RM_FLIGHTS);
+            rmFlights = RMPartitions.lookup(ResourceManager.RMI_NAME_RM_FLIGHTS);
             System.out.println("WC bound to RMFlights");
-            rmHotels = (ResourceManager<Hotel>) Naming.lookup("//localhost:" + prop.getProperty(ResourceManager.RMI_NAME_RM_HOTEL + ".port") + "/" + ResourceManager.RMI_NAME_RM_HOTEL);
+            rmHotels = RMPartitions.lookup(ResourceManager.RMI_NAME_RM_HOTEL);
             System.out.println("WC bound to RMRooms");
-            rmCars = (ResourceManager<Car>) Naming.lookup("//localhost:" + prop.getProperty(ResourceManager.RMI_NAME_RM_CARS + ".port") + "/" + ResourceManager.RMI_NAME_RM_CARS);
+            rmCars = RMPartitions.lookup(ResourceManager.RMI_NAME_RM_CARS);
             System.out.println("WC bound to RMCars");
-            rmCustomers = (ResourceManager<Customer>) Naming.lookup("//localhost:" + prop.getProperty(ResourceManager.RMI_NAME_RM_CUSTOMERS + ".port") + "/" + ResourceManager.RMI_NAME_RM_CUSTOMERS);
+            rmCustomers = RMPartitions.lookup(ResourceManager.RMI_NAME_RM_CUSTOMERS);
             System.out.println("WC bound to RMCustomers");
-            rmReservations = (ResourceManager<Reservation>) Naming.lookup("//localhost:" + prop.getProperty(ResourceManager.RMI_NAME_RM_RESERVATIONS + ".port") + "/" + ResourceManager.RMI_NAME_RM_RESERVATIONS);
+            rmReservations = RMPartitions.lookup(ResourceManager.RMI_NAME_RM_RESERVATIONS);
             System.out.println("WC bound to RMReservations");
-            tm = (TransactionManager) Naming.lookup("//localhost:" + prop.getProperty("tm.port") + "/" + TransactionManager.RMIName);
-            System.out.println("WC bound to TM");
+            tms = TMShards.lookup();
+            System.out.println("WC bound to " + tms.length + " TM shards");
         } catch (Exception e) {
             System.err.println("WC cannot bind to some component:" + e);
             return false;
@@ -701,10 +1115,12 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public boolean dieNow(String who) throws RemoteException {
         boolean success = true;
         if (who.equals(TransactionManager.RMIName) || who.equals("ALL")) {
-            try {
-                tm.dieNow();
-            } catch (RemoteException e) {
-                success = false;
+            for (TransactionManager tm : tms) {
+                try {
+                    tm.dieNow();
+                } catch (RemoteException e) {
+                    success = false;
+                }
             }
         }
         if (who.equals(ResourceManager.RMI_NAME_RM_FLIGHTS) || who.equals("ALL")) {
@@ -768,6 +1184,11 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
         return dieRMWhen(who, ResourceManager.RMDieTime.BeforeCommit);
     }
 
+    @Override
+    public boolean dieRMAfterStore(String who) throws RemoteException {
+        return dieRMWhen(who, ResourceManager.RMDieTime.AfterStore);
+    }
+
     @Override
     public boolean dieRMBeforeAbort(String who) throws RemoteException {
         return dieRMWhen(who, ResourceManager.RMDieTime.BeforeAbort);
@@ -816,7 +1237,9 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     @Override
     public boolean dieTMBeforeCommit() throws RemoteException {
         try {
-            tm.setTMDieTime(TransactionManager.TMDieTime.BeforeCommit);
+            for (TransactionManager tm : tms) {
+                tm.setTMDieTime(TransactionManager.TMDieTime.BeforeCommit);
+            }
         } catch (Exception e) {
             return false;
         }
@@ -826,7 +1249,9 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     @Override
     public boolean dieTMAfterCommit() throws RemoteException {
         try {
-            tm.setTMDieTime(TransactionManager.TMDieTime.AfterCommit);
+            for (TransactionManager tm : tms) {
+                tm.setTMDieTime(TransactionManager.TMDieTime.AfterCommit);
+            }
         } catch (Exception e) {
             return false;
         }
@@ -0,0 +1,172 @@
+package database.workflow;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One call of a {@link WorkflowController#runInTransaction} workflow, named after the
+ * WorkflowController method it runs with the transaction of the workflow.
+ * <p>
+ * The result of each operation has the same type as the method: Integer for the queries,
+ * Boolean for the others.
+ */
+public class WorkflowOp implements Serializable {
+
+    public enum Type {
+        ADD_FLIGHT, DELETE_FLIGHT, ADD_ROOMS, DELETE_ROOMS, ADD_CARS, DELETE_CARS, NEW_CUSTOMER, DELETE_CUSTOMER,
+        QUERY_FLIGHT, QUERY_FLIGHT_PRICE, QUERY_ROOMS, QUERY_ROOMS_PRICE, QUERY_CARS, QUERY_CARS_PRICE, QUERY_CUSTOMER_BILL,
+        RESERVE_FLIGHT, RESERVE_CAR, RESERVE_ROOM, RESERVE_ITINERARY
+    }
+
+    private final Type type;
+
+    /**
+     * flight number, location or customer name, depending on the type
+     */
+    private final String key;
+
+    private final String custName;
+
+    private final int num;
+
+    private final int price;
+
+    private final List<String> flightNums;
+
+    private final boolean needCar;
+
+    private final boolean needRoom;
+
+    private WorkflowOp(Type type, String key, String custName, int num, int price, List<String> flightNums, boolean needCar, boolean needRoom) {
+        this.type = type;
+        this.key = key;
+        this.custName = custName;
+        this.num = num;
+        this.price = price;
+        this.flightNums = flightNums;
+        this.needCar = needCar;
+        this.needRoom = needRoom;
+    }
+
+    private static WorkflowOp of(Type type, String key) {
+        return new WorkflowOp(type, key, null, 0, 0, null, false, false);
+    }
+
+    public static WorkflowOp addFlight(String flightNum, int numSeats, int price) {
+        return new WorkflowOp(Type.ADD_FLIGHT, flightNum, null, numSeats, price, null, false, false);
+    }
+
+    public static WorkflowOp deleteFlight(String flightNum) {
+        return of(Type.DELETE_FLIGHT, flightNum);
+    }
+
+    public static WorkflowOp addRooms(String location, int numRooms, int price) {
+        return new WorkflowOp(Type.ADD_ROOMS, location, null, numRooms, price, null, false, false);
+    }
+
+    public static WorkflowOp deleteRooms(String location, int numRooms) {
+        return new WorkflowOp(Type.DELETE_ROOMS, location, null, numRooms, 0, null, false, false);
+    }
+
+    public static WorkflowOp addCars(String location, int numCars, int price) {
+        return new WorkflowOp(Type.ADD_CARS, location, null, numCars, price, null, false, false);
+    }
+
+    public static WorkflowOp deleteCars(String location, int numCars) {
+        return new WorkflowOp(Type.DELETE_CARS, location, null, numCars, 0, null, false, false);
+    }
+
+    public static WorkflowOp newCustomer(String custName) {
+        return of(Type.NEW_CUSTOMER, custName);
+    }
+
+    public static WorkflowOp deleteCustomer(String custName) {
+        return of(Type.DELETE_CUSTOMER, custName);
+    }
+
+    public static WorkflowOp queryFlight(String flightNum) {
+        return of(Type.QUERY_FLIGHT, flightNum);
+    }
+
+    public static WorkflowOp queryFlightPrice(String flightNum) {
+        return of(Type.QUERY_FLIGHT_PRICE, flightNum);
+    }
+
+    public static WorkflowOp queryRooms(String location) {
+        return of(Type.QUERY_ROOMS, location);
+    }
+
+    public static WorkflowOp queryRoomsPrice(String location) {
+        return of(Type.QUERY_ROOMS_PRICE, location);
+    }
+
+    public static WorkflowOp queryCars(String location) {
+        return of(Type.QUERY_CARS, location);
+    }
+
+    public static WorkflowOp queryCarsPrice(String location) {
+        return of(Type.QUERY_CARS_PRICE, location);
+    }
+
+    public static WorkflowOp queryCustomerBill(String custName) {
+        return of(Type.QUERY_CUSTOMER_BILL, custName);
+    }
+
+    public static WorkflowOp reserveFlight(String custName, String flightNum) {
+        return new WorkflowOp(Type.RESERVE_FLIGHT, flightNum, custName, 0, 0, null, false, false);
+    }
+
+    public static WorkflowOp reserveCar(String custName, String location) {
+        return new WorkflowOp(Type.RESERVE_CAR, location, custName, 0, 0, null, false, false);
+    }
+
+    public static WorkflowOp reserveRoom(String custName, String location) {
+        return new WorkflowOp(Type.RESERVE_ROOM, location, custName, 0, 0, null, false, false);
+    }
+
+    public static WorkflowOp reserveItinerary(String custName, List<String> flightNumList, String location, boolean needCar, boolean needRoom) {
+        return new WorkflowOp(Type.RESERVE_ITINERARY, location, custName, 0, 0, new ArrayList<>(flightNumList), needCar, needRoom);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getCustName() {
+        return custName;
+    }
+
+    public int getNum() {
+        return num;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public List<String> getFlightNums() {
+        return flightNums;
+    }
+
+    public boolean isNeedCar() {
+        return needCar;
+    }
+
+    public boolean isNeedRoom() {
+        return needRoom;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkflowOp{" +
+                "type=" + type +
+                ", key='" + key + '\'' +
+                ", custName='" + custName + '\'' +
+                '}';
+    }
+}
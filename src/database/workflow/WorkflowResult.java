@@ -0,0 +1,52 @@
+package database.workflow;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Outcome of a {@link WorkflowController#runInTransaction} workflow.
+ */
+public class WorkflowResult implements Serializable {
+
+    private final boolean committed;
+
+    private final List<Object> results;
+
+    private final int attempts;
+
+    public WorkflowResult(boolean committed, List<Object> results, int attempts) {
+        this.committed = committed;
+        this.results = results;
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return false if an operation returned false and the transaction was aborted
+     */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * @return the result of each operation of the last attempt, up to the one that returned false if not committed
+     */
+    public List<Object> getResults() {
+        return results;
+    }
+
+    /**
+     * @return how many times the workflow was run, 1 if it never had to be retried
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkflowResult{" +
+                "committed=" + committed +
+                ", results=" + results +
+                ", attempts=" + attempts +
+                '}';
+    }
+}